@@ -0,0 +1,81 @@
+package segmentedfilesystem;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import segmentedfilesystem.model.OutOfMoneyPacket;
+
+/**
+ * How long it takes to turn one received datagram into a packet object, for each shape of datagram we get.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeserializeBenchmark {
+    public enum Shape {
+        // A data packet with a whole 1024-byte chunk in it, which is most of them.
+        FULL_DATA,
+        // The final data packet of a file, which is usually short.
+        SHORT_FINAL_DATA,
+        HEADER,
+        // A whole chunk in version 2 of the protocol, with its wider file ID and packet number.
+        FULL_DATA_V2
+    }
+
+    @Param
+    public Shape shape;
+
+    private final OutOfMoneyApiService outOfMoneyApiService = new OutOfMoneyApiService();
+    // Like the real receive buffer, this is always full size; `length` says how much of it is the datagram.
+    private final byte[] datagram = new byte[OutOfMoneyApiService.MAX_PACKET_SIZE];
+    private int length;
+    private int version = 1;
+
+    @Setup
+    public void setUp() {
+        new Random(1).nextBytes(datagram);
+        datagram[1] = 7;
+        switch (shape) {
+            case FULL_DATA:
+                datagram[0] = OutOfMoneyApiService.DATA_PACKET_BIT;
+                length = OutOfMoneyApiService.MAX_PACKET_SIZE_V1;
+                break;
+            case SHORT_FINAL_DATA:
+                datagram[0] = OutOfMoneyApiService.DATA_PACKET_BIT | OutOfMoneyApiService.FINAL_PACKET_BIT;
+                length = OutOfMoneyApiService.DATA_HEADER_SIZE + 300;
+                break;
+            case HEADER:
+                byte[] filename = "AsYouLikeIt.txt".getBytes(StandardCharsets.UTF_8);
+                datagram[0] = 0;
+                System.arraycopy(filename, 0, datagram, OutOfMoneyApiService.HEADER_HEADER_SIZE, filename.length);
+                length = OutOfMoneyApiService.HEADER_HEADER_SIZE + filename.length;
+                break;
+            case FULL_DATA_V2:
+                datagram[0] = OutOfMoneyApiService.DATA_PACKET_BIT | OutOfMoneyApiService.VERSION_2_BIT;
+                length = OutOfMoneyApiService.MAX_PACKET_SIZE_V2;
+                version = 2;
+                break;
+        }
+    }
+
+    @Benchmark
+    public OutOfMoneyPacket deserialize() {
+        return outOfMoneyApiService.deserialize(datagram, length, version);
+    }
+}
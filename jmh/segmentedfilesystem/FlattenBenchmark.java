@@ -0,0 +1,56 @@
+package segmentedfilesystem;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How long it takes to concatenate a finished file's chunks into one array.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlattenBenchmark {
+    @Param({ "1", "64", "4096", "65536" })
+    public int numberOfChunks;
+
+    private byte[][] chunks;
+
+    @Setup
+    public void setUp() {
+        var random = new Random(1);
+        byte[] fullChunk = new byte[DiskChunkStore.CHUNK_SIZE];
+        byte[] finalChunk = new byte[300];
+        random.nextBytes(fullChunk);
+        random.nextBytes(finalChunk);
+
+        chunks = new byte[numberOfChunks][];
+        Arrays.fill(chunks, fullChunk);
+        chunks[numberOfChunks - 1] = finalChunk;
+    }
+
+    @Benchmark
+    public byte[] flattenArray() {
+        return Utils.flatten(chunks, numberOfChunks);
+    }
+
+    @Benchmark
+    public byte[] flattenList() {
+        return Utils.flatten(Arrays.asList(chunks));
+    }
+}
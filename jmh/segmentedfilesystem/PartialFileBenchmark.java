@@ -0,0 +1,87 @@
+package segmentedfilesystem;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How long it takes to reassemble a whole file from its chunks, the way `Reassembler` does: add each chunk (setting
+ * the length when the final one turns up) and check whether the file is complete after every one.
+ *
+ * Results are per file, so divide by `numberOfChunks` to get the cost per chunk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PartialFileBenchmark {
+    public enum Arrival {
+        IN_ORDER,
+        SHUFFLED
+    }
+
+    @Param({ "1", "64", "4096", "65536" })
+    public int numberOfChunks;
+
+    @Param
+    public Arrival arrival;
+
+    // The order the chunks arrive in, and the chunks themselves. Every chunk but the last is full size; they share
+    // their arrays, since the partial file only keeps references to them.
+    private int[] packetNumbers;
+    private byte[] fullChunk;
+    private byte[] finalChunk;
+
+    @Setup
+    public void setUp() {
+        var random = new Random(1);
+        fullChunk = new byte[DiskChunkStore.CHUNK_SIZE];
+        finalChunk = new byte[300];
+        random.nextBytes(fullChunk);
+        random.nextBytes(finalChunk);
+
+        packetNumbers = new int[numberOfChunks];
+        for (int i = 0; i < numberOfChunks; i++) {
+            packetNumbers[i] = i;
+        }
+        if (arrival == Arrival.SHUFFLED) {
+            for (int i = numberOfChunks - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int swap = packetNumbers[i];
+                packetNumbers[i] = packetNumbers[j];
+                packetNumbers[j] = swap;
+            }
+        }
+    }
+
+    @Benchmark
+    public PartialFile addEveryChunk() {
+        PartialFile partialFile = new PartialFile().withFilename("benchmark.bin");
+        int lastPacketNumber = numberOfChunks - 1;
+        for (int packetNumber : packetNumbers) {
+            if (packetNumber == lastPacketNumber) {
+                partialFile.setNumberOfChunks(numberOfChunks);
+                partialFile.addChunk(packetNumber, finalChunk);
+            } else {
+                partialFile.addChunk(packetNumber, fullChunk);
+            }
+            if (partialFile.isComplete()) {
+                break;
+            }
+        }
+        return partialFile;
+    }
+}
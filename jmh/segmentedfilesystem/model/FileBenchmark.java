@@ -0,0 +1,53 @@
+package segmentedfilesystem.model;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How long it takes to hash and compare finished files, from a single chunk up to the biggest file the protocol
+ * allows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileBenchmark {
+    // 1 chunk, 64 chunks, 4096 chunks, and 65,536 chunks.
+    @Param({ "1024", "65536", "4194304", "67108864" })
+    public int size;
+
+    private File file;
+    private File sameContents;
+
+    @Setup
+    public void setUp() {
+        byte[] data = new byte[size];
+        new Random(1).nextBytes(data);
+        file = new File("benchmark.bin", data);
+        sameContents = new File("benchmark.bin", data.clone());
+    }
+
+    @Benchmark
+    public int hashCodeOfFile() {
+        return file.hashCode();
+    }
+
+    @Benchmark
+    public boolean equalsSameContents() {
+        return file.equals(sameContents);
+    }
+}
@@ -0,0 +1,434 @@
+package segmentedfilesystem;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import segmentedfilesystem.model.File;
+
+/**
+ * A `FileWriterService` that writes files on a small pool of its own threads, so that writing one file overlaps with
+ * receiving the next instead of holding it up.
+ *
+ * At most `maxParallelWrites` files are written at once, and at most `maxPendingWrites` can be waiting or in progress.
+ * Past that, handing over another file blocks until one finishes: if the disk can't keep up, the receive loop slows
+ * down, rather than completed files piling up in memory. `getBackpressureWaits()` says how often that happened.
+ *
+ * Errors are reported as they happen, like `FileWriterService` does, and also saved up and thrown by `flush()`, so a
+ * download can't finish successfully without all of its files.
+ */
+public class AsyncFileWriterService extends FileWriterService implements AutoCloseable {
+    /**
+     * When to `fsync` the files we write.
+     */
+    public enum FsyncPolicy {
+        /**
+         * Never; leave it to the OS. A file counts as written as soon as the OS has it.
+         */
+        NONE,
+        /**
+         * After every file (and its directory entry), before it counts as written.
+         */
+        PER_FILE,
+        /**
+         * In batches: files wait until `groupCommitSize` of them are ready, or `groupCommitMillis` have passed, and
+         * are then synced together, with one sync of the directory for the lot.
+         */
+        GROUP_COMMIT
+    }
+
+    private final ExecutorService executor;
+    private final Semaphore pendingWrites;
+
+    // Every write that hasn't finished yet, so `flush()` can wait for them, and the errors it should report.
+    private final Set<CompletableFuture<Void>> inFlight = ConcurrentHashMap.newKeySet();
+    private final ConcurrentLinkedQueue<IOException> failures = new ConcurrentLinkedQueue<>();
+
+    // Files that have been written but not yet synced, under GROUP_COMMIT.
+    private final List<UnsyncedFile> unsyncedFiles = new ArrayList<>();
+    private final ReentrantLock unsyncedFilesLock = new ReentrantLock();
+
+    private FsyncPolicy fsyncPolicy = FsyncPolicy.NONE;
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+    public void setFsyncPolicy(FsyncPolicy fsyncPolicy) {
+        this.fsyncPolicy = fsyncPolicy;
+    }
+    public AsyncFileWriterService withFsyncPolicy(FsyncPolicy fsyncPolicy) {
+        setFsyncPolicy(fsyncPolicy);
+        return this;
+    }
+
+    /**
+     * Under GROUP_COMMIT, how many files to sync at once.
+     */
+    private int groupCommitSize = 16;
+    public int getGroupCommitSize() {
+        return groupCommitSize;
+    }
+    public void setGroupCommitSize(int groupCommitSize) {
+        this.groupCommitSize = groupCommitSize;
+    }
+    public AsyncFileWriterService withGroupCommitSize(int groupCommitSize) {
+        setGroupCommitSize(groupCommitSize);
+        return this;
+    }
+
+    /**
+     * Under GROUP_COMMIT, the longest a file waits for others to be synced with, in milliseconds.
+     */
+    private long groupCommitMillis = 10;
+    public long getGroupCommitMillis() {
+        return groupCommitMillis;
+    }
+    public void setGroupCommitMillis(long groupCommitMillis) {
+        this.groupCommitMillis = groupCommitMillis;
+    }
+    public AsyncFileWriterService withGroupCommitMillis(long groupCommitMillis) {
+        setGroupCommitMillis(groupCommitMillis);
+        return this;
+    }
+
+    /**
+     * How many files have been written (and synced, if we're syncing) so far.
+     */
+    private final AtomicLong filesWritten = new AtomicLong();
+    public long getFilesWritten() {
+        return filesWritten.get();
+    }
+
+    /**
+     * How many times handing over a file had to wait, because `maxPendingWrites` files were already waiting.
+     */
+    private final AtomicLong backpressureWaits = new AtomicLong();
+    public long getBackpressureWaits() {
+        return backpressureWaits.get();
+    }
+
+    public AsyncFileWriterService(int maxParallelWrites, int maxPendingWrites) {
+        this(Path.of("."), maxParallelWrites, maxPendingWrites);
+    }
+
+    public AsyncFileWriterService(Path directory, int maxParallelWrites, int maxPendingWrites) {
+        super(directory);
+        // Daemon threads, so a writer nobody closed doesn't keep the JVM alive; `flush()` is what makes sure the
+        // files are written.
+        this.executor = Executors.newFixedThreadPool(
+            maxParallelWrites, Thread.ofPlatform().daemon().name("file-writer-", 0).factory()
+        );
+        this.pendingWrites = new Semaphore(maxPendingWrites);
+    }
+
+    /**
+     * Start writing `file`, and return a future that completes once it's written (and synced, if we're syncing), or
+     * completes exceptionally with an `IOException` if it can't be. This blocks while `maxPendingWrites` files are
+     * already waiting. If we're compressing, the file is gzipped on the way.
+     */
+    public CompletableFuture<Void> writeAsync(File file) {
+        CompletableFuture<Void> future = startWrite();
+        executor.execute(() -> {
+            Path path = outputPathFor(file.getName());
+            FileChannel channel = null;
+            try {
+                channel = FileChannel.open(
+                    path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING
+                );
+                if (getCompressionExecutor() != null) {
+                    // Finish the gzip stream without closing it, since the channel still has to be synced.
+                    var outputStream = new ParallelGzipOutputStream(
+                        Channels.newOutputStream(channel), getCompressionExecutor()
+                    );
+                    outputStream.write(file.getData());
+                    outputStream.finish();
+                } else {
+                    var buffer = ByteBuffer.wrap(file.getData());
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+            } catch (IOException e) {
+                closeQuietly(channel);
+                fail(future, file.getName(), e);
+                return;
+            }
+            finishWrite(new UnsyncedFile(file.getName(), file.getChecksum(), channel, future));
+        });
+        return future;
+    }
+
+    /**
+     * Written-through files just need renaming, which we do straight away, since the partial file is about to be
+     * released. Compressing, syncing and verifying them happens in the background, like any other file.
+     */
+    @Override
+    public void writeCompletedFile(PartialFile partialFile) {
+        if (!partialFile.isWriteThrough()) {
+            super.writeCompletedFile(partialFile);
+            return;
+        }
+
+        long checksum = partialFile.getChecksum();
+        try {
+            partialFile.moveTo(getDirectory());
+        } catch (UncheckedIOException e) {
+            System.err.println("Unable to move a downloaded file into place");
+            e.printStackTrace();
+            failures.add(e.getCause());
+            return;
+        }
+        if (fsyncPolicy == FsyncPolicy.NONE && !isVerifyOnWrite() && getCompressionExecutor() == null) {
+            filesWritten.incrementAndGet();
+            return;
+        }
+
+        String filename = partialFile.getFilename();
+        CompletableFuture<Void> future = startWrite();
+        executor.execute(() -> {
+            FileChannel channel = null;
+            try {
+                if (getCompressionExecutor() == null) {
+                    channel = FileChannel.open(getDirectory().resolve(filename), StandardOpenOption.WRITE);
+                } else {
+                    channel = FileChannel.open(
+                        outputPathFor(filename),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING
+                    );
+                    var outputStream = new ParallelGzipOutputStream(
+                        Channels.newOutputStream(channel), getCompressionExecutor()
+                    );
+                    Path uncompressedPath = getDirectory().resolve(filename);
+                    Files.copy(uncompressedPath, outputStream);
+                    outputStream.finish();
+                    Files.delete(uncompressedPath);
+                }
+            } catch (IOException e) {
+                closeQuietly(channel);
+                fail(future, filename, e);
+                return;
+            }
+            finishWrite(new UnsyncedFile(filename, checksum, channel, future));
+        });
+    }
+
+    /**
+     * Queue `file` to be written, without waiting for it. Any error is reported by `flush()`.
+     */
+    @Override
+    public void createFileInWorkingDirectory(File file) {
+        writeAsync(file);
+    }
+
+    /**
+     * Wait for every file we've been given so far to be written (and synced, if we're syncing), and throw an
+     * `IOException` if any of them couldn't be. Files waiting for a group commit are synced straight away.
+     */
+    @Override
+    public void flush() throws IOException {
+        commitUnsyncedFiles();
+        try {
+            CompletableFuture.allOf(inFlight.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            // The failure is in `failures` too.
+        }
+
+        IOException first = failures.poll();
+        if (first == null) {
+            return;
+        }
+        var exception = new IOException("Unable to write every file", first);
+        IOException next;
+        while ((next = failures.poll()) != null) {
+            exception.addSuppressed(next);
+        }
+        throw exception;
+    }
+
+    /**
+     * Wait for everything to be written, then stop the writer threads.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private CompletableFuture<Void> startWrite() {
+        if (!pendingWrites.tryAcquire()) {
+            backpressureWaits.incrementAndGet();
+            pendingWrites.acquireUninterruptibly();
+        }
+        var future = new CompletableFuture<Void>();
+        inFlight.add(future);
+        future.whenComplete((result, error) -> {
+            inFlight.remove(future);
+            pendingWrites.release();
+        });
+        return future;
+    }
+
+    /**
+     * Sync a file we've just written, as the policy says, and then verify it and complete its future.
+     */
+    private void finishWrite(UnsyncedFile file) {
+        switch (fsyncPolicy) {
+            case NONE -> {
+                if (closeOrFail(file)) {
+                    succeed(file);
+                }
+            }
+            case PER_FILE -> {
+                if (syncOrFail(file)) {
+                    syncDirectory();
+                    succeed(file);
+                }
+            }
+            case GROUP_COMMIT -> {
+                int waiting;
+                unsyncedFilesLock.lock();
+                try {
+                    unsyncedFiles.add(file);
+                    waiting = unsyncedFiles.size();
+                } finally {
+                    unsyncedFilesLock.unlock();
+                }
+                if (waiting >= groupCommitSize) {
+                    commitUnsyncedFiles();
+                } else if (waiting == 1) {
+                    // The first file in a batch sets the deadline for the rest.
+                    CompletableFuture.delayedExecutor(groupCommitMillis, TimeUnit.MILLISECONDS, executor)
+                        .execute(this::commitUnsyncedFiles);
+                }
+            }
+        }
+    }
+
+    private void commitUnsyncedFiles() {
+        List<UnsyncedFile> batch;
+        unsyncedFilesLock.lock();
+        try {
+            if (unsyncedFiles.isEmpty()) {
+                return;
+            }
+            batch = new ArrayList<>(unsyncedFiles);
+            unsyncedFiles.clear();
+        } finally {
+            unsyncedFilesLock.unlock();
+        }
+
+        var synced = new ArrayList<UnsyncedFile>(batch.size());
+        for (UnsyncedFile file : batch) {
+            if (syncOrFail(file)) {
+                synced.add(file);
+            }
+        }
+        syncDirectory();
+        for (UnsyncedFile file : synced) {
+            succeed(file);
+        }
+    }
+
+    private boolean syncOrFail(UnsyncedFile file) {
+        try {
+            file.channel.force(true);
+        } catch (IOException e) {
+            closeQuietly(file.channel);
+            fail(file.future, file.filename, e);
+            return false;
+        }
+        return closeOrFail(file);
+    }
+
+    private boolean closeOrFail(UnsyncedFile file) {
+        try {
+            file.channel.close();
+            return true;
+        } catch (IOException e) {
+            fail(file.future, file.filename, e);
+            return false;
+        }
+    }
+
+    private void succeed(UnsyncedFile file) {
+        if (isVerifyOnWrite() && !verify(file.filename, file.checksum)) {
+            var e = new IOException(String.format("File %s is corrupt on disk", file.filename));
+            failures.add(e);
+            file.future.completeExceptionally(e);
+            return;
+        }
+        filesWritten.incrementAndGet();
+        file.future.complete(null);
+    }
+
+    private void fail(CompletableFuture<Void> future, String filename, IOException e) {
+        System.err.printf("Unable to write to file %s\n", filename);
+        e.printStackTrace();
+        failures.add(e);
+        future.completeExceptionally(e);
+    }
+
+    /**
+     * Sync the directory we write to, so that the names of the files we've synced survive a crash too.
+     */
+    private void syncDirectory() {
+        try (var channel = FileChannel.open(getDirectory(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not every platform lets you open a directory to sync it, and the files themselves are already synced.
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // We're already reporting a more useful error.
+        }
+    }
+
+    /**
+     * A file that's been written, and is waiting to be synced, verified, or both.
+     */
+    private static final class UnsyncedFile {
+        private final String filename;
+        private final long checksum;
+        private final FileChannel channel;
+        private final CompletableFuture<Void> future;
+
+        private UnsyncedFile(String filename, long checksum, FileChannel channel, CompletableFuture<Void> future) {
+            this.filename = filename;
+            this.checksum = checksum;
+            this.channel = channel;
+            this.future = future;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package segmentedfilesystem;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An on-disk record of one `PartialFile`, so that a download can pick up where it left off if the client dies.
+ *
+ * Every chunk the file receives is appended to a journal, as a record of its packet number, length, CRC32C and data.
+ * Every so often, and whenever we learn the file's name or length, we sync the journal and write a checkpoint next to
+ * it, with the filename, the number of chunks, how much of the journal has been synced, and the bitmap of chunks
+ * received. The checkpoint is written to a temporary file and renamed into place, so there's always a whole one.
+ *
+ * `DownloadJournal` finds journals left behind by earlier runs and reads them back. Errors are reported as
+ * `UncheckedIOException`s, like `ChunkStore`s do.
+ */
+public class ChunkJournal {
+    // "SFJ1", at the start of every checkpoint.
+    private static final int CHECKPOINT_MAGIC = 0x53464a31;
+    private static final int RECORD_HEADER_SIZE = 3 * Integer.BYTES;
+    static final String JOURNAL_SUFFIX = ".journal";
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+    /**
+     * How many chunks to journal between checkpoints.
+     */
+    public static final int CHECKPOINT_INTERVAL = 256;
+
+    private final Path journalPath;
+    private final Path checkpointPath;
+    private final FileChannel channel;
+    // The record header and its data, reused so appending a chunk doesn't allocate more than it has to.
+    private final ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+    private final ByteBuffer[] record = new ByteBuffer[2];
+    private int chunksSinceCheckpoint = 0;
+
+    /**
+     * Open the journal at `journalPath` for appending, after throwing away anything past its first `validLength`
+     * bytes. The journal is created if it doesn't exist.
+     */
+    ChunkJournal(Path journalPath, long validLength) {
+        this.journalPath = journalPath;
+        this.checkpointPath = checkpointPathFor(journalPath);
+        try {
+            channel = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            channel.truncate(validLength);
+            channel.position(validLength);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to open the journal " + journalPath, e);
+        }
+    }
+
+    /**
+     * Append chunk `packetNumber`, whose CRC32C is `checksum`, to the journal, and return whether it's time for a
+     * checkpoint.
+     */
+    public boolean append(int packetNumber, byte[] data, int checksum) {
+        recordHeader.clear();
+        recordHeader.putInt(packetNumber).putInt(data.length).putInt(checksum).flip();
+        record[0] = recordHeader;
+        record[1] = ByteBuffer.wrap(data);
+        try {
+            // An empty chunk still needs its header written.
+            while (record[0].hasRemaining() || record[1].hasRemaining()) {
+                channel.write(record);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to append to the journal " + journalPath, e);
+        }
+        return ++chunksSinceCheckpoint >= CHECKPOINT_INTERVAL;
+    }
+
+    /**
+     * Sync the journal, then record what it holds: the file's name (or `null`), its number of chunks (or a negative
+     * number if we don't know it yet), and the bitmap of chunks received (see `PartialFile`).
+     */
+    public void checkpoint(String filename, int numberOfChunks, long[] received) {
+        byte[] name = filename != null ? filename.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        var buffer = ByteBuffer.allocate(
+            4 * Integer.BYTES + name.length + Long.BYTES + Long.BYTES * received.length
+        );
+        Path temporaryPath = checkpointPath.resolveSibling(checkpointPath.getFileName() + ".tmp");
+        try {
+            channel.force(false);
+            buffer.putInt(CHECKPOINT_MAGIC)
+                .putInt(filename != null ? name.length : -1)
+                .put(name)
+                .putInt(numberOfChunks)
+                .putLong(channel.position())
+                .putInt(received.length);
+            for (long word : received) {
+                buffer.putLong(word);
+            }
+            buffer.flip();
+
+            try (var checkpointChannel = FileChannel.open(
+                temporaryPath,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING
+            )) {
+                while (buffer.hasRemaining()) {
+                    checkpointChannel.write(buffer);
+                }
+                checkpointChannel.force(false);
+            }
+            Files.move(
+                temporaryPath, checkpointPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE
+            );
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to checkpoint the journal " + journalPath, e);
+        }
+        chunksSinceCheckpoint = 0;
+    }
+
+    /**
+     * Stop writing to the journal, but leave it on disk for a later run to resume from.
+     */
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.printf("Unable to close the journal %s\n", journalPath);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stop writing to the journal and delete it, along with its checkpoint. This is for files that are finished, or
+     * that we've given up on. If it was the last journal in its directory, the directory goes too.
+     */
+    public void delete() {
+        close();
+        try {
+            Files.deleteIfExists(checkpointPath);
+            Files.deleteIfExists(journalPath);
+        } catch (IOException e) {
+            System.err.printf("Unable to clean up the journal %s\n", journalPath);
+            e.printStackTrace();
+        }
+        DownloadJournal.deleteIfEmpty(journalPath.getParent());
+    }
+
+    static Path checkpointPathFor(Path journalPath) {
+        String journalName = journalPath.getFileName().toString();
+        return journalPath.resolveSibling(
+            journalName.substring(0, journalName.length() - JOURNAL_SUFFIX.length()) + CHECKPOINT_SUFFIX
+        );
+    }
+
+    /**
+     * What a checkpoint says about its journal.
+     */
+    static final class Checkpoint {
+        final String filename;
+        final int numberOfChunks;
+        final long journalLength;
+        final long[] received;
+
+        private Checkpoint(String filename, int numberOfChunks, long journalLength, long[] received) {
+            this.filename = filename;
+            this.numberOfChunks = numberOfChunks;
+            this.journalLength = journalLength;
+            this.received = received;
+        }
+
+        /**
+         * Read the checkpoint for the journal at `journalPath`, or return `null` if there isn't a valid one.
+         */
+        static Checkpoint read(Path journalPath) {
+            try {
+                var buffer = ByteBuffer.wrap(Files.readAllBytes(checkpointPathFor(journalPath)));
+                if (buffer.getInt() != CHECKPOINT_MAGIC) {
+                    return null;
+                }
+                int nameLength = buffer.getInt();
+                String filename = null;
+                if (nameLength >= 0) {
+                    byte[] name = new byte[nameLength];
+                    buffer.get(name);
+                    filename = new String(name, StandardCharsets.UTF_8);
+                }
+                int numberOfChunks = buffer.getInt();
+                long journalLength = buffer.getLong();
+                long[] received = new long[buffer.getInt()];
+                for (int i = 0; i < received.length; i++) {
+                    received[i] = buffer.getLong();
+                }
+                return new Checkpoint(filename, numberOfChunks, journalLength, received);
+            } catch (IOException | RuntimeException e) {
+                // Missing, or cut short; either way there's nothing we can trust.
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Reads the records in a journal back, one at a time, stopping at the first one that's incomplete or doesn't
+     * match its checksum (which is where the process died, if it died while appending).
+     */
+    static final class Reader implements AutoCloseable {
+        private final FileChannel channel;
+        private final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        private long validLength = 0;
+
+        int packetNumber;
+        byte[] data;
+
+        Reader(Path journalPath) throws IOException {
+            channel = FileChannel.open(journalPath, StandardOpenOption.READ);
+        }
+
+        /**
+         * How many bytes of the journal held whole, valid records.
+         */
+        long getValidLength() {
+            return validLength;
+        }
+
+        /**
+         * Read the next record into `packetNumber` and `data`, and return whether there was a valid one.
+         */
+        boolean next() throws IOException {
+            header.clear();
+            if (!readFully(header)) {
+                return false;
+            }
+            header.flip();
+            int number = header.getInt();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (number < 0 || length < 0 || length > DiskChunkStore.CHUNK_SIZE) {
+                return false;
+            }
+            var contents = ByteBuffer.allocate(length);
+            if (!readFully(contents) || Crc32c.of(contents.array()) != checksum) {
+                return false;
+            }
+            packetNumber = number;
+            data = contents.array();
+            validLength = channel.position();
+            return true;
+        }
+
+        private boolean readFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
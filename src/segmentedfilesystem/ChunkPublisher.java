@@ -0,0 +1,40 @@
+package segmentedfilesystem;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.function.Consumer;
+
+import segmentedfilesystem.model.ChunkEvent;
+
+/**
+ * A `Flow.Publisher` of the `ChunkEvent`s from a download, so later stages can work on each file's chunks as they
+ * arrive instead of waiting for the whole file. Hand it to `FileRetriever.withChunkListener()`.
+ *
+ * Events are delivered on `executor`, and each subscriber has a buffer of up to `maxBufferCapacity` of them. Once a
+ * subscriber's buffer is full, `accept()` waits until it catches up; since that's called on the receiving thread,
+ * a slow subscriber slows the download down rather than letting events pile up in memory. With no subscribers,
+ * events are simply dropped.
+ *
+ * `close()` tells subscribers there's nothing more to come. Subscribers that just want every event can use
+ * `consume()`; its buffer is bounded like any other subscriber's.
+ */
+public class ChunkPublisher extends SubmissionPublisher<ChunkEvent> implements Consumer<ChunkEvent> {
+    /**
+     * Deliver events on the common fork-join pool, with buffers of `Flow.defaultBufferSize()`.
+     */
+    public ChunkPublisher() {
+        super();
+    }
+
+    public ChunkPublisher(Executor executor, int maxBufferCapacity) {
+        super(executor, maxBufferCapacity);
+    }
+
+    /**
+     * Publish `event` to every subscriber, waiting for any that have no room for it.
+     */
+    @Override
+    public void accept(ChunkEvent event) {
+        submit(event);
+    }
+}
@@ -0,0 +1,81 @@
+package segmentedfilesystem;
+
+import java.nio.file.Path;
+
+/**
+ * Somewhere to keep the chunks of a `PartialFile` while it's being downloaded.
+ *
+ * A `PartialFile` keeps track of which chunks it has; a `ChunkStore` just holds their bytes. Errors from stores that
+ * do I/O are reported as `UncheckedIOException`s.
+ */
+public interface ChunkStore {
+    /**
+     * Store `data` as chunk number `packetNumber`, replacing any earlier chunk with that number.
+     */
+    void put(int packetNumber, byte[] data);
+
+    /**
+     * Return the chunk stored as `packetNumber`, which must have been stored.
+     */
+    byte[] get(int packetNumber);
+
+    /**
+     * Return chunks `0` to `numberOfChunks - 1`, concatenated. Every one of those chunks must have been stored.
+     */
+    byte[] toByteArray(int numberOfChunks);
+
+    /**
+     * Tell the store how long the finished file will be, as soon as we know. Stores can use this to size things up
+     * front. Stores that write to disk also cut off anything they've written past `length`, since chunks numbered
+     * past the end of the file don't belong in it.
+     */
+    default void setLength(long length) {
+    }
+
+    /**
+     * Move whatever chunks the store is holding in memory out to `spillFile`, and return how many bytes that freed.
+     * They must still be available through `get()` and `toByteArray()` afterwards. Stores that don't hold chunks in
+     * memory have nothing to spill.
+     */
+    default long spill(SpillFile spillFile) {
+        return 0;
+    }
+
+    /**
+     * Whether this store writes chunks straight to disk, which is the case for any `WriteThroughChunkStore`. If it
+     * does, the finished file should be put in place with its `moveTo()` rather than built in memory with
+     * `toByteArray()`.
+     */
+    default boolean isWriteThrough() {
+        return false;
+    }
+
+    /**
+     * How many bytes a write-through store is holding in memory until it can write them. Other stores hold every
+     * chunk in memory until it's spilled, and their `PartialFile` counts those itself.
+     */
+    default long getBufferedBytes() {
+        return 0;
+    }
+
+    /**
+     * For a store that writes the file out in order as it arrives, the file it's writing to; otherwise `null`.
+     */
+    default Path getStreamedPath() {
+        return null;
+    }
+
+    /**
+     * For a store that writes the file out in order as it arrives, how many bytes at the start of `getStreamedPath()`
+     * are already the finished file's, with no gaps, so they can be read before the file is finished; otherwise -1.
+     */
+    default long getStreamedLength() {
+        return -1;
+    }
+
+    /**
+     * Let go of everything the store is holding on to. The store can't be used afterwards.
+     */
+    default void release() {
+    }
+}
@@ -0,0 +1,81 @@
+package segmentedfilesystem;
+
+import java.util.zip.CRC32C;
+
+/**
+ * CRC32C checksums that can be put together piece by piece.
+ *
+ * `combine(a, b, lengthOfB)` gives the checksum of the concatenation of two byte sequences from just their separate
+ * checksums, so a file's checksum can be built from the checksums of its chunks in any order they happen to arrive,
+ * without ever looking at the data again. This is zlib's `crc32_combine()`, with the CRC32C polynomial: appending
+ * `n` bytes multiplies the first checksum by x^(8n) modulo the polynomial, which takes O(log n) multiplications.
+ */
+public final class Crc32c {
+    // The CRC32C (Castagnoli) polynomial, bit-reversed, as `java.util.zip.CRC32C` uses it.
+    private static final int POLYNOMIAL = 0x82F63B78;
+
+    // In this bit-reversed representation, the top bit is x^0.
+    private static final int ONE = 1 << 31;
+
+    // X_TO_THE_2_TO_THE[k] is x^(2^k) modulo the polynomial.
+    private static final int[] X_TO_THE_2_TO_THE = new int[32];
+    static {
+        int p = ONE >>> 1;  // x^1
+        for (int k = 0; k < X_TO_THE_2_TO_THE.length; k++) {
+            X_TO_THE_2_TO_THE[k] = p;
+            p = multiply(p, p);
+        }
+    }
+
+    // What appending a full chunk of bytes multiplies a checksum by, worked out once since almost every chunk is full.
+    private static final int FULL_CHUNK_SHIFT = shiftFor(DiskChunkStore.CHUNK_SIZE);
+
+    private Crc32c() {
+    }
+
+    /**
+     * Return the CRC32C of the whole of `data`.
+     */
+    public static int of(byte[] data) {
+        var crc = new CRC32C();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Return the CRC32C of the concatenation of A and B, given the CRC32C of A, the CRC32C of B, and the length of B.
+     */
+    public static int combine(int crcOfA, int crcOfB, long lengthOfB) {
+        int shift = lengthOfB == DiskChunkStore.CHUNK_SIZE ? FULL_CHUNK_SHIFT : shiftFor(lengthOfB);
+        return multiply(shift, crcOfA) ^ crcOfB;
+    }
+
+    /**
+     * Return x^(8 * length) modulo the polynomial.
+     */
+    private static int shiftFor(long length) {
+        int p = ONE;
+        // Bytes are 8 = 2^3 bits, so start at x^(2^3).
+        int k = 3;
+        for (long n = length; n != 0; n >>>= 1, k++) {
+            if ((n & 1) != 0) {
+                p = multiply(X_TO_THE_2_TO_THE[k & 31], p);
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Multiply two polynomials modulo the CRC32C polynomial.
+     */
+    private static int multiply(int a, int b) {
+        int product = 0;
+        for (int m = ONE; m != 0; m >>>= 1) {
+            if ((a & m) != 0) {
+                product ^= b;
+            }
+            b = (b & 1) != 0 ? (b >>> 1) ^ POLYNOMIAL : b >>> 1;
+        }
+        return product;
+    }
+}
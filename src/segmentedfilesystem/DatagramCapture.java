@@ -0,0 +1,157 @@
+package segmentedfilesystem;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Records every raw datagram a session receives, with when it arrived and who sent it, so that the run can be played
+ * back later (see `ReplayPacketSource`) with the same packets, in the same order, with the same gaps between them.
+ *
+ * The log is a `MAGIC` number and a `VERSION` byte, followed by records, each of which starts with its type, the
+ * `System.nanoTime()` it was made at, and an address (a length byte, that many address bytes, and a 16-bit port):
+ *
+ *  - a `SESSION_RECORD` marks the start of an interaction, and its address is the server we asked for files. It's
+ *    followed by a flags byte, where `SOURCE_FILTERED` says whether datagrams from anyone else were dropped, and
+ *    `OFFERED_VERSION_2` whether we offered the server version 2 of the protocol;
+ *  - a `DATAGRAM_RECORD` is a datagram, and its address is the one it came from. It's followed by a 16-bit length and
+ *    the datagram itself, malformed or not.
+ *
+ * Everything's big-endian. Records are buffered, so they're only certain to be on disk after `flush()` or `close()`;
+ * if the process dies before then, a reader sees the log end early, partway through a record.
+ */
+public class DatagramCapture implements Closeable {
+    static final int MAGIC = 0x4F4F4D43;
+    static final byte VERSION = 1;
+    static final byte SESSION_RECORD = 'S';
+    static final byte DATAGRAM_RECORD = 'D';
+    static final int SOURCE_FILTERED = 0b01;
+    static final int OFFERED_VERSION_2 = 0b10;
+
+    private final Path path;
+    private final DataOutputStream out;
+    // The receiving thread records, while someone else (a shutdown hook, say) may flush or close.
+    private final ReentrantLock lock = new ReentrantLock();
+    private boolean closed = false;
+
+    private long datagramsRecorded = 0;
+    public long getDatagramsRecorded() {
+        return datagramsRecorded;
+    }
+
+    /**
+     * Start a new log at `path`, replacing anything that's there.
+     */
+    public DatagramCapture(Path path) throws IOException {
+        this.path = path;
+        this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+    }
+
+    /**
+     * Record that we've just asked `server` for files, and whether we're dropping datagrams from anyone else.
+     */
+    public void recordSession(long nanos, InetSocketAddress server, boolean sourceFiltered) {
+        recordSession(nanos, server, sourceFiltered, 1);
+    }
+
+    /**
+     * Like `recordSession(nanos, server, sourceFiltered)`, where we offered the server up to `offeredVersion` of the
+     * protocol.
+     */
+    public void recordSession(long nanos, InetSocketAddress server, boolean sourceFiltered, int offeredVersion) {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            writeHeader(SESSION_RECORD, nanos, server.getAddress(), server.getPort());
+            out.writeByte((sourceFiltered ? SOURCE_FILTERED : 0) | (offeredVersion > 1 ? OFFERED_VERSION_2 : 0));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write to " + path, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record a datagram of `length` bytes, starting at `offset` in `data`, that arrived from `address` and `port`.
+     */
+    public void recordDatagram(long nanos, InetAddress address, int port, byte[] data, int offset, int length) {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            writeHeader(DATAGRAM_RECORD, nanos, address, port);
+            out.writeShort(length);
+            out.write(data, offset, length);
+            datagramsRecorded++;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write to " + path, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record a datagram that's been received into `datagram` and flipped, from `source`. This doesn't move the
+     * buffer's position.
+     */
+    public void recordDatagram(long nanos, InetSocketAddress source, ByteBuffer datagram) {
+        byte[] data = new byte[datagram.limit()];
+        datagram.get(0, data);
+        recordDatagram(nanos, source.getAddress(), source.getPort(), data, 0, data.length);
+    }
+
+    /**
+     * Make sure everything recorded so far is written to the log.
+     */
+    public void flush() {
+        lock.lock();
+        try {
+            if (!closed) {
+                out.flush();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write to " + path, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Finish the log. Anything recorded after this is ignored.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (!closed) {
+                closed = true;
+                out.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeHeader(byte type, long nanos, InetAddress address, int port) throws IOException {
+        out.writeByte(type);
+        out.writeLong(nanos);
+        // An unresolved address is recorded as an empty one.
+        byte[] addressBytes = address != null ? address.getAddress() : new byte[0];
+        out.writeByte(addressBytes.length);
+        out.write(addressBytes);
+        out.writeShort(port);
+    }
+}
@@ -0,0 +1,139 @@
+package segmentedfilesystem;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Cheap checks that a datagram could be an OutOfMoney.com packet from the server we asked for files, made before
+ * anything's decoded from it, so that junk thrown at our port is dropped for the price of a comparison or two.
+ *
+ * A datagram is rejected if it didn't come from `expectedSource` (when there is one), if it's too short to hold the
+ * bookkeeping its status byte says it has, or if it's longer than its version allows. To be able to tell that last
+ * case apart from a datagram that just fills the buffer, receive into buffers of `RECEIVE_BUFFER_SIZE`, which has a
+ * byte to spare.
+ *
+ * The validator also settles which version of the protocol a session is in. If we only offered version 1, that's
+ * what it is. If we offered version 2, the first datagram that passes the other checks decides, by whether it has
+ * `VERSION_2_BIT` set; after that, datagrams in the other version are rejected. The limits on length depend on the
+ * version, so until it's settled, they're checked against the version each datagram says it's in.
+ *
+ * Every rejection is counted, by reason. A validator belongs to one session, and isn't thread-safe.
+ */
+public class DatagramValidator {
+    /**
+     * How big a receive buffer needs to be for oversized datagrams to be noticed, rather than quietly cut short.
+     */
+    public static final int RECEIVE_BUFFER_SIZE = OutOfMoneyApiService.MAX_PACKET_SIZE + 1;
+
+    // A header packet has to carry at least one byte of filename. A data packet can be empty (the final packet of an
+    // empty file is).
+    private static final int MIN_HEADER_PACKET_SIZE_V1 = OutOfMoneyApiService.HEADER_HEADER_SIZE + 1;
+    private static final int MIN_DATA_PACKET_SIZE_V1 = OutOfMoneyApiService.DATA_HEADER_SIZE;
+    private static final int MIN_HEADER_PACKET_SIZE_V2 = OutOfMoneyApiService.HEADER_HEADER_SIZE_V2 + 1;
+    private static final int MIN_DATA_PACKET_SIZE_V2 = OutOfMoneyApiService.DATA_HEADER_SIZE_V2;
+
+    /**
+     * Where datagrams have to come from, or `null` to take them from anywhere.
+     */
+    private InetSocketAddress expectedSource = null;
+    public InetSocketAddress getExpectedSource() {
+        return expectedSource;
+    }
+    public void setExpectedSource(InetSocketAddress expectedSource) {
+        this.expectedSource = expectedSource;
+    }
+
+    /**
+     * The newest version of the protocol we offered the server. Setting this starts the negotiation over.
+     */
+    private int offeredVersion = 1;
+    public int getOfferedVersion() {
+        return offeredVersion;
+    }
+    public void setOfferedVersion(int offeredVersion) {
+        this.offeredVersion = offeredVersion;
+        this.protocolVersion = offeredVersion > 1 ? 0 : 1;
+    }
+
+    /**
+     * The version of the protocol the session is in, or 0 if that isn't settled yet. Once a datagram has been
+     * accepted, it's settled.
+     */
+    private int protocolVersion = 1;
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    private long rejectedAsTooShort = 0;
+    public long getRejectedAsTooShort() {
+        return rejectedAsTooShort;
+    }
+
+    private long rejectedAsTooLong = 0;
+    public long getRejectedAsTooLong() {
+        return rejectedAsTooLong;
+    }
+
+    private long rejectedAsFromElsewhere = 0;
+    public long getRejectedAsFromElsewhere() {
+        return rejectedAsFromElsewhere;
+    }
+
+    private long rejectedAsWrongVersion = 0;
+    public long getRejectedAsWrongVersion() {
+        return rejectedAsWrongVersion;
+    }
+
+    public long getRejected() {
+        return rejectedAsTooShort + rejectedAsTooLong + rejectedAsFromElsewhere + rejectedAsWrongVersion;
+    }
+
+    /**
+     * Return whether a datagram of `length` bytes, whose first byte is `status` (if it has one), from `port` at
+     * `address`, is worth decoding. If it isn't, count it.
+     */
+    public boolean accept(InetAddress address, int port, int length, byte status) {
+        if (expectedSource != null
+            && (port != expectedSource.getPort() || !address.equals(expectedSource.getAddress()))) {
+            rejectedAsFromElsewhere++;
+            return false;
+        }
+        int version = offeredVersion > 1 && length > 0 && (status & OutOfMoneyApiService.VERSION_2_BIT) != 0 ? 2 : 1;
+        if (protocolVersion != 0 && version != protocolVersion) {
+            rejectedAsWrongVersion++;
+            return false;
+        }
+        boolean isV2 = version == 2;
+        if (length > (isV2 ? OutOfMoneyApiService.MAX_PACKET_SIZE_V2 : OutOfMoneyApiService.MAX_PACKET_SIZE_V1)) {
+            rejectedAsTooLong++;
+            return false;
+        }
+        int minimumLength = length > 0 && (status & OutOfMoneyApiService.DATA_PACKET_BIT) != 0
+            ? (isV2 ? MIN_DATA_PACKET_SIZE_V2 : MIN_DATA_PACKET_SIZE_V1)
+            : (isV2 ? MIN_HEADER_PACKET_SIZE_V2 : MIN_HEADER_PACKET_SIZE_V1);
+        if (length < minimumLength) {
+            rejectedAsTooShort++;
+            return false;
+        }
+        protocolVersion = version;
+        return true;
+    }
+
+    /**
+     * Like `accept(address, port, length, status)`, for a datagram from `source` that's been received into `datagram`
+     * and flipped.
+     */
+    public boolean accept(InetSocketAddress source, ByteBuffer datagram) {
+        int length = datagram.limit();
+        return accept(source.getAddress(), source.getPort(), length, length > 0 ? datagram.get(0) : 0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+            "rejected %d datagrams (%d too short, %d too long, %d from elsewhere, %d in the wrong protocol version)",
+            getRejected(), rejectedAsTooShort, rejectedAsTooLong, rejectedAsFromElsewhere, rejectedAsWrongVersion
+        );
+    }
+}
@@ -0,0 +1,138 @@
+package segmentedfilesystem;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A `ChunkStore` that writes each chunk straight to a temporary file as it arrives, at the chunk's offset in the
+ * finished file. Nothing is kept on the heap, so memory use doesn't depend on how big the file is.
+ *
+ * This relies on every chunk except the last being exactly `CHUNK_SIZE` bytes long, which the OutOfMoney.com server
+ * guarantees.
+ */
+public class DiskChunkStore implements WriteThroughChunkStore {
+    public static final int CHUNK_SIZE = 1024;
+
+    // Used to give each temporary file a different name.
+    private static final AtomicInteger tempFileCounter = new AtomicInteger();
+
+    private final Path tempFile;
+    private final FileChannel channel;
+
+    /**
+     * Make a store backed by a new temporary file in `directory`. The temporary file should be on the same file system
+     * as wherever the finished file is going, so that `moveTo()` can be a rename.
+     */
+    public DiskChunkStore(Path directory) {
+        tempFile = newTempFilePath(directory);
+        try {
+            channel = FileChannel.open(
+                tempFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE
+            );
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to create a temporary file in " + directory, e);
+        }
+    }
+
+    /**
+     * Pick a name in `directory` for a file that's being downloaded, that no other store will pick.
+     */
+    static Path newTempFilePath(Path directory) {
+        // We don't use `Files.createTempFile()`, since its files are only readable by us, and the finished file should
+        // get the same permissions as any other file we'd write.
+        String tempFileName = String.format(
+            ".segmentedfilesystem-%d-%d.part", ProcessHandle.current().pid(), tempFileCounter.incrementAndGet()
+        );
+        return directory.resolve(tempFileName);
+    }
+
+    @Override
+    public void put(int packetNumber, byte[] data) {
+        if (data.length > CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunks can't be longer than " + CHUNK_SIZE + " bytes");
+        }
+
+        var buffer = ByteBuffer.wrap(data);
+        long position = (long) packetNumber * CHUNK_SIZE;
+        try {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write to " + tempFile, e);
+        }
+    }
+
+    /**
+     * Read a chunk back from the file. Every chunk is `CHUNK_SIZE` bytes long, except the last one in the file, which
+     * runs to the end of the file.
+     */
+    @Override
+    public byte[] get(int packetNumber) {
+        long position = (long) packetNumber * CHUNK_SIZE;
+        try {
+            var buffer = ByteBuffer.allocate((int) Math.max(0, Math.min(CHUNK_SIZE, channel.size() - position)));
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position + buffer.position());
+                if (read < 0) {
+                    break;
+                }
+            }
+            return buffer.array();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read from " + tempFile, e);
+        }
+    }
+
+    @Override
+    public void setLength(long length) {
+        try {
+            // Writing the last byte gives the file its final size now, rather than growing it a chunk at a time.
+            // Anything past it is a stray chunk, numbered past the end of the file.
+            if (channel.size() > length) {
+                channel.truncate(length);
+            } else if (length > 0 && channel.size() < length) {
+                channel.write(ByteBuffer.allocate(1), length - 1);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to resize " + tempFile, e);
+        }
+    }
+
+    @Override
+    public byte[] toByteArray(int numberOfChunks) {
+        try {
+            return Files.readAllBytes(tempFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read " + tempFile, e);
+        }
+    }
+
+    @Override
+    public void moveTo(Path target) {
+        try {
+            channel.close();
+            Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to move " + tempFile + " to " + target, e);
+        }
+    }
+
+    @Override
+    public void release() {
+        try {
+            channel.close();
+            Files.deleteIfExists(tempFile);
+        } catch (IOException e) {
+            System.err.printf("Unable to clean up %s\n", tempFile);
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package segmentedfilesystem;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Downloads files from many OutOfMoney.com servers at once.
+ *
+ * Each session runs on its own virtual thread, so a session blocked waiting for a packet doesn't tie up a platform
+ * thread. Each session writes its files into its own subdirectory of the output directory, since different servers
+ * are free to send files with the same names.
+ */
+public class DownloadEngine {
+    // How many idle receive buffers to keep around for each concurrent session, in pooled mode.
+    private static final int PACKET_POOL_SLOTS_PER_SESSION = 16;
+
+    private final Path outputDirectory;
+    private final int maxConcurrentSessions;
+    private final MemoryBudget memoryBudget;
+
+    /**
+     * Whether sessions should receive into pooled buffers (see `PacketPool`).
+     */
+    private boolean pooled = false;
+    public DownloadEngine withPooledReceive(boolean pooled) {
+        this.pooled = pooled;
+        return this;
+    }
+
+    /**
+     * Whether sessions should write chunks to disk as they arrive (see `DiskChunkStore`).
+     */
+    private boolean writeThrough = false;
+    public DownloadEngine withWriteThrough(boolean writeThrough) {
+        this.writeThrough = writeThrough;
+        return this;
+    }
+
+    /**
+     * If set, sessions that aren't writing through keep chunks off the heap in slabs shared between them (see
+     * `SlabChunkStore`).
+     */
+    private SlabAllocator slabAllocator = null;
+    public DownloadEngine withOffHeap(boolean offHeap) {
+        this.slabAllocator = offHeap ? new SlabAllocator() : null;
+        return this;
+    }
+
+    /**
+     * If set, every session records how it's going here, so these are totals across all of them.
+     */
+    private TransferMetrics metrics = null;
+    public DownloadEngine withMetrics(TransferMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * How long, in milliseconds, a session can go without making progress before it's restarted (see
+     * `FileRetriever.setStallTimeoutMillis()`). 0 means never, which only makes sense if the servers are reliable.
+     */
+    private int stallTimeoutMillis = 0;
+    public DownloadEngine withStallTimeoutMillis(int stallTimeoutMillis) {
+        this.stallTimeoutMillis = stallTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * How many times to restart a stalled session before it fails.
+     */
+    private int maxRestarts = 3;
+    public DownloadEngine withMaxRestarts(int maxRestarts) {
+        this.maxRestarts = maxRestarts;
+        return this;
+    }
+
+    /**
+     * How many files each server is going to send (see `FileRetriever.setExpectedFiles()`).
+     */
+    private int expectedFiles = FileRetriever.NUMBER_OF_FILES_EXPECTED;
+    public DownloadEngine withExpectedFiles(int expectedFiles) {
+        this.expectedFiles = expectedFiles;
+        return this;
+    }
+
+    /**
+     * How long, in milliseconds, a session with nothing left to finish waits for more files before it ends (see
+     * `FileRetriever.setIdleTimeoutMillis()`). 0 turns this off.
+     */
+    private int idleTimeoutMillis = 0;
+    public DownloadEngine withIdleTimeoutMillis(int idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * The most different file IDs each session accepts packets for (see `FileRetriever.setMaxFileIds()`).
+     */
+    private int maxFileIds = 0;
+    public DownloadEngine withMaxFileIds(int maxFileIds) {
+        this.maxFileIds = maxFileIds;
+        return this;
+    }
+
+    /**
+     * Make an engine that runs at most `maxConcurrentSessions` sessions at a time, and doesn't start a new session
+     * while more than `maxInFlightBytes` of file data are being held in memory. Sessions that are already running
+     * spill chunks to disk rather than go far past that.
+     */
+    public DownloadEngine(Path outputDirectory, int maxConcurrentSessions, long maxInFlightBytes) {
+        this.outputDirectory = outputDirectory;
+        this.maxConcurrentSessions = maxConcurrentSessions;
+        this.memoryBudget = new MemoryBudget(maxInFlightBytes);
+    }
+
+    /**
+     * Download the files from every target, and return what happened to each one, in the same order as `targets`.
+     *
+     * A session that fails doesn't stop the others; its result records the error instead.
+     */
+    public List<SessionResult> downloadAll(List<DownloadTarget> targets) {
+        var sessionSlots = new Semaphore(maxConcurrentSessions);
+        PacketPool packetPool = pooled
+            ? new PacketPool(
+                PACKET_POOL_SLOTS_PER_SESSION * Math.min(maxConcurrentSessions, Math.max(targets.size(), 1)),
+                DatagramValidator.RECEIVE_BUFFER_SIZE
+            )
+            : null;
+
+        var sessions = new ArrayList<Future<SessionResult>>();
+        var threadFactory = Thread.ofVirtual().name("download-session-", 0).factory();
+        // Closing the executor waits for every session to finish.
+        try (ExecutorService executor = Executors.newThreadPerTaskExecutor(threadFactory)) {
+            for (int i = 0; i < targets.size(); i++) {
+                int index = i;
+                DownloadTarget target = targets.get(i);
+                sessions.add(executor.submit(() -> runSession(index, target, sessionSlots, packetPool)));
+            }
+        }
+
+        var results = new ArrayList<SessionResult>();
+        for (Future<SessionResult> session : sessions) {
+            results.add(session.resultNow());
+        }
+        return results;
+    }
+
+    private SessionResult runSession(int index, DownloadTarget target, Semaphore sessionSlots, PacketPool packetPool) {
+        long queuedAt = System.nanoTime();
+        try {
+            sessionSlots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new SessionResult(target, List.of(), System.nanoTime() - queuedAt, 0, e);
+        }
+
+        long startedAt = queuedAt;
+        try {
+            memoryBudget.awaitHeadroom();
+            startedAt = System.nanoTime();
+
+            Path sessionDirectory = outputDirectory.resolve(
+                String.format("%d-%s-%d", index, target.getServerName(), target.getPort())
+            );
+            Files.createDirectories(sessionDirectory);
+
+            var outOfMoneyApiService = packetPool != null
+                ? new OutOfMoneyApiService(packetPool)
+                : new OutOfMoneyApiService();
+            // A silent server only counts as stalled (or idle) if waiting for a packet can time out.
+            outOfMoneyApiService.setReceiveTimeout(Utils.shortestTimeout(stallTimeoutMillis, idleTimeoutMillis));
+            var fileWriterService = new FileWriterService(sessionDirectory)
+                .withWriteThrough(writeThrough)
+                .withSlabAllocator(slabAllocator);
+            var fileRetriever = new FileRetriever(outOfMoneyApiService, fileWriterService)
+                .withStallTimeoutMillis(stallTimeoutMillis)
+                .withMaxRestarts(maxRestarts)
+                .withExpectedFiles(expectedFiles)
+                .withIdleTimeoutMillis(idleTimeoutMillis)
+                .withMaxFileIds(maxFileIds)
+                .withMetrics(metrics);
+            fileRetriever.setMemoryBudget(memoryBudget);
+
+            List<String> filenames = fileRetriever.retrieveFiles(target.getServerName(), target.getPort());
+            return new SessionResult(target, filenames, startedAt - queuedAt, System.nanoTime() - startedAt, null);
+        } catch (IOException | RuntimeException e) {
+            return new SessionResult(target, List.of(), startedAt - queuedAt, System.nanoTime() - startedAt, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new SessionResult(target, List.of(), System.nanoTime() - queuedAt, 0, e);
+        } finally {
+            sessionSlots.release();
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package segmentedfilesystem;
+
+import java.io.IOException;
+
+/**
+ * Thrown when we give up on a session before every file is complete, because the server stopped sending us anything
+ * new and restarting the session didn't help. The loss report says exactly which chunks we never got.
+ */
+public class DownloadIncompleteException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    // Loss reports aren't serializable, and only mean anything in the process that made them.
+    private final transient LossReport lossReport;
+    public LossReport getLossReport() {
+        return lossReport;
+    }
+
+    public DownloadIncompleteException(String message, LossReport lossReport) {
+        super(message + ": " + lossReport);
+        this.lossReport = lossReport;
+    }
+}
@@ -0,0 +1,163 @@
+package segmentedfilesystem;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * The directory where a download keeps a `ChunkJournal` for each file it's working on, so that if the client dies, the
+ * next run can `recover()` what it had and only needs the chunks it was missing.
+ *
+ * Journals go in a hidden subdirectory of the directory the files are being written to. A file's journal is deleted
+ * once the file's been written, and the subdirectory once it's empty; anything left over belongs to a download that
+ * didn't finish.
+ */
+public class DownloadJournal {
+    private static final String DIRECTORY_NAME = ".segmentedfilesystem-journal";
+
+    private final Path directory;
+
+    /**
+     * Keep journals for files being downloaded into `outputDirectory`.
+     */
+    public DownloadJournal(Path outputDirectory) {
+        this.directory = outputDirectory.resolve(DIRECTORY_NAME);
+    }
+
+    /**
+     * Start a journal for a new file.
+     */
+    public ChunkJournal open() {
+        while (true) {
+            try {
+                Files.createDirectories(directory);
+                Path journalPath = Files.createTempFile(directory, "file-", ChunkJournal.JOURNAL_SUFFIX);
+                return new ChunkJournal(journalPath, 0);
+            } catch (NoSuchFileException e) {
+                // Another file's journal was deleted in between, and took the empty directory with it; make it again.
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to create a journal in " + directory, e);
+            }
+        }
+    }
+
+    /**
+     * Read back every file an earlier run journaled, keyed by filename, with its chunks in stores from
+     * `fileWriterService`. Each one carries on journaling where it left off.
+     *
+     * Journals we can't use are deleted: ones whose file never got a name (so we can't match it up with anything the
+     * server sends), and ones that are missing chunks their checkpoint says they had.
+     */
+    public Map<String, PartialFile> recover(FileWriterService fileWriterService) {
+        var recovered = new LinkedHashMap<String, PartialFile>();
+        if (!Files.isDirectory(directory)) {
+            return recovered;
+        }
+
+        List<Path> journalPaths;
+        try (Stream<Path> paths = Files.list(directory)) {
+            journalPaths = new ArrayList<>(
+                paths.filter(path -> path.getFileName().toString().endsWith(ChunkJournal.JOURNAL_SUFFIX)).toList()
+            );
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to list the journals in " + directory, e);
+        }
+        journalPaths.sort(null);
+
+        for (Path journalPath : journalPaths) {
+            PartialFile partialFile = recover(journalPath, fileWriterService);
+            if (partialFile == null) {
+                continue;
+            }
+            PartialFile sameFile = recovered.get(partialFile.getFilename());
+            if (sameFile != null) {
+                // Two runs both got part of this file; put them together, which deletes the second journal.
+                sameFile.mergeFrom(partialFile);
+            } else {
+                recovered.put(partialFile.getFilename(), partialFile);
+            }
+        }
+        if (recovered.isEmpty()) {
+            deleteIfEmpty(directory);
+        }
+        return recovered;
+    }
+
+    private PartialFile recover(Path journalPath, FileWriterService fileWriterService) {
+        ChunkJournal.Checkpoint checkpoint = ChunkJournal.Checkpoint.read(journalPath);
+        if (checkpoint == null || checkpoint.filename == null) {
+            deleteJournal(journalPath);
+            return null;
+        }
+
+        var partialFile = new PartialFile(fileWriterService.newChunkStore()).withFilename(checkpoint.filename);
+        if (checkpoint.numberOfChunks >= 0) {
+            partialFile.setNumberOfChunks(checkpoint.numberOfChunks);
+        }
+        long validLength;
+        try (var reader = new ChunkJournal.Reader(journalPath)) {
+            while (reader.next()) {
+                partialFile.addChunk(reader.packetNumber, reader.data);
+            }
+            validLength = reader.getValidLength();
+        } catch (IOException e) {
+            System.err.printf("Unable to read the journal %s\n", journalPath);
+            e.printStackTrace();
+            partialFile.release();
+            return null;
+        }
+
+        if (validLength < checkpoint.journalLength || !hasEveryChunk(partialFile, checkpoint.received)) {
+            System.err.printf("The journal for %s is damaged, so it will be downloaded again\n", checkpoint.filename);
+            partialFile.release();
+            deleteJournal(journalPath);
+            return null;
+        }
+
+        partialFile.setJournal(new ChunkJournal(journalPath, validLength));
+        return partialFile;
+    }
+
+    private static boolean hasEveryChunk(PartialFile partialFile, long[] received) {
+        for (int word = 0; word < received.length; word++) {
+            for (long bits = received[word]; bits != 0; bits &= bits - 1) {
+                if (!partialFile.hasChunk(64 * word + Long.numberOfTrailingZeros(bits))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Delete `directory` if there's nothing left in it. If there is, or it's already gone, leave it be.
+     */
+    static void deleteIfEmpty(Path directory) {
+        try {
+            Files.deleteIfExists(directory);
+        } catch (DirectoryNotEmptyException e) {
+            // Other files are still being journaled.
+        } catch (IOException e) {
+            System.err.printf("Unable to clean up the journal directory %s\n", directory);
+            e.printStackTrace();
+        }
+    }
+
+    private static void deleteJournal(Path journalPath) {
+        try {
+            Files.deleteIfExists(ChunkJournal.checkpointPathFor(journalPath));
+            Files.deleteIfExists(journalPath);
+        } catch (IOException e) {
+            System.err.printf("Unable to clean up the journal %s\n", journalPath);
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package segmentedfilesystem;
+
+/**
+ * An OutOfMoney.com server to download files from.
+ */
+public class DownloadTarget {
+    private final String serverName;
+    public String getServerName() {
+        return serverName;
+    }
+
+    private final int port;
+    public int getPort() {
+        return port;
+    }
+
+    public DownloadTarget(String serverName, int port) {
+        this.serverName = serverName;
+        this.port = port;
+    }
+
+    /**
+     * Parse a target written as `serverName:port`.
+     */
+    public static DownloadTarget parse(String target) {
+        int colon = target.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Expected serverName:port, but got " + target);
+        }
+        return new DownloadTarget(target.substring(0, colon), Integer.parseInt(target.substring(colon + 1)));
+    }
+
+    @Override
+    public String toString() {
+        return serverName + ":" + port;
+    }
+}
@@ -1,10 +1,12 @@
 package segmentedfilesystem;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
 
-import segmentedfilesystem.model.OutOfMoneyDataPacket;
-import segmentedfilesystem.model.OutOfMoneyHeaderPacket;
+import segmentedfilesystem.model.ChunkEvent;
 import segmentedfilesystem.model.OutOfMoneyPacket;
 
 /**
@@ -13,70 +15,321 @@ import segmentedfilesystem.model.OutOfMoneyPacket;
 public class FileRetriever {
     public static final int NUMBER_OF_FILES_EXPECTED = 3;
 
-    OutOfMoneyApiService outOfMoneyApiService;
+    // The most packets we'll take from the packet source in one go.
+    private static final int MAX_BATCH_SIZE = 64;
+
+    PacketSource packetSource;
     FileWriterService fileWriterService;
 
+    /**
+     * How many files the server is going to send us. The session ends as soon as that many are complete. 0 means we
+     * don't know, in which case there needs to be an idle timeout.
+     */
+    private int expectedFiles = NUMBER_OF_FILES_EXPECTED;
+    public int getExpectedFiles() {
+        return expectedFiles;
+    }
+    public void setExpectedFiles(int expectedFiles) {
+        this.expectedFiles = expectedFiles;
+    }
+    public FileRetriever withExpectedFiles(int expectedFiles) {
+        setExpectedFiles(expectedFiles);
+        return this;
+    }
+
+    /**
+     * The most different file IDs to accept packets for in one session (see `Reassembler.setMaxFileIds()`), or 0 for
+     * no limit beyond what fits in the protocol's file IDs.
+     */
+    private int maxFileIds = 0;
+    public int getMaxFileIds() {
+        return maxFileIds;
+    }
+    public void setMaxFileIds(int maxFileIds) {
+        this.maxFileIds = maxFileIds;
+    }
+    public FileRetriever withMaxFileIds(int maxFileIds) {
+        setMaxFileIds(maxFileIds);
+        return this;
+    }
+
+    /**
+     * If every file we've heard about is complete and nothing new arrives for this long, in milliseconds, the session
+     * is over, however many files we were expecting. 0 turns this rule off. Like the stall timeout, this relies on the
+     * packet source having a receive timeout.
+     */
+    private long idleTimeoutMillis = 0;
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+    public FileRetriever withIdleTimeoutMillis(long idleTimeoutMillis) {
+        setIdleTimeoutMillis(idleTimeoutMillis);
+        return this;
+    }
+
+    /**
+     * Called with each file's name as soon as that file has been written (or handed to a writer that works in the
+     * background), which may be well before the others are.
+     */
+    private Consumer<String> completionListener = null;
+    public void setCompletionListener(Consumer<String> completionListener) {
+        this.completionListener = completionListener;
+    }
+    public FileRetriever withCompletionListener(Consumer<String> completionListener) {
+        setCompletionListener(completionListener);
+        return this;
+    }
+
+    /**
+     * Called with every new chunk as it arrives, and whenever a file gets its name or is finished, on the thread
+     * that's receiving (see `Reassembler`). Pass a `ChunkPublisher` to hand them on to `Flow` subscribers.
+     */
+    private Consumer<ChunkEvent> chunkListener = null;
+    public void setChunkListener(Consumer<ChunkEvent> chunkListener) {
+        this.chunkListener = chunkListener;
+    }
+    public FileRetriever withChunkListener(Consumer<ChunkEvent> chunkListener) {
+        setChunkListener(chunkListener);
+        return this;
+    }
+
+    /**
+     * If set, every chunk we hold in memory is counted against this budget until its file has been written, and once
+     * the budget's exceeded, chunks are spilled to disk (see `Reassembler`).
+     */
+    private MemoryBudget memoryBudget = null;
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * If set, files are journaled as they arrive, and anything journaled by an earlier run that didn't finish is
+     * picked up again, so only the chunks it was missing need to arrive (see `DownloadJournal`).
+     */
+    private DownloadJournal journal = null;
+    public void setJournal(DownloadJournal journal) {
+        this.journal = journal;
+    }
+    public FileRetriever withJournal(DownloadJournal journal) {
+        setJournal(journal);
+        return this;
+    }
+
+    /**
+     * If set, how the transfer is going is recorded here (see `TransferMetrics`).
+     */
+    private TransferMetrics metrics = null;
+    public void setMetrics(TransferMetrics metrics) {
+        this.metrics = metrics;
+    }
+    public FileRetriever withMetrics(TransferMetrics metrics) {
+        setMetrics(metrics);
+        return this;
+    }
+
+    /**
+     * If we go this long without getting a chunk we didn't already have, in milliseconds, we assume the session has
+     * stalled (the server stopped, or is only resending what we've got) and restart it. 0 means never give up.
+     *
+     * A server that goes completely silent is only noticed if the packet source has a receive timeout too, so that
+     * `getPackets()` comes back with a `SocketTimeoutException` rather than waiting forever.
+     */
+    private long stallTimeoutMillis = 0;
+    public long getStallTimeoutMillis() {
+        return stallTimeoutMillis;
+    }
+    public void setStallTimeoutMillis(long stallTimeoutMillis) {
+        this.stallTimeoutMillis = stallTimeoutMillis;
+    }
+    public FileRetriever withStallTimeoutMillis(long stallTimeoutMillis) {
+        setStallTimeoutMillis(stallTimeoutMillis);
+        return this;
+    }
+
+    /**
+     * How many times to restart a stalled session before giving up with a `DownloadIncompleteException`.
+     */
+    private int maxRestarts = 3;
+    public int getMaxRestarts() {
+        return maxRestarts;
+    }
+    public void setMaxRestarts(int maxRestarts) {
+        this.maxRestarts = maxRestarts;
+    }
+    public FileRetriever withMaxRestarts(int maxRestarts) {
+        setMaxRestarts(maxRestarts);
+        return this;
+    }
+
+    // The session currently in progress (or the last one, if none is), and the kernel's UDP counters when it started.
+    // These are only kept around for `getLossReport()`.
+    private volatile Reassembler reassembler = null;
+    private volatile KernelUdpCounters kernelCountersAtStart = null;
+
     // We're using a dependency-injection style, to make unit tests easier.
-    public FileRetriever(OutOfMoneyApiService outOfMoneyApiService, FileWriterService fileWriterService) {
-        this.outOfMoneyApiService = outOfMoneyApiService;
+    public FileRetriever(PacketSource packetSource, FileWriterService fileWriterService) {
+        this.packetSource = packetSource;
         this.fileWriterService = fileWriterService;
     }
 
+    /**
+     * Download every file from the server and write them to disk. If that fails (we can't contact the server, the
+     * session keeps stalling, or the files can't be written), say why and exit.
+     */
     public void downloadFiles(String serverName, int port) {
-        // A map from file IDs to partial files (which we'll append to until they're complete).
-        var downloadingFiles = new HashMap<Byte, PartialFile>();
-
         try {
-            outOfMoneyApiService.startInteraction(serverName, port);
+            retrieveFiles(serverName, port);
+        } catch (DownloadIncompleteException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
         } catch (IOException e) {
-            System.err.printf("Cannot contact %s:%d\n", serverName, port);
+            System.err.printf("Downloading from %s:%d failed\n", serverName, port);
             e.printStackTrace();
             System.exit(1);
         }
+    }
 
-        // Keep reading packets until we have all the files, and they're complete.
-        while (
-            downloadingFiles.size() < NUMBER_OF_FILES_EXPECTED
-            || downloadingFiles.values().stream().anyMatch(pf -> !pf.isComplete())
-        ) {
-            OutOfMoneyPacket packet;
-            try {
-                packet = outOfMoneyApiService.getPacket();
-            } catch (IOException e) {
-                System.err.println("I/O exception when reading a packet:");
-                e.printStackTrace();
-                continue;
-            }
+    /**
+     * Download every file from the server, writing each one to disk as soon as it's complete, and return their names
+     * in the order they finished.
+     *
+     * Throws an `IOException` if we can't contact the server, or a `DownloadIncompleteException` if the session keeps
+     * stalling. In that case the files we did finish are still written: if the file writer works in the background,
+     * this waits for it, and throws an `IOException` if it couldn't write them.
+     */
+    public List<String> retrieveFiles(String serverName, int port) throws IOException {
+        if (expectedFiles <= 0 && idleTimeoutMillis <= 0) {
+            throw new IllegalStateException("Without an expected number of files, there must be an idle timeout");
+        }
+        var reassembler = new Reassembler(fileWriterService, memoryBudget);
+        reassembler.setCompletionListener(completionListener);
+        reassembler.setChunkListener(chunkListener);
+        reassembler.setMetrics(metrics);
+        if (maxFileIds > 0) {
+            reassembler.setMaxFileIds(maxFileIds);
+        }
+        if (journal != null) {
+            reassembler.setJournal(journal);
+            reassembler.resume(journal.recover(fileWriterService));
+        }
+        this.reassembler = reassembler;
+        this.kernelCountersAtStart = KernelUdpCounters.read();
+        var batch = new ArrayList<OutOfMoneyPacket>(MAX_BATCH_SIZE);
 
-            byte fileId = packet.getFileId();
-            if (!downloadingFiles.containsKey(fileId)) {
-                downloadingFiles.put(fileId, new PartialFile());
-            }
+        packetSource.startInteraction(serverName, port);
+        try {
+            long lastProgressNanos = System.nanoTime();
+            int restarts = 0;
+            // Keep reading packets until we have all the files, and they're complete.
+            while (!isFinished(reassembler, lastProgressNanos)) {
+                batch.clear();
+                try {
+                    packetSource.getPackets(batch, MAX_BATCH_SIZE);
+                } catch (SocketTimeoutException e) {
+                    // Nothing arrived; fall through to the stall check.
+                } catch (IOException e) {
+                    // The packets that arrived before the error are still good, so they're handled as usual.
+                    System.err.println("I/O exception when reading a packet:");
+                    e.printStackTrace();
+                }
 
-            PartialFile partialFile = downloadingFiles.get(fileId);
-            if (packet.isHeaderPacket()) {
-                var headerPacket = (OutOfMoneyHeaderPacket) packet;
-                // Print some diagnostic output, just to make it clear that the process isn't hanging.
-                System.out.printf("Downloading file %s...\n", headerPacket.getFilename());
-                addHeaderToFile(partialFile, headerPacket);
-            } else {
-                addDataToFile(partialFile, (OutOfMoneyDataPacket) packet);
+                for (OutOfMoneyPacket packet : batch) {
+                    try {
+                        // Packets for files we've already written are ignored by the reassembler.
+                        if (reassembler.accept(packet)) {
+                            lastProgressNanos = System.nanoTime();
+                        }
+                    } finally {
+                        // We've copied everything we need out of the packet, so its buffer (if it has one) can be
+                        // reused.
+                        packet.release();
+                    }
+                }
+
+                // If everything we've heard of is complete and we're just waiting to see if there's more, that's not a
+                // stall.
+                boolean waitingOutIdleTimeout = idleTimeoutMillis > 0 && reassembler.isDone(1);
+                if (stallTimeoutMillis > 0 && !waitingOutIdleTimeout && !isFinished(reassembler, lastProgressNanos)
+                        && System.nanoTime() - lastProgressNanos > stallTimeoutMillis * 1_000_000) {
+                    if (restarts == maxRestarts) {
+                        throw new DownloadIncompleteException(
+                            String.format(
+                                "Gave up after %d restarts, having finished %s",
+                                restarts, reassembler.getCompletedFilenames()
+                            ),
+                            getLossReport()
+                        );
+                    }
+                    restarts++;
+                    System.err.printf(
+                        "Nothing new for %d ms; restarting the session (%d of %d)\n",
+                        stallTimeoutMillis, restarts, maxRestarts
+                    );
+                    packetSource.endInteraction();
+                    reassembler.restart();
+                    packetSource.startInteraction(serverName, port);
+                    lastProgressNanos = System.nanoTime();
+                }
             }
+
+            return reassembler.getCompletedFilenames();
+        } finally {
+            packetSource.endInteraction();
+            reassembler.releaseMemory();
+            fileWriterService.flush();
         }
+    }
 
-        for (PartialFile pf : downloadingFiles.values()) {
-            fileWriterService.createFileInWorkingDirectory(pf.toFile());
+    /**
+     * Return whether the session is over: either every file we expected is complete, or every file we've heard of is
+     * complete and we've been idle for long enough.
+     */
+    private boolean isFinished(Reassembler reassembler, long lastProgressNanos) {
+        if (expectedFiles > 0 && reassembler.isDone(expectedFiles)) {
+            return true;
         }
+        return idleTimeoutMillis > 0
+            && reassembler.isDone(1)
+            && System.nanoTime() - lastProgressNanos > idleTimeoutMillis * 1_000_000;
     }
 
-    private void addHeaderToFile(PartialFile partialFile, OutOfMoneyHeaderPacket headerPacket) {
-        partialFile.setFilename(headerPacket.getFilename());
+    /**
+     * How many packets the current (or most recent) session dropped for having one file ID too many.
+     */
+    public long getPacketsOverFileIdLimit() {
+        Reassembler currentReassembler = reassembler;
+        return currentReassembler != null ? currentReassembler.getPacketsOverFileIdLimit() : 0;
     }
 
-    private void addDataToFile(PartialFile partialFile, OutOfMoneyDataPacket dataPacket) {
-        partialFile.addChunk(dataPacket.getPacketNumber(), dataPacket.getContents());
-        if (dataPacket.isFinalPacket()) {
-            partialFile.setNumberOfChunks(dataPacket.getPacketNumber() + 1);
+    /**
+     * How many data packets the current (or most recent) session dropped for being numbered past the end of any file
+     * we could hold.
+     */
+    public long getPacketsOutOfRange() {
+        Reassembler currentReassembler = reassembler;
+        return currentReassembler != null ? currentReassembler.getPacketsOutOfRange() : 0;
+    }
+
+    /**
+     * Describe what's still missing from the current (or most recent) session, and how many datagrams the kernel has
+     * dropped since it started. This can be called from another thread while a download is running, for example when
+     * someone gives up on a stuck download; the report is then a best-effort snapshot.
+     */
+    public LossReport getLossReport() {
+        Reassembler currentReassembler = reassembler;
+        if (currentReassembler == null) {
+            // We haven't started yet, so nothing's missing.
+            return new LossReport(List.of(), null);
         }
+
+        KernelUdpCounters countersAtStart = kernelCountersAtStart;
+        KernelUdpCounters countersNow = KernelUdpCounters.read();
+        KernelUdpCounters kernelCounters = countersAtStart != null && countersNow != null
+            ? countersNow.since(countersAtStart)
+            : null;
+        return new LossReport(currentReassembler.describeGaps(), kernelCounters);
     }
 }
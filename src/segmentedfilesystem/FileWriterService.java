@@ -2,19 +2,232 @@ package segmentedfilesystem;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32C;
+import java.util.zip.GZIPInputStream;
 
 import segmentedfilesystem.model.File;
 
 /**
  * A small class that knows how to write files to disk.
+ *
+ * Files go in the working directory, unless you give the constructor a different directory to use.
  */
 public class FileWriterService {
+    private final Path directory;
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public FileWriterService() {
+        this(Path.of("."));
+    }
+
+    public FileWriterService(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Whether to write chunks to disk as they arrive, instead of holding each file in memory until it's complete.
+     */
+    private boolean writeThrough = false;
+    public void setWriteThrough(boolean writeThrough) {
+        this.writeThrough = writeThrough;
+    }
+    public FileWriterService withWriteThrough(boolean writeThrough) {
+        setWriteThrough(writeThrough);
+        return this;
+    }
+
+    /**
+     * If this is more than 0, and we're not writing through, each file is written out in order as it arrives, with at
+     * most this many chunks ahead of a gap held in memory, and `streamingOverflowPolicy` deciding what happens to any
+     * further ahead than that (see `StreamingChunkStore`).
+     */
+    private int streamingReorderWindow = 0;
+    private StreamingChunkStore.OverflowPolicy streamingOverflowPolicy = null;
+    public void setStreaming(int reorderWindow, StreamingChunkStore.OverflowPolicy overflowPolicy) {
+        this.streamingReorderWindow = reorderWindow;
+        this.streamingOverflowPolicy = overflowPolicy;
+    }
+    public FileWriterService withStreaming(int reorderWindow, StreamingChunkStore.OverflowPolicy overflowPolicy) {
+        setStreaming(reorderWindow, overflowPolicy);
+        return this;
+    }
+
+    /**
+     * If set, and we're not writing through or streaming, chunks are kept off the heap in slabs from this allocator
+     * (see `SlabChunkStore`) rather than in arrays of their own.
+     */
+    private SlabAllocator slabAllocator = null;
+    public void setSlabAllocator(SlabAllocator slabAllocator) {
+        this.slabAllocator = slabAllocator;
+    }
+    public FileWriterService withSlabAllocator(SlabAllocator slabAllocator) {
+        setSlabAllocator(slabAllocator);
+        return this;
+    }
+
+    /**
+     * Whether to read each file back after writing it, and check that its CRC32C matches what we received.
+     */
+    private boolean verifyOnWrite = false;
+    public boolean isVerifyOnWrite() {
+        return verifyOnWrite;
+    }
+    public void setVerifyOnWrite(boolean verifyOnWrite) {
+        this.verifyOnWrite = verifyOnWrite;
+    }
+    public FileWriterService withVerifyOnWrite(boolean verifyOnWrite) {
+        setVerifyOnWrite(verifyOnWrite);
+        return this;
+    }
+
+    /**
+     * If set, files are written gzipped, as `<name>.gz`, with blocks of each one compressed in parallel on this
+     * executor (see `ParallelGzipOutputStream`).
+     */
+    private Executor compressionExecutor = null;
+    public Executor getCompressionExecutor() {
+        return compressionExecutor;
+    }
+    public void setCompressionExecutor(Executor compressionExecutor) {
+        this.compressionExecutor = compressionExecutor;
+    }
+    public FileWriterService withCompressionExecutor(Executor compressionExecutor) {
+        setCompressionExecutor(compressionExecutor);
+        return this;
+    }
+
+    /**
+     * Make somewhere to keep the chunks of a new file while it's downloading.
+     */
+    public ChunkStore newChunkStore() {
+        if (writeThrough) {
+            return new DiskChunkStore(directory);
+        }
+        if (streamingReorderWindow > 0) {
+            return new StreamingChunkStore(directory, streamingReorderWindow, streamingOverflowPolicy);
+        }
+        return slabAllocator != null ? new SlabChunkStore(slabAllocator) : new HeapChunkStore();
+    }
+
+    /**
+     * Write a complete `PartialFile` to disk. Written-through files are already on disk, so they just get renamed (and
+     * then compressed, if we're compressing). Files we're compressing are fed to the compressor a chunk at a time,
+     * rather than being put together first.
+     */
+    public void writeCompletedFile(PartialFile partialFile) {
+        if (!partialFile.isWriteThrough()) {
+            if (compressionExecutor == null) {
+                createFileInWorkingDirectory(partialFile.toFile());
+                return;
+            }
+            try (var outputStream = newCompressedOutputStream(partialFile.getFilename())) {
+                partialFile.writeTo(outputStream);
+            } catch (IOException e) {
+                System.err.printf("Unable to write to file %s\n", partialFile.getFilename());
+                e.printStackTrace();
+                return;
+            }
+            if (verifyOnWrite) {
+                verify(partialFile.getFilename(), partialFile.getChecksum());
+            }
+            return;
+        }
+
+        try {
+            partialFile.moveTo(directory);
+        } catch (UncheckedIOException e) {
+            System.err.println("Unable to move a downloaded file into place");
+            e.printStackTrace();
+            return;
+        }
+        if (compressionExecutor != null) {
+            Path path = directory.resolve(partialFile.getFilename());
+            try (var outputStream = newCompressedOutputStream(partialFile.getFilename())) {
+                Files.copy(path, outputStream);
+                Files.delete(path);
+            } catch (IOException e) {
+                System.err.printf("Unable to compress file %s\n", partialFile.getFilename());
+                e.printStackTrace();
+                return;
+            }
+        }
+        if (verifyOnWrite) {
+            verify(partialFile.getFilename(), partialFile.getChecksum());
+        }
+    }
+
     public void createFileInWorkingDirectory(File file) {
-        try (var outputStream = new FileOutputStream(file.getName())) {
+        try (var outputStream = compressionExecutor != null
+                ? newCompressedOutputStream(file.getName())
+                : new FileOutputStream(directory.resolve(file.getName()).toFile())) {
             outputStream.write(file.getData());
         } catch (IOException e) {
             System.err.printf("Unable to write to file %s\n", file.getName());
             e.printStackTrace();
+            return;
+        }
+        if (verifyOnWrite) {
+            verify(file.getName(), file.getChecksum());
+        }
+    }
+
+    /**
+     * Wait until every file we've been given is on disk, and throw an `IOException` if any of them couldn't be
+     * written. This class writes files as it's given them, so there's never anything to wait for; see
+     * `AsyncFileWriterService`.
+     */
+    public void flush() throws IOException {
+    }
+
+    /**
+     * Where `filename` ends up on disk: in our directory, with `.gz` on the end if we're compressing.
+     */
+    public Path outputPathFor(String filename) {
+        return directory.resolve(compressionExecutor != null ? filename + ".gz" : filename);
+    }
+
+    /**
+     * Open a stream that gzips what's written to it into `filename`'s output path.
+     */
+    OutputStream newCompressedOutputStream(String filename) throws IOException {
+        return new ParallelGzipOutputStream(Files.newOutputStream(outputPathFor(filename)), compressionExecutor);
+    }
+
+    /**
+     * Read `filename` back from disk (decompressing it, if we're compressing), and return whether its CRC32C is
+     * `expectedChecksum`. If it isn't, or we can't read it, say so.
+     */
+    boolean verify(String filename, long expectedChecksum) {
+        var crc = new CRC32C();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream inputStream = compressionExecutor != null
+                ? new GZIPInputStream(Files.newInputStream(outputPathFor(filename)), buffer.length)
+                : Files.newInputStream(directory.resolve(filename))) {
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            System.err.printf("Unable to read back file %s\n", filename);
+            e.printStackTrace();
+            return false;
+        }
+
+        if (crc.getValue() != expectedChecksum) {
+            System.err.printf(
+                "File %s is corrupt on disk: its CRC32C is %08x, but we received %08x\n",
+                filename, crc.getValue(), expectedChecksum
+            );
+            return false;
         }
+        return true;
     }
 }
@@ -0,0 +1,115 @@
+package segmentedfilesystem;
+
+import java.util.Arrays;
+
+/**
+ * A `ChunkStore` that keeps every chunk on the heap, in an array indexed by packet number.
+ *
+ * When memory is tight, the chunks can be moved out to a `SpillFile` with `spill()`. They're read back one at a time
+ * when they're asked for, or all together when the file is put together.
+ */
+public class HeapChunkStore implements ChunkStore {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final long NOT_SPILLED = -1;
+
+    // Slots we haven't received yet, or have spilled, are `null`. The array grows as higher-numbered packets arrive.
+    private byte[][] chunks = new byte[INITIAL_CAPACITY][];
+
+    // Where each spilled chunk is in `spillFile`, and how long it is. These are only allocated the first time we spill.
+    private SpillFile spillFile = null;
+    private long[] spilledOffsets = null;
+    private int[] spilledLengths = null;
+
+    @Override
+    public void put(int packetNumber, byte[] data) {
+        if (packetNumber >= chunks.length) {
+            chunks = Arrays.copyOf(chunks, Math.max(packetNumber + 1, 2 * chunks.length));
+        }
+        chunks[packetNumber] = data;
+        if (isSpilled(packetNumber)) {
+            spilledOffsets[packetNumber] = NOT_SPILLED;
+        }
+    }
+
+    @Override
+    public byte[] get(int packetNumber) {
+        if (isSpilled(packetNumber)) {
+            byte[] data = new byte[spilledLengths[packetNumber]];
+            spillFile.read(spilledOffsets[packetNumber], data, 0, data.length);
+            return data;
+        }
+        return chunks[packetNumber];
+    }
+
+    @Override
+    public byte[] toByteArray(int numberOfChunks) {
+        if (spillFile == null) {
+            return Utils.flatten(chunks, numberOfChunks);
+        }
+
+        // Read the spilled chunks straight into place, rather than into chunks of their own first.
+        long totalLength = 0;
+        for (int i = 0; i < numberOfChunks; i++) {
+            totalLength += isSpilled(i) ? spilledLengths[i] : chunks[i].length;
+        }
+        byte[] allBytes = new byte[Math.toIntExact(totalLength)];
+        int offset = 0;
+        for (int i = 0; i < numberOfChunks; i++) {
+            if (isSpilled(i)) {
+                spillFile.read(spilledOffsets[i], allBytes, offset, spilledLengths[i]);
+                offset += spilledLengths[i];
+            } else {
+                System.arraycopy(chunks[i], 0, allBytes, offset, chunks[i].length);
+                offset += chunks[i].length;
+            }
+        }
+        return allBytes;
+    }
+
+    /**
+     * Chunks that arrive after this stay in memory until the next time we spill. A store only ever spills to one file,
+     * which it doesn't own: whoever made the file should close it once the store has been released.
+     */
+    @Override
+    public long spill(SpillFile spillFile) {
+        if (this.spillFile == null) {
+            this.spillFile = spillFile;
+            spilledOffsets = new long[chunks.length];
+            Arrays.fill(spilledOffsets, NOT_SPILLED);
+            spilledLengths = new int[chunks.length];
+        } else if (this.spillFile != spillFile) {
+            throw new IllegalStateException("A chunk store can only spill to one file");
+        }
+        if (spilledOffsets.length < chunks.length) {
+            int oldLength = spilledOffsets.length;
+            spilledOffsets = Arrays.copyOf(spilledOffsets, chunks.length);
+            Arrays.fill(spilledOffsets, oldLength, chunks.length, NOT_SPILLED);
+            spilledLengths = Arrays.copyOf(spilledLengths, chunks.length);
+        }
+
+        long freed = 0;
+        for (int i = 0; i < chunks.length; i++) {
+            byte[] chunk = chunks[i];
+            if (chunk != null) {
+                spilledOffsets[i] = spillFile.write(chunk);
+                spilledLengths[i] = chunk.length;
+                chunks[i] = null;
+                freed += chunk.length;
+            }
+        }
+        return freed;
+    }
+
+    @Override
+    public void release() {
+        chunks = null;
+        spilledOffsets = null;
+        spilledLengths = null;
+        spillFile = null;
+    }
+
+    private boolean isSpilled(int packetNumber) {
+        return spilledOffsets != null && packetNumber < spilledOffsets.length
+            && spilledOffsets[packetNumber] != NOT_SPILLED;
+    }
+}
@@ -0,0 +1,73 @@
+package segmentedfilesystem;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * A snapshot of the kernel's system-wide UDP counters, as reported in Linux's `/proc/net/snmp`.
+ *
+ * `RcvbufErrors` counts datagrams the kernel threw away because some socket's receive buffer was full, which is
+ * exactly the kind of loss a bigger `SO_RCVBUF` or a faster receive loop fixes. The counters cover every UDP socket on
+ * the machine, not just ours, so a difference between two snapshots is an upper bound on what we lost.
+ */
+public class KernelUdpCounters {
+    private static final Path SNMP_FILE = Path.of("/proc/net/snmp");
+
+    private final long inErrors;
+    public long getInErrors() {
+        return inErrors;
+    }
+
+    private final long receiveBufferErrors;
+    public long getReceiveBufferErrors() {
+        return receiveBufferErrors;
+    }
+
+    public KernelUdpCounters(long inErrors, long receiveBufferErrors) {
+        this.inErrors = inErrors;
+        this.receiveBufferErrors = receiveBufferErrors;
+    }
+
+    /**
+     * Read the current counters, or return `null` if this system doesn't expose them.
+     */
+    public static KernelUdpCounters read() {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(SNMP_FILE);
+        } catch (IOException e) {
+            return null;
+        }
+
+        // The file has a line of column names starting with "Udp:", followed by a line of values starting with "Udp:".
+        for (int i = 0; i + 1 < lines.size(); i++) {
+            if (lines.get(i).startsWith("Udp:") && lines.get(i + 1).startsWith("Udp:")) {
+                List<String> names = List.of(lines.get(i).trim().split("\\s+"));
+                String[] values = lines.get(i + 1).trim().split("\\s+");
+                int inErrorsColumn = names.indexOf("InErrors");
+                int receiveBufferErrorsColumn = names.indexOf("RcvbufErrors");
+                if (inErrorsColumn < 0 || receiveBufferErrorsColumn < 0) {
+                    return null;
+                }
+                return new KernelUdpCounters(
+                    Long.parseLong(values[inErrorsColumn]), Long.parseLong(values[receiveBufferErrorsColumn])
+                );
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return how much each counter has gone up between `earlier` and this snapshot.
+     */
+    public KernelUdpCounters since(KernelUdpCounters earlier) {
+        return new KernelUdpCounters(inErrors - earlier.inErrors, receiveBufferErrors - earlier.receiveBufferErrors);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d UDP receive errors, %d dropped for lack of buffer space", inErrors, receiveBufferErrors);
+    }
+}
@@ -0,0 +1,78 @@
+package segmentedfilesystem;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative `long` values, with one bucket per power of two. Bucket `k` counts the values whose
+ * highest set bit is bit `k - 1`, and bucket 0 counts zeroes.
+ *
+ * Recording a value is a handful of atomic adds, with no allocation and no locks, so it's cheap enough to do for every
+ * packet, from any number of threads. Percentiles are only accurate to within a factor of two, which is plenty for
+ * seeing whether a latency is microseconds or milliseconds.
+ */
+public class Log2Histogram {
+    private static final int BUCKETS = 65;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a value. Negative values are recorded as 0.
+     */
+    public void record(long value) {
+        long clamped = Math.max(0, value);
+        counts.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(clamped));
+        count.incrementAndGet();
+        sum.addAndGet(clamped);
+        long currentMax;
+        while (clamped > (currentMax = max.get()) && !max.compareAndSet(currentMax, clamped)) {
+            // Someone else raised the maximum at the same time; try again.
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * Return an upper bound on the `percentile`th percentile (between 0 and 100) of the values recorded so far: the
+     * top of the bucket it falls in, or the maximum if that's smaller.
+     */
+    public long getPercentile(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(n * percentile / 100));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= rank) {
+                long bucketTop = bucket == 0 ? 0 : bucket >= 63 ? Long.MAX_VALUE : (1L << bucket) - 1;
+                return Math.min(bucketTop, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            counts.set(bucket, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+}
@@ -0,0 +1,93 @@
+package segmentedfilesystem;
+
+import java.util.List;
+
+import segmentedfilesystem.model.ChunkRange;
+
+/**
+ * What we know about the packets we didn't get: the gaps still open in each file, and (on Linux) how many datagrams
+ * the kernel dropped while we were receiving.
+ */
+public class LossReport {
+    /**
+     * The gaps in one file.
+     */
+    public static class FileGaps {
+        private final String description;
+        /**
+         * The file's name, or a description of it if we never got its header.
+         */
+        public String getDescription() {
+            return description;
+        }
+
+        private final boolean lengthKnown;
+        /**
+         * Whether we've seen the file's final packet. If we haven't, there may be more missing chunks past the end of
+         * the last range.
+         */
+        public boolean isLengthKnown() {
+            return lengthKnown;
+        }
+
+        private final List<ChunkRange> missingChunks;
+        public List<ChunkRange> getMissingChunks() {
+            return missingChunks;
+        }
+
+        public FileGaps(String description, boolean lengthKnown, List<ChunkRange> missingChunks) {
+            this.description = description;
+            this.lengthKnown = lengthKnown;
+            this.missingChunks = missingChunks;
+        }
+
+        public long countMissingChunks() {
+            return missingChunks.stream().mapToLong(ChunkRange::size).sum();
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                "%s: missing %s%s", description, missingChunks, lengthKnown ? "" : " (final packet not seen yet)"
+            );
+        }
+    }
+
+    private final List<FileGaps> files;
+    /**
+     * The files that aren't complete yet.
+     */
+    public List<FileGaps> getFiles() {
+        return files;
+    }
+
+    private final KernelUdpCounters kernelCounters;
+    /**
+     * How much the kernel's UDP error counters went up during the session, or `null` if we couldn't read them.
+     */
+    public KernelUdpCounters getKernelCounters() {
+        return kernelCounters;
+    }
+
+    public LossReport(List<FileGaps> files, KernelUdpCounters kernelCounters) {
+        this.files = files;
+        this.kernelCounters = kernelCounters;
+    }
+
+    public long countMissingChunks() {
+        return files.stream().mapToLong(FileGaps::countMissingChunks).sum();
+    }
+
+    @Override
+    public String toString() {
+        var report = new StringBuilder();
+        report.append(String.format("%d chunks missing from %d files", countMissingChunks(), files.size()));
+        if (kernelCounters != null) {
+            report.append("; kernel saw ").append(kernelCounters);
+        }
+        for (FileGaps file : files) {
+            report.append("\n  ").append(file);
+        }
+        return report.toString();
+    }
+}
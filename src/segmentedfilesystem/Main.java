@@ -1,24 +1,489 @@
 package segmentedfilesystem;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.management.JMException;
+
 public class Main {
+    // How many idle receive buffers to keep around in pooled mode.
+    private static final int PACKET_POOL_CAPACITY = 64;
+    // How many received packets can wait for the consumer in pipelined mode.
+    private static final int PIPELINE_RING_CAPACITY = 1024;
+    // With --fsync but no --async-writes, how many files to write at once; and how many files can wait for each
+    // writer thread before receiving has to wait for them.
+    private static final int DEFAULT_ASYNC_WRITES = 2;
+    private static final int PENDING_WRITES_PER_THREAD = 4;
+
+    // Defaults for --engine mode.
+    private static final int DEFAULT_MAX_SESSIONS = 32;
+    private static final long DEFAULT_MAX_IN_FLIGHT_MB = 512;
+    // A server that's gone quiet shouldn't keep the whole run waiting, so engine sessions time out unless told not to.
+    private static final int DEFAULT_ENGINE_STALL_TIMEOUT_MS = 10_000;
+    // The options that mean something in --engine mode; anything else is an error there, rather than being quietly
+    // ignored.
+    private static final Set<String> ENGINE_OPTIONS = Set.of(
+        "--engine", "--pooled", "--write-through", "--off-heap", "--stall-timeout-ms", "--max-restarts",
+        "--expected-files", "--idle-timeout-ms", "--max-file-ids", "--max-sessions", "--max-in-flight-mb", "--jmx"
+    );
+
+    // Defaults for --multiplex and --shared-socket modes, and the options that mean something there.
+    private static final int DEFAULT_MULTIPLEX_IDLE_TIMEOUT_MS = 10_000;
+    private static final Set<String> MULTIPLEX_OPTIONS = Set.of(
+        "--multiplex", "--write-through", "--off-heap", "--expected-files", "--idle-timeout-ms", "--jmx"
+    );
+    private static final Set<String> SHARED_SOCKET_OPTIONS = Set.of(
+        "--shared-socket", "--write-through", "--rcvbuf", "--expected-files", "--idle-timeout-ms", "--jmx"
+    );
 
     // If there's one command line argument, it is assumed to
     // be the server. If there are two, the second is assumed
     // to be the port to use.
+    //
+    // Arguments starting with `--` turn on optional modes:
+    //   --pooled               receive into pooled buffers instead of allocating per packet
+    //   --write-through        write chunks to disk as they arrive instead of holding files in memory
+    //   --stream-window=N      write each file out in order as it arrives, holding at most N chunks ahead of a gap
+    //                          in memory
+    //   --stream-overflow=WHAT what to do with chunks beyond the stream window: buffer (keep them in memory) or
+    //                          spill (write them to their place in the file)
+    //   --off-heap             keep chunks in off-heap slabs instead of an on-heap array per chunk
+    //   --async-writes=N       write up to N files at once on background threads, while receiving carries on
+    //   --fsync=POLICY         sync files to disk: none, per-file or group-commit (implies --async-writes)
+    //   --gzip                 write each file gzipped, as NAME.gz, compressing blocks of it on every core
+    //   --verify               read each file back after writing it, and check its CRC32C
+    //   --pipelined            receive on a dedicated thread, handing packets over through a ring buffer
+    //   --rcvbuf=BYTES         ask the OS for a receive buffer (SO_RCVBUF) of this size
+    //   --protocol-version=N   offer the server version N of the protocol (2 allows more files, and bigger ones);
+    //                          a server that only speaks version 1 is still understood
+    //   --resume               journal files as they arrive, and pick up whatever an earlier run that died left
+    //                          behind, so only the missing chunks are needed
+    //   --capture=FILE         record every datagram received, with its timing and source, to FILE
+    //   --replay=FILE          instead of contacting a server, play back a capture made with --capture (use the same
+    //                          --stall-timeout-ms as the original run, so it restarts in the same places)
+    //   --replay-pace=PACE     play the capture back at its original speed (original) or as fast as possible
+    //                          (flat-out)
+    //   --loss-report          when the client exits (even if it's interrupted), report what was still missing
+    //                          and how many datagrams the kernel dropped (and, with --pipelined, how full the ring
+    //                          got)
+    //   --stall-timeout-ms=N   restart the session if nothing new arrives for N ms, keeping what we already have
+    //                          (10000 by default in --engine mode; 0 means never)
+    //   --max-restarts=N       with --stall-timeout-ms, give up (reporting what's missing) after N restarts
+    //   --expected-files=N     stop once N files are complete (0 means "don't know"; needs --idle-timeout-ms)
+    //   --max-file-ids=N       drop packets for any file IDs past the first N a session sees, so junk IDs can't tie
+    //                          up memory
+    //   --idle-timeout-ms=N    stop once every file we've heard of is complete and nothing new arrives for N ms;
+    //                          in --multiplex mode, fail any session that nothing arrives for in N ms, and in
+    //                          --shared-socket mode, fail every unfinished session once nothing arrives from
+    //                          anyone for N ms (10000 by default in both; 0 means never)
+    //   --max-buffered-mb=N    hold at most N MB of chunks in memory, spilling the files we've heard from least
+    //                          recently to a temporary file past that
+    //   --engine               treat every other argument as a `server:port` target, and download from all of
+    //                          them at once, each into its own subdirectory
+    //   --multiplex            like --engine, but drive every session from one thread with a Selector
+    //   --shared-socket        like --multiplex, but every session shares one socket, and datagrams are routed by
+    //                          who sent them (so each server can only be given once)
+    //   --max-sessions=N       in --engine mode, run at most N sessions at a time
+    //   --max-in-flight-mb=N   in --engine mode, don't start new sessions while more than N MB are held in memory,
+    //                          and spill chunks to disk once running sessions go over it
+    //   --jmx                  publish throughput, reordering and latency metrics over JMX while downloading, and
+    //                          print them at the end
     public static void main(String[] args) {
         String server = "localhost";
         // CHANGE THIS DEFAULT PORT TO THE PORT NUMBER PROVIDED
         // BY THE INSTRUCTOR.
         int port = 6014;
 
-        if (args.length >= 1) {
-            server = args[0];
+        boolean pooled = false;
+        boolean writeThrough = false;
+        boolean offHeap = false;
+        int streamWindow = 0;
+        StreamingChunkStore.OverflowPolicy streamOverflow = StreamingChunkStore.OverflowPolicy.BUFFER;
+        boolean pipelined = false;
+        boolean verifyOnWrite = false;
+        boolean gzip = false;
+        int asyncWrites = 0;
+        AsyncFileWriterService.FsyncPolicy fsyncPolicy = null;
+        int receiveBufferSize = 0;
+        int protocolVersion = 1;
+        Path capturePath = null;
+        Path replayPath = null;
+        ReplayPacketSource.Pace replayPace = ReplayPacketSource.Pace.ORIGINAL;
+        boolean lossReport = false;
+        boolean resume = false;
+        int stallTimeoutMillis = 0;
+        int maxRestarts = 3;
+        int expectedFiles = FileRetriever.NUMBER_OF_FILES_EXPECTED;
+        int maxFileIds = 0;
+        int idleTimeoutMillis = 0;
+        long maxBufferedMegabytes = 0;
+        boolean engine = false;
+        boolean multiplex = false;
+        boolean sharedSocket = false;
+        int maxSessions = DEFAULT_MAX_SESSIONS;
+        long maxInFlightMegabytes = DEFAULT_MAX_IN_FLIGHT_MB;
+        boolean jmx = false;
+        var positionalArgs = new ArrayList<String>();
+        var givenOptions = new LinkedHashSet<String>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                givenOptions.add(optionName(arg));
+            }
+            if (arg.equals("--pooled")) {
+                pooled = true;
+            } else if (arg.equals("--write-through")) {
+                writeThrough = true;
+            } else if (arg.equals("--off-heap")) {
+                offHeap = true;
+            } else if (arg.startsWith("--stream-window=")) {
+                streamWindow = Integer.parseInt(optionValue(arg));
+            } else if (arg.startsWith("--stream-overflow=")) {
+                streamOverflow = StreamingChunkStore.OverflowPolicy.valueOf(optionValue(arg).toUpperCase());
+            } else if (arg.equals("--gzip")) {
+                gzip = true;
+            } else if (arg.equals("--verify")) {
+                verifyOnWrite = true;
+            } else if (arg.startsWith("--async-writes=")) {
+                asyncWrites = Integer.parseInt(optionValue(arg));
+            } else if (arg.startsWith("--fsync=")) {
+                fsyncPolicy = AsyncFileWriterService.FsyncPolicy.valueOf(
+                    optionValue(arg).toUpperCase().replace('-', '_')
+                );
+            } else if (arg.equals("--pipelined")) {
+                pipelined = true;
+            } else if (arg.startsWith("--rcvbuf=")) {
+                receiveBufferSize = Integer.parseInt(optionValue(arg));
+            } else if (arg.equals("--resume")) {
+                resume = true;
+            } else if (arg.startsWith("--capture=")) {
+                capturePath = Path.of(optionValue(arg));
+            } else if (arg.startsWith("--replay=")) {
+                replayPath = Path.of(optionValue(arg));
+            } else if (arg.startsWith("--replay-pace=")) {
+                replayPace = ReplayPacketSource.Pace.valueOf(optionValue(arg).toUpperCase().replace('-', '_'));
+            } else if (arg.equals("--loss-report")) {
+                lossReport = true;
+            } else if (arg.startsWith("--stall-timeout-ms=")) {
+                stallTimeoutMillis = Integer.parseInt(optionValue(arg));
+            } else if (arg.startsWith("--max-restarts=")) {
+                maxRestarts = Integer.parseInt(optionValue(arg));
+            } else if (arg.startsWith("--expected-files=")) {
+                expectedFiles = Integer.parseInt(optionValue(arg));
+            } else if (arg.startsWith("--protocol-version=")) {
+                protocolVersion = Integer.parseInt(optionValue(arg));
+            } else if (arg.startsWith("--max-file-ids=")) {
+                maxFileIds = Integer.parseInt(optionValue(arg));
+            } else if (arg.startsWith("--idle-timeout-ms=")) {
+                idleTimeoutMillis = Integer.parseInt(optionValue(arg));
+            } else if (arg.startsWith("--max-buffered-mb=")) {
+                maxBufferedMegabytes = Long.parseLong(optionValue(arg));
+            } else if (arg.equals("--engine")) {
+                engine = true;
+            } else if (arg.equals("--multiplex")) {
+                multiplex = true;
+            } else if (arg.equals("--shared-socket")) {
+                sharedSocket = true;
+            } else if (arg.startsWith("--max-sessions=")) {
+                maxSessions = Integer.parseInt(optionValue(arg));
+            } else if (arg.startsWith("--max-in-flight-mb=")) {
+                maxInFlightMegabytes = Long.parseLong(optionValue(arg));
+            } else if (arg.equals("--jmx")) {
+                jmx = true;
+            } else if (arg.startsWith("--")) {
+                System.err.printf("Unknown option %s\n", arg);
+                System.exit(1);
+            } else {
+                positionalArgs.add(arg);
+            }
+        }
+
+        TransferMetrics metrics = jmx ? registerMetrics() : null;
+        if (metrics != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.println(metrics)));
+        }
+
+        if (engine) {
+            rejectUnsupportedOptions("--engine", givenOptions, ENGINE_OPTIONS);
+            runEngine(
+                positionalArgs, pooled, writeThrough, offHeap,
+                givenOptions.contains("--stall-timeout-ms") ? stallTimeoutMillis : DEFAULT_ENGINE_STALL_TIMEOUT_MS,
+                maxRestarts, expectedFiles, idleTimeoutMillis, maxFileIds, maxSessions, maxInFlightMegabytes, metrics
+            );
+            return;
+        }
+        if (sharedSocket) {
+            rejectUnsupportedOptions("--shared-socket", givenOptions, SHARED_SOCKET_OPTIONS);
+            runSharedSocket(
+                positionalArgs, writeThrough, receiveBufferSize, expectedFiles,
+                givenOptions.contains("--idle-timeout-ms") ? idleTimeoutMillis : DEFAULT_MULTIPLEX_IDLE_TIMEOUT_MS,
+                metrics
+            );
+            return;
+        }
+        if (multiplex) {
+            rejectUnsupportedOptions("--multiplex", givenOptions, MULTIPLEX_OPTIONS);
+            runMultiplexer(
+                positionalArgs, writeThrough, offHeap, expectedFiles,
+                givenOptions.contains("--idle-timeout-ms") ? idleTimeoutMillis : DEFAULT_MULTIPLEX_IDLE_TIMEOUT_MS,
+                metrics
+            );
+            return;
+        }
+
+        if (positionalArgs.size() >= 1) {
+            server = positionalArgs.get(0);
         }
-        if (args.length >= 2) {
-            port = Integer.parseInt(args[1]);
+        if (positionalArgs.size() >= 2) {
+            port = Integer.parseInt(positionalArgs.get(1));
         }
 
-        var fileRetriever = new FileRetriever(new OutOfMoneyApiService(), new FileWriterService());
+        var outOfMoneyApiService = pooled
+            ? new OutOfMoneyApiService(new PacketPool(PACKET_POOL_CAPACITY, DatagramValidator.RECEIVE_BUFFER_SIZE))
+            : new OutOfMoneyApiService();
+        outOfMoneyApiService.setReceiveBufferSize(receiveBufferSize);
+        outOfMoneyApiService.setProtocolVersion(protocolVersion);
+        // A silent server only counts as stalled (or idle) if waiting for a packet can time out.
+        int receiveTimeout = Utils.shortestTimeout(stallTimeoutMillis, idleTimeoutMillis);
+        outOfMoneyApiService.setReceiveTimeout(receiveTimeout);
+        if (capturePath != null) {
+            outOfMoneyApiService.setCapture(openCapture(capturePath));
+        }
+        ReplayPacketSource replaySource = replayPath != null
+            ? openReplay(replayPath, replayPace).withReceiveTimeout(receiveTimeout)
+            : null;
+        PacketSource receivingSource = replaySource != null ? replaySource : outOfMoneyApiService;
+        PipelinedPacketSource pipelinedSource = pipelined
+            ? new PipelinedPacketSource(receivingSource, PIPELINE_RING_CAPACITY).withReceiveTimeout(receiveTimeout)
+            : null;
+        PacketSource packetSource = pipelinedSource != null ? pipelinedSource : receivingSource;
+        if (fsyncPolicy != null && asyncWrites == 0) {
+            asyncWrites = DEFAULT_ASYNC_WRITES;
+        }
+        FileWriterService fileWriterService = asyncWrites > 0
+            ? new AsyncFileWriterService(asyncWrites, PENDING_WRITES_PER_THREAD * asyncWrites)
+                .withFsyncPolicy(fsyncPolicy != null ? fsyncPolicy : AsyncFileWriterService.FsyncPolicy.NONE)
+            : new FileWriterService();
+        fileWriterService.setWriteThrough(writeThrough);
+        fileWriterService.setStreaming(streamWindow, streamOverflow);
+        fileWriterService.setSlabAllocator(offHeap ? new SlabAllocator() : null);
+        fileWriterService.setVerifyOnWrite(verifyOnWrite);
+        fileWriterService.setCompressionExecutor(gzip ? ForkJoinPool.commonPool() : null);
+        var fileRetriever = new FileRetriever(packetSource, fileWriterService)
+            .withStallTimeoutMillis(stallTimeoutMillis)
+            .withMaxRestarts(maxRestarts)
+            .withExpectedFiles(expectedFiles)
+            .withMaxFileIds(maxFileIds)
+            .withIdleTimeoutMillis(idleTimeoutMillis)
+            .withMetrics(metrics)
+            .withCompletionListener(filename -> System.out.printf("Wrote %s\n", filename));
+        if (resume) {
+            fileRetriever.setJournal(new DownloadJournal(fileWriterService.getDirectory()));
+        }
+        if (maxBufferedMegabytes > 0) {
+            fileRetriever.setMemoryBudget(new MemoryBudget(maxBufferedMegabytes * 1024 * 1024));
+        }
+        if (lossReport) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                if (replaySource != null) {
+                    System.err.printf(
+                        "Replayed %d datagrams in %d sessions\n",
+                        replaySource.getDatagramsReplayed(), replaySource.getSessionsReplayed()
+                    );
+                } else {
+                    System.err.printf(
+                        "Received %d datagrams in %d batches (largest %d) with a %d-byte receive buffer\n",
+                        outOfMoneyApiService.getDatagramsReceived(), outOfMoneyApiService.getBatchesReceived(),
+                        outOfMoneyApiService.getLargestBatch(), outOfMoneyApiService.getReceiveBufferSize()
+                    );
+                }
+                if (pipelinedSource != null) {
+                    System.err.println(pipelinedSource);
+                }
+                DatagramValidator validator = replaySource != null
+                    ? replaySource.getValidator()
+                    : outOfMoneyApiService.getValidator();
+                if (validator.getRejected() > 0) {
+                    System.err.printf("Dropped malformed or stray datagrams: %s\n", validator);
+                }
+                if (fileRetriever.getPacketsOverFileIdLimit() > 0) {
+                    System.err.printf(
+                        "Dropped %d packets for too many file IDs\n", fileRetriever.getPacketsOverFileIdLimit()
+                    );
+                }
+                if (fileRetriever.getPacketsOutOfRange() > 0) {
+                    System.err.printf(
+                        "Dropped %d packets numbered past the largest file we can hold\n",
+                        fileRetriever.getPacketsOutOfRange()
+                    );
+                }
+                System.err.println(fileRetriever.getLossReport());
+            }));
+        }
         fileRetriever.downloadFiles(server, port);
     }
+
+    private static void runEngine(
+        List<String> targetArgs, boolean pooled, boolean writeThrough, boolean offHeap, int stallTimeoutMillis,
+        int maxRestarts, int expectedFiles, int idleTimeoutMillis, int maxFileIds, int maxSessions,
+        long maxInFlightMegabytes, TransferMetrics metrics
+    ) {
+        var downloadEngine = new DownloadEngine(Path.of("."), maxSessions, maxInFlightMegabytes * 1024 * 1024)
+            .withPooledReceive(pooled)
+            .withWriteThrough(writeThrough)
+            .withOffHeap(offHeap)
+            .withStallTimeoutMillis(stallTimeoutMillis)
+            .withMaxRestarts(maxRestarts)
+            .withExpectedFiles(expectedFiles)
+            .withIdleTimeoutMillis(idleTimeoutMillis)
+            .withMaxFileIds(maxFileIds)
+            .withMetrics(metrics);
+        reportResults(downloadEngine.downloadAll(parseTargets(targetArgs)));
+    }
+
+    private static void runMultiplexer(
+        List<String> targetArgs, boolean writeThrough, boolean offHeap, int expectedFiles, int idleTimeoutMillis,
+        TransferMetrics metrics
+    ) {
+        var packetPool = new PacketPool(PACKET_POOL_CAPACITY, DatagramValidator.RECEIVE_BUFFER_SIZE);
+        var sessionMultiplexer = new SessionMultiplexer(Path.of("."), packetPool)
+            .withExpectedFiles(expectedFiles)
+            .withIdleTimeoutMillis(idleTimeoutMillis)
+            .withWriteThrough(writeThrough)
+            .withOffHeap(offHeap)
+            .withMetrics(metrics);
+        try {
+            reportResults(sessionMultiplexer.downloadAll(parseTargets(targetArgs)));
+        } catch (IOException e) {
+            System.err.println("Unable to set up the session multiplexer");
+            e.printStackTrace();
+            System.exit(1);
+        } finally {
+            if (sessionMultiplexer.getDatagramsRejected() > 0) {
+                System.err.printf(
+                    "Dropped %d malformed or stray datagrams\n", sessionMultiplexer.getDatagramsRejected()
+                );
+            }
+        }
+    }
+
+    /**
+     * Start a capture at `path`, and make sure it's finished when we exit, however that happens. If we can't, exit.
+     */
+    private static DatagramCapture openCapture(Path path) {
+        try {
+            var capture = new DatagramCapture(path);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    capture.close();
+                } catch (IOException e) {
+                    System.err.printf("Unable to finish the capture in %s\n", path);
+                    e.printStackTrace();
+                }
+            }));
+            return capture;
+        } catch (IOException e) {
+            System.err.printf("Unable to start a capture in %s\n", path);
+            e.printStackTrace();
+            System.exit(1);
+            return null;
+        }
+    }
+
+    private static ReplayPacketSource openReplay(Path path, ReplayPacketSource.Pace pace) {
+        try {
+            return new ReplayPacketSource(path, pace);
+        } catch (IOException e) {
+            System.err.printf("Unable to replay %s\n", path);
+            e.printStackTrace();
+            System.exit(1);
+            return null;
+        }
+    }
+
+    private static TransferMetrics registerMetrics() {
+        var metrics = new TransferMetrics();
+        try {
+            metrics.register("client");
+        } catch (JMException e) {
+            System.err.println("Unable to publish metrics over JMX");
+            e.printStackTrace();
+        }
+        return metrics;
+    }
+
+    private static void runSharedSocket(
+        List<String> targetArgs, boolean writeThrough, int receiveBufferSize, int expectedFiles, int idleTimeoutMillis,
+        TransferMetrics metrics
+    ) {
+        var packetPool = new PacketPool(PACKET_POOL_CAPACITY, DatagramValidator.RECEIVE_BUFFER_SIZE);
+        var demultiplexer = new SharedSocketDemultiplexer(Path.of("."), packetPool)
+            .withExpectedFiles(expectedFiles)
+            .withIdleTimeoutMillis(idleTimeoutMillis)
+            .withWriteThrough(writeThrough)
+            .withReceiveBufferSize(receiveBufferSize)
+            .withMetrics(metrics);
+        try {
+            reportResults(demultiplexer.downloadAll(parseTargets(targetArgs)));
+        } catch (IOException e) {
+            System.err.println("Unable to set up the shared socket");
+            e.printStackTrace();
+            System.exit(1);
+        } finally {
+            if (demultiplexer.getStrayDatagramsDropped() > 0) {
+                System.err.printf(
+                    "Dropped %d datagrams from unknown senders\n", demultiplexer.getStrayDatagramsDropped()
+                );
+            }
+            if (demultiplexer.getMalformedDatagramsDropped() > 0) {
+                System.err.printf(
+                    "Dropped %d malformed datagrams\n", demultiplexer.getMalformedDatagramsDropped()
+                );
+            }
+        }
+    }
+
+    private static List<DownloadTarget> parseTargets(List<String> targetArgs) {
+        var targets = new ArrayList<DownloadTarget>();
+        for (String targetArg : targetArgs) {
+            targets.add(DownloadTarget.parse(targetArg));
+        }
+        return targets;
+    }
+
+    private static void reportResults(List<SessionResult> results) {
+        boolean allSucceeded = true;
+        for (SessionResult result : results) {
+            System.out.println(result);
+            allSucceeded &= result.isSuccessful();
+        }
+        if (!allSucceeded) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Exit with an error if any of `givenOptions` isn't one of the options `mode` supports.
+     */
+    private static void rejectUnsupportedOptions(String mode, Set<String> givenOptions, Set<String> supported) {
+        for (String option : givenOptions) {
+            if (!supported.contains(option)) {
+                System.err.printf("%s can't be used with %s\n", option, mode);
+                System.exit(1);
+            }
+        }
+    }
+
+    private static String optionName(String arg) {
+        int equals = arg.indexOf('=');
+        return equals >= 0 ? arg.substring(0, equals) : arg;
+    }
+
+    private static String optionValue(String arg) {
+        return arg.substring(arg.indexOf('=') + 1);
+    }
 }
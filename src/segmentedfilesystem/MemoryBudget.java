@@ -0,0 +1,79 @@
+package segmentedfilesystem;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A running total of how many bytes of file data are being held in memory, shared between downloads, along with the
+ * most we'd like to hold at once.
+ *
+ * Reserving memory never blocks: a download that's already running can't pause without the server's packets piling
+ * up and getting dropped. Instead, new downloads wait in `awaitHeadroom()` until there's room for them.
+ */
+public class MemoryBudget {
+    private final long limit;
+    public long getLimit() {
+        return limit;
+    }
+
+    private long used = 0;
+    public long getUsed() {
+        lock.lock();
+        try {
+            return used;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // We use a lock rather than `synchronized`, so that virtual threads waiting for headroom don't pin their carriers.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+
+    public MemoryBudget(long limit) {
+        this.limit = limit;
+    }
+
+    public void reserve(long bytes) {
+        if (bytes == 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            used += bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release(long bytes) {
+        if (bytes == 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            used -= bytes;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isExceeded() {
+        return getUsed() > limit;
+    }
+
+    /**
+     * Wait until we're using less memory than the limit.
+     */
+    public void awaitHeadroom() throws InterruptedException {
+        lock.lock();
+        try {
+            while (used >= limit) {
+                released.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
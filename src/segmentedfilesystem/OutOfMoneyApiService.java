@@ -3,9 +3,15 @@ package segmentedfilesystem;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.Arrays;
-import java.util.BitSet;
+import java.util.List;
 
 import segmentedfilesystem.model.OutOfMoneyDataPacket;
 import segmentedfilesystem.model.OutOfMoneyHeaderPacket;
@@ -14,36 +20,340 @@ import segmentedfilesystem.model.OutOfMoneyPacket;
 /**
  * This class knows how to speak the OutOfMoney.com protocol. It reads raw UDP packets and converts them into
  * OutOfMoney.com packets.
+ *
+ * By default, every packet gets its own freshly-allocated arrays. If you construct this class with a `PacketPool`,
+ * it reads from a `DatagramChannel` into the pool's buffers instead, and hands back packets that are views over those
+ * buffers. Callers must `release()` those packets when they're done with them.
+ *
+ * In pooled mode, `getPackets()` drains every datagram that's already queued on the channel in one go, rather than
+ * making the caller come back for each one.
+ *
+ * Datagrams that can't be OutOfMoney.com packets from the server we asked, because of their length or where they came
+ * from, are dropped before they're decoded (see `DatagramValidator`), and we just wait for the next one.
+ *
+ * If there's a `DatagramCapture`, every interaction, and every datagram as it was received (valid or not), is recorded
+ * there, so the run can be played back later with `ReplayPacketSource`.
+ *
+ * There are two versions of the protocol. Version 1, the one in the README, has one-byte file IDs and two-byte packet
+ * numbers, which caps a session at 256 files of up to 64 MB each. Version 2 has two-byte file IDs and four-byte packet
+ * numbers, and sets `VERSION_2_BIT` in every packet's status byte; otherwise it's the same. To offer version 2, we
+ * send a one-byte request holding the newest version we speak, rather than an empty one. A version 1 server doesn't
+ * look inside the request, and just answers in version 1, so the first packet we get back tells us which version the
+ * session is in (see `DatagramValidator`).
  */
-public class OutOfMoneyApiService {
-    // The largest possible size a UDP datagram can have in the OutOfMoney.com protocol, in bytes.
-    private static final int MAX_PACKET_SIZE = 1028;
+public class OutOfMoneyApiService implements PacketSource {
+    // The largest possible size a UDP datagram can have in each version of the OutOfMoney.com protocol, and in any of
+    // them, in bytes.
+    static final int MAX_PACKET_SIZE_V1 = 1028;
+    static final int MAX_PACKET_SIZE_V2 = 1031;
+    static final int MAX_PACKET_SIZE = MAX_PACKET_SIZE_V2;
+
+    // The bits of the status byte, and the number of bookkeeping bytes at the start of each kind of packet, in each
+    // version.
+    static final int DATA_PACKET_BIT = 0b01;
+    static final int FINAL_PACKET_BIT = 0b10;
+    static final int VERSION_2_BIT = 0b100;
+    static final int HEADER_HEADER_SIZE = 2;
+    static final int DATA_HEADER_SIZE = 4;
+    static final int HEADER_HEADER_SIZE_V2 = 3;
+    static final int DATA_HEADER_SIZE_V2 = 7;
 
     private DatagramSocket socket;
 
+    // We reuse the same receive buffer for every packet; `deserialize()` copies out the bits we want to keep.
+    private final byte[] receiveBuffer = new byte[DatagramValidator.RECEIVE_BUFFER_SIZE];
+    private final DatagramPacket receiveDatagram = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+
+    private final DatagramValidator validator = new DatagramValidator();
+    public DatagramValidator getValidator() {
+        return validator;
+    }
+
+    // Only used in pooled mode.
+    private final PacketPool packetPool;
+    private DatagramChannel channel;
+    // A blocking channel can't time out, so when there's a receive timeout we make the channel non-blocking and wait
+    // for it with this selector instead.
+    private Selector timeoutSelector;
+
+    /**
+     * The size of receive buffer (`SO_RCVBUF`) to ask the OS for, in bytes, or 0 to use the OS's default. A bigger
+     * buffer lets the kernel hold on to more datagrams when the server sends a burst faster than we read them.
+     */
+    private int requestedReceiveBufferSize = 0;
+    public void setReceiveBufferSize(int receiveBufferSize) {
+        this.requestedReceiveBufferSize = receiveBufferSize;
+    }
+    public OutOfMoneyApiService withReceiveBufferSize(int receiveBufferSize) {
+        setReceiveBufferSize(receiveBufferSize);
+        return this;
+    }
+
+    /**
+     * How long to wait for a packet before giving up with a `SocketTimeoutException`, in milliseconds, or 0 to wait
+     * forever. This takes effect when the next interaction starts.
+     */
+    private int receiveTimeout = 0;
+    public int getReceiveTimeout() {
+        return receiveTimeout;
+    }
+    public void setReceiveTimeout(int receiveTimeout) {
+        this.receiveTimeout = receiveTimeout;
+    }
+    public OutOfMoneyApiService withReceiveTimeout(int receiveTimeout) {
+        setReceiveTimeout(receiveTimeout);
+        return this;
+    }
+
+    /**
+     * The receive buffer size the OS actually gave us, which may differ from what we asked for. Only set once an
+     * interaction has started.
+     */
+    private int receiveBufferSize = 0;
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * Whether to drop datagrams that don't come from the address and port we sent our request to. This takes effect
+     * when the next interaction starts.
+     */
+    private boolean sourceFiltered = true;
+    public boolean isSourceFiltered() {
+        return sourceFiltered;
+    }
+    public void setSourceFiltered(boolean sourceFiltered) {
+        this.sourceFiltered = sourceFiltered;
+    }
+    public OutOfMoneyApiService withSourceFiltered(boolean sourceFiltered) {
+        setSourceFiltered(sourceFiltered);
+        return this;
+    }
+
+    /**
+     * The newest version of the protocol to offer the server, 1 or 2. This takes effect when the next interaction
+     * starts.
+     */
+    private int protocolVersion = 1;
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+    public void setProtocolVersion(int protocolVersion) {
+        if (protocolVersion < 1 || protocolVersion > 2) {
+            throw new IllegalArgumentException("There's no version " + protocolVersion + " of the protocol");
+        }
+        this.protocolVersion = protocolVersion;
+    }
+    public OutOfMoneyApiService withProtocolVersion(int protocolVersion) {
+        setProtocolVersion(protocolVersion);
+        return this;
+    }
+
+    /**
+     * If set, every datagram we receive is recorded here.
+     */
+    private DatagramCapture capture = null;
+    public DatagramCapture getCapture() {
+        return capture;
+    }
+    public void setCapture(DatagramCapture capture) {
+        this.capture = capture;
+    }
+    public OutOfMoneyApiService withCapture(DatagramCapture capture) {
+        setCapture(capture);
+        return this;
+    }
+
+    private long datagramsReceived = 0;
+    public long getDatagramsReceived() {
+        return datagramsReceived;
+    }
+
+    private long batchesReceived = 0;
+    public long getBatchesReceived() {
+        return batchesReceived;
+    }
+
+    private int largestBatch = 0;
+    public int getLargestBatch() {
+        return largestBatch;
+    }
+
+    public OutOfMoneyApiService() {
+        this(null);
+    }
+
+    /**
+     * Make a service that receives packets into buffers borrowed from `packetPool`.
+     */
+    public OutOfMoneyApiService(PacketPool packetPool) {
+        this.packetPool = packetPool;
+    }
+
     /**
      * Open a UDP socket, and tell the server that we'd like some files.
      */
+    @Override
     public void startInteraction(String serverName, int port) throws IOException {
+        var server = new InetSocketAddress(serverName, port);
+        validator.setExpectedSource(sourceFiltered ? server : null);
+        validator.setOfferedVersion(protocolVersion);
+        if (capture != null) {
+            capture.recordSession(System.nanoTime(), server, sourceFiltered, protocolVersion);
+        }
+        byte[] request = protocolVersion > 1 ? new byte[] { (byte) protocolVersion } : new byte[0];
+        if (packetPool != null) {
+            channel = DatagramChannel.open();
+            if (requestedReceiveBufferSize > 0) {
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, requestedReceiveBufferSize);
+            }
+            receiveBufferSize = channel.getOption(StandardSocketOptions.SO_RCVBUF);
+            if (receiveTimeout > 0) {
+                channel.configureBlocking(false);
+                timeoutSelector = Selector.open();
+                channel.register(timeoutSelector, SelectionKey.OP_READ);
+            }
+            channel.send(ByteBuffer.wrap(request), server);
+            return;
+        }
+
         socket = new DatagramSocket();
-        socket.send(new DatagramPacket(new byte[0], 0, InetAddress.getByName(serverName), port));
+        if (requestedReceiveBufferSize > 0) {
+            socket.setReceiveBufferSize(requestedReceiveBufferSize);
+        }
+        receiveBufferSize = socket.getReceiveBufferSize();
+        socket.setSoTimeout(receiveTimeout);
+        socket.send(new DatagramPacket(request, request.length, server));
     }
 
     /**
      * Read a packet from the server and return it.
      *
-     * Throws an `IllegalStateException` if there isn't a currently open UDP socket.
+     * Throws a `SocketTimeoutException` if there's a receive timeout and no packet arrives in time, and an
+     * `IllegalStateException` if there isn't a currently open UDP socket.
      */
+    @Override
     public OutOfMoneyPacket getPacket() throws IOException {
+        if (packetPool != null) {
+            return getPooledPacket();
+        }
         if (socket == null) {
             throw new IllegalStateException("Trying to read a packet when there's no open UDP socket");
         }
 
-        var datagram = new DatagramPacket(new byte[MAX_PACKET_SIZE], MAX_PACKET_SIZE);
-        socket.receive(datagram);
-        byte[] receivedData = Arrays.copyOfRange(datagram.getData(), 0, datagram.getLength());
+        long receivedNanos;
+        do {
+            receiveDatagram.setLength(receiveBuffer.length);
+            socket.receive(receiveDatagram);
+            receivedNanos = System.nanoTime();
+            datagramsReceived++;
+            if (capture != null) {
+                capture.recordDatagram(
+                    receivedNanos, receiveDatagram.getAddress(), receiveDatagram.getPort(), receiveBuffer, 0,
+                    receiveDatagram.getLength()
+                );
+            }
+        } while (!validator.accept(
+            receiveDatagram.getAddress(), receiveDatagram.getPort(), receiveDatagram.getLength(), receiveBuffer[0]
+        ));
 
-        return deserialize(receivedData);
+        OutOfMoneyPacket packet = deserialize(
+            receiveBuffer, receiveDatagram.getLength(), validator.getProtocolVersion()
+        );
+        packet.setReceivedNanos(receivedNanos);
+        packet.setSource((InetSocketAddress) receiveDatagram.getSocketAddress());
+        return packet;
+    }
+
+    /**
+     * Wait for a packet, then add it and any others that are already queued (up to `maxPackets` in total) to `batch`.
+     *
+     * Only pooled mode can tell whether more packets are queued, so otherwise this adds exactly one packet.
+     */
+    @Override
+    public int getPackets(List<OutOfMoneyPacket> batch, int maxPackets) throws IOException {
+        batch.add(getPacket());
+        int count = 1;
+
+        if (packetPool != null) {
+            // Switch to non-blocking mode (if we're not already in it) just long enough to empty the kernel's queue.
+            boolean wasBlocking = channel.isBlocking();
+            if (wasBlocking) {
+                channel.configureBlocking(false);
+            }
+            try {
+                OutOfMoneyPacket packet;
+                while (count < maxPackets && (packet = receivePooledPacket()) != null) {
+                    batch.add(packet);
+                    count++;
+                }
+            } finally {
+                if (wasBlocking) {
+                    channel.configureBlocking(true);
+                }
+            }
+        }
+
+        batchesReceived++;
+        largestBatch = Math.max(largestBatch, count);
+        return count;
+    }
+
+    private OutOfMoneyPacket getPooledPacket() throws IOException {
+        if (channel == null) {
+            throw new IllegalStateException("Trying to read a packet when there's no open UDP channel");
+        }
+        if (timeoutSelector == null) {
+            return receivePooledPacket();
+        }
+
+        while (true) {
+            OutOfMoneyPacket packet = receivePooledPacket();
+            if (packet != null) {
+                return packet;
+            }
+            // Passing an action means the selector doesn't have to keep a set of selected keys for us to clear.
+            if (timeoutSelector.select(key -> { }, receiveTimeout) == 0) {
+                throw new SocketTimeoutException("No packet received in " + receiveTimeout + " ms");
+            }
+        }
+    }
+
+    /**
+     * Receive a datagram into a pooled buffer, skipping any that the validator rejects. If the channel is non-blocking
+     * and nothing (valid) is waiting, return `null`.
+     */
+    private OutOfMoneyPacket receivePooledPacket() throws IOException {
+        PacketPool.Slot slot;
+        InetSocketAddress source;
+        long receivedNanos;
+        while (true) {
+            slot = packetPool.acquire();
+            try {
+                source = (InetSocketAddress) channel.receive(slot.buffer);
+            } catch (IOException e) {
+                slot.release();
+                throw e;
+            }
+            if (source == null) {
+                slot.release();
+                return null;
+            }
+            receivedNanos = System.nanoTime();
+            datagramsReceived++;
+            slot.buffer.flip();
+            if (capture != null) {
+                capture.recordDatagram(receivedNanos, source, slot.buffer);
+            }
+            if (validator.accept(source, slot.buffer)) {
+                break;
+            }
+            slot.release();
+        }
+        OutOfMoneyPacket packet = slot.view(validator.getProtocolVersion());
+        packet.setReceivedNanos(receivedNanos);
+        packet.setSource(source);
+        return packet;
     }
 
     /**
@@ -51,7 +361,27 @@ public class OutOfMoneyApiService {
      *
      * Throws an `IllegalStateException` if there isn't a currently open UDP socket.
      */
+    @Override
     public void endInteraction() {
+        if (capture != null) {
+            capture.flush();
+        }
+        if (packetPool != null) {
+            if (channel == null) {
+                throw new IllegalStateException("Trying to close a UDP channel when there isn't one open");
+            }
+            try {
+                if (timeoutSelector != null) {
+                    timeoutSelector.close();
+                    timeoutSelector = null;
+                }
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("I/O exception when closing the UDP channel:");
+                e.printStackTrace();
+            }
+            return;
+        }
         if (socket == null) {
             throw new IllegalStateException("Trying to close a UDP socket when there isn't one open");
         }
@@ -65,18 +395,37 @@ public class OutOfMoneyApiService {
      * Visible for testing.
      */
     OutOfMoneyPacket deserialize(byte[] bytes) {
-        BitSet statusBits = BitSet.valueOf(Arrays.copyOfRange(bytes, 0, 1));
-        if (statusBits.get(0)) {
+        return deserialize(bytes, bytes.length);
+    }
+
+    /**
+     * Deserialize the first `length` bytes of `bytes`, which are a version 1 packet, into a packet object. The packet
+     * gets its own copy of the contents, so `bytes` can be reused afterwards.
+     */
+    OutOfMoneyPacket deserialize(byte[] bytes, int length) {
+        return deserialize(bytes, length, 1);
+    }
+
+    /**
+     * Like `deserialize(bytes, length)`, for a packet in version `version` of the protocol.
+     */
+    OutOfMoneyPacket deserialize(byte[] bytes, int length, int version) {
+        int status = bytes[0];
+        boolean isV2 = version > 1;
+        int fileId = isV2
+            ? 256 * Byte.toUnsignedInt(bytes[1]) + Byte.toUnsignedInt(bytes[2])
+            : Byte.toUnsignedInt(bytes[1]);
+        if ((status & DATA_PACKET_BIT) != 0) {
             // It's a data packet.
-            boolean isFinalPacket = statusBits.get(1);
-            byte fileId = bytes[1];
-            int packetNumber = 256 * Byte.toUnsignedInt(bytes[2]) + Byte.toUnsignedInt(bytes[3]);
-            byte[] contents = Arrays.copyOfRange(bytes, 4, bytes.length);
+            boolean isFinalPacket = (status & FINAL_PACKET_BIT) != 0;
+            int packetNumber = isV2
+                ? (bytes[3] & 0xFF) << 24 | (bytes[4] & 0xFF) << 16 | (bytes[5] & 0xFF) << 8 | (bytes[6] & 0xFF)
+                : 256 * Byte.toUnsignedInt(bytes[2]) + Byte.toUnsignedInt(bytes[3]);
+            byte[] contents = Arrays.copyOfRange(bytes, isV2 ? DATA_HEADER_SIZE_V2 : DATA_HEADER_SIZE, length);
             return new OutOfMoneyDataPacket(fileId, contents, packetNumber, isFinalPacket);
         } else {
             // It's a header packet.
-            byte fileId = bytes[1];
-            byte[] contents = Arrays.copyOfRange(bytes, 2, bytes.length);
+            byte[] contents = Arrays.copyOfRange(bytes, isV2 ? HEADER_HEADER_SIZE_V2 : HEADER_HEADER_SIZE, length);
             return new OutOfMoneyHeaderPacket(fileId, contents);
         }
     }
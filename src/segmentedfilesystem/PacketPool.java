@@ -0,0 +1,186 @@
+package segmentedfilesystem;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import segmentedfilesystem.model.OutOfMoneyDataPacket;
+import segmentedfilesystem.model.OutOfMoneyHeaderPacket;
+import segmentedfilesystem.model.OutOfMoneyPacket;
+
+/**
+ * A pool of reusable receive buffers for `OutOfMoneyApiService`'s pooled receive mode.
+ *
+ * Each slot in the pool owns a direct `ByteBuffer` big enough for one datagram, plus a header packet and a data packet
+ * that are flyweight views over that buffer: they decode their fields straight out of the buffer instead of copying
+ * them out. Once the pool has warmed up, receiving a packet doesn't allocate anything. Calling `release()` on a packet
+ * puts its slot back in the pool.
+ */
+public class PacketPool {
+    private final int bufferSize;
+    private final ArrayBlockingQueue<Slot> freeSlots;
+
+    /**
+     * The number of slots this pool has ever created. If this keeps climbing, packets aren't being released.
+     */
+    private volatile int slotsCreated = 0;
+    public int getSlotsCreated() {
+        return slotsCreated;
+    }
+
+    /**
+     * Make a pool that keeps up to `capacity` idle slots around, each big enough for a `bufferSize`-byte datagram.
+     *
+     * If every slot is in use, `acquire()` makes a new one rather than blocking, so `capacity` only bounds how many
+     * idle slots we hang on to.
+     */
+    public PacketPool(int capacity, int bufferSize) {
+        this.bufferSize = bufferSize;
+        this.freeSlots = new ArrayBlockingQueue<>(capacity);
+    }
+
+    Slot acquire() {
+        Slot slot = freeSlots.poll();
+        if (slot == null) {
+            slot = new Slot(this, bufferSize);
+            slotsCreated++;
+        }
+        slot.buffer.clear();
+        return slot;
+    }
+
+    private void release(Slot slot) {
+        // If the pool is already full, just let the slot be garbage collected.
+        freeSlots.offer(slot);
+    }
+
+    /**
+     * One receive buffer, and the two packet views that read from it.
+     */
+    static final class Slot {
+        private final PacketPool pool;
+        final ByteBuffer buffer;
+        // A second view of `buffer` whose position and limit frame the packet contents, so we can copy them out
+        // without making a new `ByteBuffer` for every packet.
+        private final ByteBuffer contents;
+        private final HeaderView headerView;
+        private final DataView dataView;
+        // Whether the datagram in `buffer` is in version 2 of the protocol, with its wider fields.
+        private boolean wide = false;
+
+        private Slot(PacketPool pool, int bufferSize) {
+            this.pool = pool;
+            this.buffer = ByteBuffer.allocateDirect(bufferSize);
+            this.contents = buffer.duplicate();
+            this.headerView = new HeaderView(this);
+            this.dataView = new DataView(this);
+        }
+
+        /**
+         * Interpret the datagram that was just received into `buffer` (which should have been flipped, so its limit
+         * is the datagram's length) as a version 1 OutOfMoney.com packet.
+         */
+        OutOfMoneyPacket view() {
+            return view(1);
+        }
+
+        /**
+         * Like `view()`, for a packet in `version` of the protocol.
+         */
+        OutOfMoneyPacket view(int version) {
+            int length = buffer.limit();
+            wide = version >= 2;
+            if ((buffer.get(0) & OutOfMoneyApiService.DATA_PACKET_BIT) != 0) {
+                contents.limit(length).position(
+                    wide ? OutOfMoneyApiService.DATA_HEADER_SIZE_V2 : OutOfMoneyApiService.DATA_HEADER_SIZE
+                );
+                return dataView;
+            } else {
+                contents.limit(length).position(
+                    wide ? OutOfMoneyApiService.HEADER_HEADER_SIZE_V2 : OutOfMoneyApiService.HEADER_HEADER_SIZE
+                );
+                return headerView;
+            }
+        }
+
+        private int fileId() {
+            return wide ? Short.toUnsignedInt(buffer.getShort(1)) : Byte.toUnsignedInt(buffer.get(1));
+        }
+
+        private byte[] copyContents() {
+            byte[] copy = new byte[contents.remaining()];
+            contents.mark();
+            contents.get(copy);
+            contents.reset();
+            return copy;
+        }
+
+        void release() {
+            pool.release(this);
+        }
+    }
+
+    private static final class HeaderView extends OutOfMoneyHeaderPacket {
+        private final Slot slot;
+
+        private HeaderView(Slot slot) {
+            super(0, null);
+            this.slot = slot;
+        }
+
+        @Override
+        public int getFileId() {
+            return slot.fileId();
+        }
+
+        @Override
+        public byte[] getContents() {
+            return slot.copyContents();
+        }
+
+        @Override
+        public void release() {
+            slot.release();
+        }
+    }
+
+    private static final class DataView extends OutOfMoneyDataPacket {
+        private final Slot slot;
+
+        private DataView(Slot slot) {
+            super(0, null, 0, false);
+            this.slot = slot;
+        }
+
+        @Override
+        public int getFileId() {
+            return slot.fileId();
+        }
+
+        @Override
+        public int getPacketNumber() {
+            if (slot.wide) {
+                return slot.buffer.getInt(3);
+            }
+            return 256 * Byte.toUnsignedInt(slot.buffer.get(2)) + Byte.toUnsignedInt(slot.buffer.get(3));
+        }
+
+        @Override
+        public boolean isFinalPacket() {
+            return (slot.buffer.get(0) & OutOfMoneyApiService.FINAL_PACKET_BIT) != 0;
+        }
+
+        /**
+         * Copy this chunk out of the pooled buffer. This is the one copy the pooled path makes: the chunk has to
+         * outlive the buffer, which is about to be reused.
+         */
+        @Override
+        public byte[] getContents() {
+            return slot.copyContents();
+        }
+
+        @Override
+        public void release() {
+            slot.release();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package segmentedfilesystem;
+
+import java.io.IOException;
+import java.util.List;
+
+import segmentedfilesystem.model.OutOfMoneyPacket;
+
+/**
+ * Somewhere `FileRetriever` can get OutOfMoney.com packets from.
+ *
+ * `OutOfMoneyApiService` is the real thing; other implementations wrap it or stand in for it.
+ */
+public interface PacketSource {
+    /**
+     * Tell the server that we'd like some files.
+     */
+    void startInteraction(String serverName, int port) throws IOException;
+
+    /**
+     * Return the next packet, waiting for one if necessary. Callers should `release()` each packet when they're done
+     * with it.
+     */
+    OutOfMoneyPacket getPacket() throws IOException;
+
+    /**
+     * Wait for at least one packet, then add it and up to `maxPackets - 1` more that are already waiting to `batch`.
+     * Return how many packets were added.
+     *
+     * By default, this just adds one packet; sources that can cheaply tell whether more packets are waiting override
+     * it.
+     */
+    default int getPackets(List<OutOfMoneyPacket> batch, int maxPackets) throws IOException {
+        batch.add(getPacket());
+        return 1;
+    }
+
+    /**
+     * Stop receiving packets, and clean up.
+     */
+    void endInteraction();
+}
@@ -0,0 +1,245 @@
+package segmentedfilesystem;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * An `OutputStream` that gzips what's written to it, compressing blocks of it in parallel, the way pigz does.
+ *
+ * What's written is cut into blocks of `blockSize` bytes, and each block is deflated on `executor` by a `Deflater` of
+ * its own, primed with the last 32 KiB of the block before it so that matches can still reach back across the join.
+ * Every block but the last ends with a sync flush, which leaves it on a byte boundary, so the compressed blocks can
+ * simply be written one after another, in order, to make a single deflate stream. The gzip header goes in front of
+ * it, and the CRC32 and length of everything written go after it.
+ *
+ * Working out the CRC32 is left to the thread that's writing, since it's far cheaper than deflating. At most
+ * `maxBlocksInFlight` blocks are compressed at once; past that, writing waits for the oldest one to finish, so a slow
+ * disk or a busy executor holds the writer up instead of compressed blocks piling up in memory.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+    public static final int DEFAULT_MAX_BLOCKS_IN_FLIGHT = 2 * Runtime.getRuntime().availableProcessors();
+
+    // Deflate can't refer back further than this, so there's no point priming a block with more.
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    // Magic number, deflate, no flags, no modification time, no extra flags, unknown OS.
+    private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+    private final OutputStream out;
+    private final Executor executor;
+    private final int blockSize;
+    private final int level;
+    private final int maxBlocksInFlight;
+
+    private final CRC32 crc = new CRC32();
+    private final ArrayDeque<CompletableFuture<byte[]>> blocksInFlight = new ArrayDeque<>();
+    private byte[] block;
+    private int blockLength = 0;
+    // The block before this one, whose tail primes this one's `Deflater`.
+    private byte[] previousBlock = null;
+    private int previousBlockLength = 0;
+    private boolean finished = false;
+
+    /**
+     * How many bytes have been written to the stream, before compression.
+     */
+    private long uncompressedSize = 0;
+    public long getUncompressedSize() {
+        return uncompressedSize;
+    }
+
+    /**
+     * How many bytes of gzip have been passed on to the underlying stream so far.
+     */
+    private long compressedSize = 0;
+    public long getCompressedSize() {
+        return compressedSize;
+    }
+
+    /**
+     * Gzip to `out`, compressing blocks of the default size on `executor`, with the default compression level.
+     */
+    public ParallelGzipOutputStream(OutputStream out, Executor executor) throws IOException {
+        this(out, executor, DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION, DEFAULT_MAX_BLOCKS_IN_FLIGHT);
+    }
+
+    public ParallelGzipOutputStream(
+        OutputStream out, Executor executor, int blockSize, int level, int maxBlocksInFlight
+    ) throws IOException {
+        if (blockSize <= 0 || maxBlocksInFlight <= 0) {
+            throw new IllegalArgumentException("The block size and the number of blocks in flight must be positive");
+        }
+        this.out = out;
+        this.executor = executor;
+        this.blockSize = blockSize;
+        this.level = level;
+        this.maxBlocksInFlight = maxBlocksInFlight;
+        this.block = new byte[blockSize];
+        writeOut(HEADER);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        if (finished) {
+            throw new IOException("The gzip stream has already been finished");
+        }
+        crc.update(data, offset, length);
+        uncompressedSize += length;
+        while (length > 0) {
+            int copied = Math.min(length, blockSize - blockLength);
+            System.arraycopy(data, offset, block, blockLength, copied);
+            blockLength += copied;
+            offset += copied;
+            length -= copied;
+            if (blockLength == blockSize) {
+                submitBlock(false);
+            }
+        }
+    }
+
+    /**
+     * Wait for every compressed block to be written out, and pass on what's been written. The gzip stream isn't
+     * finished, so this only flushes whole blocks; whatever's in the current block stays there.
+     */
+    @Override
+    public void flush() throws IOException {
+        while (!blocksInFlight.isEmpty()) {
+            writeOldestBlock();
+        }
+        out.flush();
+    }
+
+    /**
+     * Compress what's left, and write the gzip trailer, without closing the underlying stream. Nothing more can be
+     * written afterwards.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        submitBlock(true);
+        finished = true;
+        while (!blocksInFlight.isEmpty()) {
+            writeOldestBlock();
+        }
+        byte[] trailer = new byte[8];
+        writeLittleEndian(trailer, 0, (int) crc.getValue());
+        // The length is only kept modulo 2^32.
+        writeLittleEndian(trailer, 4, (int) uncompressedSize);
+        writeOut(trailer);
+    }
+
+    /**
+     * Finish the gzip stream, and close the underlying one.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void submitBlock(boolean last) throws IOException {
+        byte[] input = block;
+        int inputLength = blockLength;
+        byte[] dictionary = previousBlock;
+        int dictionaryLength = previousBlockLength;
+        blocksInFlight.add(CompletableFuture.supplyAsync(
+            () -> deflate(input, inputLength, dictionary, dictionaryLength, last), executor
+        ));
+
+        previousBlock = input;
+        previousBlockLength = inputLength;
+        if (!last) {
+            // The block we've just handed over belongs to its task now, so carry on in a fresh one.
+            block = new byte[blockSize];
+        }
+        blockLength = 0;
+
+        while (blocksInFlight.size() >= maxBlocksInFlight || isOldestBlockDone()) {
+            writeOldestBlock();
+        }
+    }
+
+    private boolean isOldestBlockDone() {
+        CompletableFuture<byte[]> oldest = blocksInFlight.peek();
+        return oldest != null && oldest.isDone();
+    }
+
+    private void writeOldestBlock() throws IOException {
+        byte[] compressed;
+        try {
+            compressed = blocksInFlight.remove().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to compress a block", e.getCause());
+        }
+        writeOut(compressed);
+    }
+
+    private void writeOut(byte[] bytes) throws IOException {
+        out.write(bytes);
+        compressedSize += bytes.length;
+    }
+
+    /**
+     * Deflate one block, without a header or trailer, and return the compressed bytes. Only the last block finishes
+     * the deflate stream; the others end with a sync flush, so the next block can carry straight on from them.
+     */
+    private byte[] deflate(byte[] input, int inputLength, byte[] dictionary, int dictionaryLength, boolean last) {
+        var deflater = new Deflater(level, true);
+        try {
+            if (dictionary != null) {
+                int length = Math.min(dictionaryLength, DICTIONARY_SIZE);
+                deflater.setDictionary(dictionary, dictionaryLength - length, length);
+            }
+            deflater.setInput(input, 0, inputLength);
+            if (last) {
+                deflater.finish();
+            }
+
+            // Incompressible data grows a little; this is enough for it to fit first time, almost always.
+            byte[] output = new byte[inputLength + (inputLength >> 12) + 64];
+            int outputLength = 0;
+            while (true) {
+                outputLength += deflater.deflate(
+                    output, outputLength, output.length - outputLength, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH
+                );
+                // A flush is only done once it leaves room to spare; finishing is done when the deflater says so.
+                boolean done = last ? deflater.finished() : outputLength < output.length;
+                if (done) {
+                    return Arrays.copyOf(output, outputLength);
+                }
+                if (outputLength == output.length) {
+                    output = Arrays.copyOf(output, 2 * output.length);
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void writeLittleEndian(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >>> 8);
+        bytes[offset + 2] = (byte) (value >>> 16);
+        bytes[offset + 3] = (byte) (value >>> 24);
+    }
+}
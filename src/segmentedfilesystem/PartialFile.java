@@ -1,8 +1,14 @@
 package segmentedfilesystem;
 
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
 
+import segmentedfilesystem.model.ChunkRange;
 import segmentedfilesystem.model.File;
 
 /**
@@ -10,18 +16,85 @@ import segmentedfilesystem.model.File;
  */
 public class PartialFile {
     /**
-     * A map storing every chunk of the file we've received so far.
-     *
-     * The keys are packet numbers; the values are packet contents.
+     * The most chunks a file can have. Version 2 of the protocol has 32-bit packet numbers, but everything here is
+     * indexed by packet number, so we stop well short of that: this is 4 GiB of 1 KiB chunks.
+     */
+    public static final int MAX_CHUNKS = 1 << 22;
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int UNKNOWN = -1;
+
+    /**
+     * Where we keep the chunks of the file we've received so far.
+     */
+    private final ChunkStore chunks;
+
+    /**
+     * A bitmap of which packet numbers we've received: bit `n % 64` of `received[n / 64]` is set once we have packet
+     * `n`. The bitmap grows as higher-numbered packets arrive.
+     */
+    private long[] received = new long[bitmapWordsFor(INITIAL_CAPACITY)];
+
+    /**
+     * The CRC32C and length of each chunk we've received, indexed by packet number, so that the file's checksum can be
+     * put together at the end without going over the data again.
+     */
+    private int[] chunkChecksums = new int[INITIAL_CAPACITY];
+    private int[] chunkLengths = new int[INITIAL_CAPACITY];
+
+    /**
+     * How many distinct chunks we've received that belong to the file: every chunk, if we don't know how long the file
+     * is yet, or just the ones numbered below `numberOfChunks` if we do. Once this reaches `numberOfChunks`, we have
+     * all the data.
+     */
+    private int receivedChunkCount = 0;
+
+    /**
+     * The highest packet number we've received, or -1 if we haven't received any data yet.
      */
-    private SortedMap<Integer, byte[]> chunks = new TreeMap<Integer, byte[]>();
+    private int highestPacketNumber = -1;
+    public int getHighestPacketNumber() {
+        return highestPacketNumber;
+    }
+
+    /**
+     * When we heard about this file, according to `System.nanoTime()`.
+     */
+    private final long startedNanos = System.nanoTime();
+    public long getStartedNanos() {
+        return startedNanos;
+    }
+
+    /**
+     * How many bytes of chunk data this file is holding in memory. Duplicates aren't counted twice, and chunks that go
+     * straight to disk or have been spilled aren't counted at all.
+     */
+    private long bufferedBytes = 0;
+    public long getBufferedBytes() {
+        return bufferedBytes;
+    }
+
+    public PartialFile() {
+        this(new HeapChunkStore());
+    }
+
+    public PartialFile(ChunkStore chunks) {
+        this.chunks = chunks;
+    }
 
     /**
      * The name of the file.
      */
     private String filename = null;
+    public String getFilename() {
+        return filename;
+    }
     public void setFilename(String filename) {
+        boolean changed = !Objects.equals(this.filename, filename);
         this.filename = filename;
+        if (changed && journal != null) {
+            checkpoint();
+        }
     }
     public PartialFile withFilename(String filename) {
         setFilename(filename);
@@ -34,20 +107,129 @@ public class PartialFile {
      *
      * We don't know what this value is until after we've received the final data packet.
      */
-    private Integer numberOfChunks = null;
+    private int numberOfChunks = UNKNOWN;
     public void setNumberOfChunks(int numberOfChunks) {
+        boolean changed = this.numberOfChunks != numberOfChunks;
         this.numberOfChunks = numberOfChunks;
+        ensureCapacity(numberOfChunks);
+
+        // Stop counting any stray chunks past the end of the file.
+        receivedChunkCount = countReceivedBelow(numberOfChunks);
+        if (hasChunk(numberOfChunks - 1)) {
+            // The final chunk got here first, so only now do we know exactly how long the file is.
+            setStoreLength(chunkLengths[numberOfChunks - 1]);
+        }
+        if (changed && journal != null) {
+            checkpoint();
+        }
     }
     public PartialFile withNumberOfChunks(int numberOfChunks) {
         setNumberOfChunks(numberOfChunks);
         return this;
     }
 
+    /**
+     * If set, every chunk we get is also appended to this journal, and the filename, length and which chunks we have
+     * are checkpointed along the way, so the file can be recovered if the process dies (see `DownloadJournal`).
+     */
+    private ChunkJournal journal = null;
+    public void setJournal(ChunkJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Store a chunk of the file. If we already have a chunk with this packet number, the duplicate is ignored, and so
+     * is a chunk numbered past the end of the file, once we know where that is.
+     */
     public PartialFile addChunk(int packetNumber, byte[] data) {
+        if (hasChunk(packetNumber) || (numberOfChunks != UNKNOWN && packetNumber >= numberOfChunks)) {
+            return this;
+        }
+        ensureCapacity(packetNumber + 1);
+        if (packetNumber == numberOfChunks - 1) {
+            // This is the final chunk, so now we know exactly how long the file is.
+            setStoreLength(data.length);
+        }
         chunks.put(packetNumber, data);
+        chunkChecksums[packetNumber] = Crc32c.of(data);
+        chunkLengths[packetNumber] = data.length;
+        boolean checkpointDue = journal != null && journal.append(packetNumber, data, chunkChecksums[packetNumber]);
+
+        received[packetNumber >>> 6] |= 1L << packetNumber;
+        highestPacketNumber = Math.max(highestPacketNumber, packetNumber);
+        if (chunks.isWriteThrough()) {
+            // Storing one chunk may let a store write out others it was holding on to.
+            bufferedBytes = chunks.getBufferedBytes();
+        } else {
+            bufferedBytes += data.length;
+        }
+        receivedChunkCount++;
+        if (checkpointDue) {
+            checkpoint();
+        }
         return this;
     }
 
+    /**
+     * Return whether we've received chunk number `packetNumber`.
+     */
+    public boolean hasChunk(int packetNumber) {
+        int word = packetNumber >>> 6;
+        return word < received.length && (received[word] & (1L << packetNumber)) != 0;
+    }
+
+    /**
+     * Copy every chunk we don't have yet out of `other`, along with its length and name if we don't know them, and
+     * then release `other`. This is how we combine what we got about a file from two different sessions.
+     */
+    public void mergeFrom(PartialFile other) {
+        if (!isLengthKnown() && other.isLengthKnown()) {
+            setNumberOfChunks(other.numberOfChunks);
+        }
+        if (filename == null) {
+            setFilename(other.filename);
+        }
+        for (int packetNumber = 0; packetNumber <= other.highestPacketNumber; packetNumber++) {
+            if (other.hasChunk(packetNumber) && !hasChunk(packetNumber)) {
+                addChunk(packetNumber, other.chunks.get(packetNumber));
+            }
+        }
+        other.release();
+    }
+
+    /**
+     * Return whether we've seen the final packet, and so know how many chunks the file has.
+     */
+    public boolean isLengthKnown() {
+        return numberOfChunks != UNKNOWN;
+    }
+
+    /**
+     * Return the runs of chunks we're still waiting for. If we don't know how long the file is yet, this only covers
+     * gaps below the highest-numbered chunk we've received.
+     */
+    public List<ChunkRange> getMissingChunkRanges() {
+        // Read the bitmap once, so a report made from another thread can't see it half-grown.
+        long[] bitmap = received;
+        int end = Math.min(isLengthKnown() ? numberOfChunks : highestPacketNumber + 1, bitmap.length * 64);
+
+        var ranges = new ArrayList<ChunkRange>();
+        int gapStart = -1;
+        for (int i = 0; i < end; i++) {
+            boolean have = (bitmap[i >>> 6] & (1L << i)) != 0;
+            if (!have && gapStart < 0) {
+                gapStart = i;
+            } else if (have && gapStart >= 0) {
+                ranges.add(new ChunkRange(gapStart, i - 1));
+                gapStart = -1;
+            }
+        }
+        if (gapStart >= 0) {
+            ranges.add(new ChunkRange(gapStart, end - 1));
+        }
+        return ranges;
+    }
+
     /**
      * Return whether we've received the whole file from the server.
      *
@@ -57,8 +239,8 @@ public class PartialFile {
      */
     public boolean isComplete() {
         return filename != null
-            && numberOfChunks != null
-            && chunks.keySet().containsAll(Utils.range(0, numberOfChunks));
+            && numberOfChunks != UNKNOWN
+            && receivedChunkCount == numberOfChunks;
     }
 
     /**
@@ -71,6 +253,153 @@ public class PartialFile {
             throw new IllegalStateException("Trying to build a partial file before it's complete.");
         }
 
-        return new File(filename, Utils.flatten(chunks.values()));
+        return new File(filename, chunks.toByteArray(numberOfChunks), getChecksum());
+    }
+
+    /**
+     * Write the whole file to `outputStream`, a chunk at a time, without putting it all together in memory first.
+     *
+     * Throws an `IllegalStateException` if this PartialFile is not complete.
+     */
+    public void writeTo(OutputStream outputStream) throws IOException {
+        if (!isComplete()) {
+            throw new IllegalStateException("Trying to write a partial file before it's complete.");
+        }
+
+        for (int packetNumber = 0; packetNumber < numberOfChunks; packetNumber++) {
+            outputStream.write(chunks.get(packetNumber));
+        }
+    }
+
+    /**
+     * Return the CRC32C of the whole file, worked out from the checksums of its chunks.
+     *
+     * Throws an `IllegalStateException` if this PartialFile is not complete.
+     */
+    public long getChecksum() {
+        if (!isComplete()) {
+            throw new IllegalStateException("Trying to checksum a partial file before it's complete.");
+        }
+
+        int checksum = 0;
+        for (int packetNumber = 0; packetNumber < numberOfChunks; packetNumber++) {
+            checksum = Crc32c.combine(checksum, chunkChecksums[packetNumber], chunkLengths[packetNumber]);
+        }
+        return Integer.toUnsignedLong(checksum);
+    }
+
+    /**
+     * Whether this file's chunks are being written straight to disk, in which case it should be finished with
+     * `moveTo()` instead of `toFile()`.
+     */
+    public boolean isWriteThrough() {
+        return chunks.isWriteThrough();
+    }
+
+    /**
+     * If this file is being written out in order as it arrives (see `StreamingChunkStore`), where to, and how many
+     * bytes at the start of it are done; otherwise `null` and -1.
+     */
+    public Path getStreamedPath() {
+        return chunks.getStreamedPath();
+    }
+    public long getStreamedLength() {
+        return chunks.getStreamedLength();
+    }
+
+    /**
+     * Move a complete, written-through file into `directory`, under its own name.
+     *
+     * Throws an `IllegalStateException` if this PartialFile is not complete, or isn't being written through.
+     */
+    public void moveTo(Path directory) {
+        if (!isComplete()) {
+            throw new IllegalStateException("Trying to move a partial file before it's complete.");
+        }
+        if (!(chunks instanceof WriteThroughChunkStore writeThroughChunks)) {
+            throw new IllegalStateException("Trying to move a file that isn't being written through to disk.");
+        }
+        writeThroughChunks.moveTo(directory.resolve(filename));
+    }
+
+    /**
+     * Move the chunks we're holding in memory out to `spillFile`, and return how many bytes that freed. They're read
+     * back when the file is finished.
+     */
+    public long spill(SpillFile spillFile) {
+        long freed = chunks.spill(spillFile);
+        bufferedBytes -= freed;
+        return freed;
+    }
+
+    /**
+     * Let go of the chunks we're holding on to, and delete our journal if we have one. The PartialFile can't be used
+     * afterwards.
+     */
+    public void release() {
+        chunks.release();
+        if (journal != null) {
+            journal.delete();
+            journal = null;
+        }
+    }
+
+    /**
+     * Checkpoint and close our journal, if we have one, leaving it on disk so that a later run can pick this file up
+     * again.
+     */
+    public void closeJournal() {
+        if (journal != null) {
+            checkpoint();
+            journal.close();
+            journal = null;
+        }
+    }
+
+    /**
+     * Tell the store how long the file is, given that its final chunk is `finalChunkLength` bytes long. A
+     * write-through store cuts off any stray chunks it was given past the end, which may free some memory.
+     */
+    private void setStoreLength(int finalChunkLength) {
+        chunks.setLength((long) (numberOfChunks - 1) * DiskChunkStore.CHUNK_SIZE + finalChunkLength);
+        if (chunks.isWriteThrough()) {
+            bufferedBytes = chunks.getBufferedBytes();
+        }
+    }
+
+    private void checkpoint() {
+        journal.checkpoint(filename, numberOfChunks, received);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > MAX_CHUNKS) {
+            throw new IllegalArgumentException("A file can't have more than " + MAX_CHUNKS + " chunks");
+        }
+        int words = bitmapWordsFor(capacity);
+        if (words > received.length) {
+            received = Arrays.copyOf(received, Math.max(words, 2 * received.length));
+        }
+        if (capacity > chunkChecksums.length) {
+            int newLength = Math.max(capacity, 2 * chunkChecksums.length);
+            chunkChecksums = Arrays.copyOf(chunkChecksums, newLength);
+            chunkLengths = Arrays.copyOf(chunkLengths, newLength);
+        }
+    }
+
+    private int countReceivedBelow(int limit) {
+        int count = 0;
+        int fullWords = limit >>> 6;
+        for (int i = 0; i < fullWords; i++) {
+            count += Long.bitCount(received[i]);
+        }
+        int leftoverBits = limit & 63;
+        if (leftoverBits != 0) {
+            count += Long.bitCount(received[fullWords] & ((1L << leftoverBits) - 1));
+        }
+        return count;
+    }
+
+    private static int bitmapWordsFor(int capacity) {
+        return (capacity + 63) >>> 6;
     }
 }
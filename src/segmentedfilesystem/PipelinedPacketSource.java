@@ -0,0 +1,214 @@
+package segmentedfilesystem;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import segmentedfilesystem.model.OutOfMoneyPacket;
+
+/**
+ * A `PacketSource` that receives on a dedicated thread, so that slow work on the consuming side (printing, garbage
+ * collection pauses, writing files) doesn't stop us draining the socket.
+ *
+ * The receiver thread does nothing but pull datagrams from the wrapped source and publish them into a
+ * `SpscRingBuffer`; the thread calling `getPacket()` takes them out and does everything else. This works best with a
+ * pooled `OutOfMoneyApiService`, whose packets are decoded lazily, so the receiver thread really does only receive.
+ *
+ * Both threads wait the same way when they can't go on (the consumer for an empty ring, the receiver for a full one):
+ * they spin briefly, in case it's about to change, and then sleep between checks, so a long wait doesn't keep a core
+ * busy. If the wrapped source fails with anything but a timeout, the receiver thread stops, and once the consumer has
+ * taken everything that arrived before that, `getPacket()` throws the error.
+ */
+public class PipelinedPacketSource implements PacketSource {
+    // How long a thread that's waiting on the ring (to fill, or to make room) sleeps between checks.
+    private static final long RING_WAIT_PARK_NANOS = 50_000;
+    // How many times a thread checks the ring before it starts sleeping.
+    private static final int RING_WAIT_SPINS = 100;
+
+    private final PacketSource receiveSource;
+    private final SpscRingBuffer<OutOfMoneyPacket> ring;
+    private Thread receiverThread;
+    private volatile boolean stopping = false;
+    // Why the receiver thread stopped early, if it did.
+    private volatile IOException receiveError = null;
+
+    // Only the receiver thread writes these.
+    private volatile long ringFullEvents = 0;
+    private volatile int maxRingOccupancy = 0;
+
+    /**
+     * Wrap `receiveSource`, with a ring that holds up to `ringCapacity` packets (which must be a power of two).
+     */
+    public PipelinedPacketSource(PacketSource receiveSource, int ringCapacity) {
+        this.receiveSource = receiveSource;
+        this.ring = new SpscRingBuffer<>(ringCapacity);
+    }
+
+    /**
+     * How long `getPacket()` waits for the ring to fill before throwing a `SocketTimeoutException`, in milliseconds,
+     * or 0 to wait forever. Timeouts on the wrapped source are ignored by the receiver thread, so this is the one that
+     * callers see.
+     */
+    private int receiveTimeout = 0;
+    public int getReceiveTimeout() {
+        return receiveTimeout;
+    }
+    public void setReceiveTimeout(int receiveTimeout) {
+        this.receiveTimeout = receiveTimeout;
+    }
+    public PipelinedPacketSource withReceiveTimeout(int receiveTimeout) {
+        setReceiveTimeout(receiveTimeout);
+        return this;
+    }
+
+    /**
+     * How many packets are waiting in the ring right now.
+     */
+    public int getRingOccupancy() {
+        return ring.size();
+    }
+
+    /**
+     * The most packets that have been waiting in the ring at once.
+     */
+    public int getMaxRingOccupancy() {
+        return maxRingOccupancy;
+    }
+
+    public int getRingCapacity() {
+        return ring.getCapacity();
+    }
+
+    /**
+     * How many packets found the ring full, and had to wait for the consumer to make room.
+     */
+    public long getRingFullEvents() {
+        return ringFullEvents;
+    }
+
+    @Override
+    public void startInteraction(String serverName, int port) throws IOException {
+        receiveSource.startInteraction(serverName, port);
+        stopping = false;
+        receiveError = null;
+        receiverThread = new Thread(this::receiveLoop, "packet-receiver");
+        receiverThread.setDaemon(true);
+        receiverThread.start();
+    }
+
+    private void receiveLoop() {
+        while (!stopping) {
+            OutOfMoneyPacket packet;
+            try {
+                packet = receiveSource.getPacket();
+            } catch (SocketTimeoutException e) {
+                // The wrapped source is just telling us it's quiet; the consumer has its own timeout.
+                continue;
+            } catch (IOException e) {
+                // Trying again won't help (the socket's most likely closed), so hand the error to the consumer.
+                if (!stopping) {
+                    receiveError = e;
+                }
+                return;
+            }
+
+            if (!ring.offer(packet)) {
+                ringFullEvents++;
+                int spins = 0;
+                while (!ring.offer(packet)) {
+                    if (stopping) {
+                        packet.release();
+                        return;
+                    }
+                    spins = waitForRing(spins);
+                }
+            }
+
+            int occupancy = ring.size();
+            if (occupancy > maxRingOccupancy) {
+                maxRingOccupancy = occupancy;
+            }
+        }
+    }
+
+    @Override
+    public OutOfMoneyPacket getPacket() throws IOException {
+        if (receiverThread == null) {
+            throw new IllegalStateException("Trying to read a packet before starting an interaction");
+        }
+
+        int spins = 0;
+        long deadline = receiveTimeout > 0 ? System.nanoTime() + receiveTimeout * 1_000_000L : 0;
+        OutOfMoneyPacket packet;
+        while ((packet = ring.poll()) == null) {
+            IOException error = receiveError;
+            if (error != null) {
+                // The receiver may have published one last packet between our poll and its failure.
+                packet = ring.poll();
+                if (packet != null) {
+                    return packet;
+                }
+                throw new IOException("The receiver thread stopped", error);
+            }
+            if (deadline != 0 && System.nanoTime() - deadline > 0) {
+                throw new SocketTimeoutException("No packet received in " + receiveTimeout + " ms");
+            }
+            spins = waitForRing(spins);
+        }
+        return packet;
+    }
+
+    /**
+     * Wait a moment before checking the ring again, having already checked it `spins` times, and return the new count.
+     */
+    private static int waitForRing(int spins) {
+        if (spins < RING_WAIT_SPINS) {
+            Thread.onSpinWait();
+            return spins + 1;
+        }
+        LockSupport.parkNanos(RING_WAIT_PARK_NANOS);
+        return spins;
+    }
+
+    /**
+     * Wait for a packet, then take it and whatever else is already in the ring, up to `maxPackets` in total.
+     */
+    @Override
+    public int getPackets(List<OutOfMoneyPacket> batch, int maxPackets) throws IOException {
+        batch.add(getPacket());
+        int count = 1;
+        OutOfMoneyPacket packet;
+        while (count < maxPackets && (packet = ring.poll()) != null) {
+            batch.add(packet);
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public void endInteraction() {
+        stopping = true;
+        // Closing the socket wakes the receiver thread up if it's waiting for a packet.
+        receiveSource.endInteraction();
+        try {
+            receiverThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        OutOfMoneyPacket leftover;
+        while ((leftover = ring.poll()) != null) {
+            leftover.release();
+        }
+        receiverThread = null;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+            "PipelinedPacketSource[ring %d/%d, max occupancy %d, full %d times]",
+            getRingOccupancy(), getRingCapacity(), getMaxRingOccupancy(), getRingFullEvents()
+        );
+    }
+}
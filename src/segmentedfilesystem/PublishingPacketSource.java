@@ -0,0 +1,110 @@
+package segmentedfilesystem;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+
+import segmentedfilesystem.model.OutOfMoneyDataPacket;
+import segmentedfilesystem.model.OutOfMoneyHeaderPacket;
+import segmentedfilesystem.model.OutOfMoneyPacket;
+
+/**
+ * A `PacketSource` that also publishes every packet it hands out to `Flow` subscribers, so other stages can watch the
+ * raw packets go by (to forward them somewhere else, say) without getting in the way of reassembly.
+ *
+ * Packets are delivered on `executor`, and each subscriber has a buffer of up to `maxBufferCapacity` of them. Once a
+ * subscriber's buffer is full, `getPacket()` waits until it catches up, so a slow subscriber slows the download down
+ * rather than letting packets pile up in memory. With no subscribers, nothing is published.
+ *
+ * Subscribers get packets of their own: views over pooled buffers are copied before they're published, since the
+ * caller releases its packet as soon as it's done with it. `close()` tells subscribers there's nothing more to come.
+ */
+public class PublishingPacketSource implements PacketSource, Flow.Publisher<OutOfMoneyPacket>, AutoCloseable {
+    private final PacketSource source;
+    private final SubmissionPublisher<OutOfMoneyPacket> publisher;
+
+    /**
+     * Wrap `source`, delivering packets on the common fork-join pool, with buffers of `Flow.defaultBufferSize()`.
+     */
+    public PublishingPacketSource(PacketSource source) {
+        this.source = source;
+        this.publisher = new SubmissionPublisher<>();
+    }
+
+    public PublishingPacketSource(PacketSource source, Executor executor, int maxBufferCapacity) {
+        this.source = source;
+        this.publisher = new SubmissionPublisher<>(executor, maxBufferCapacity);
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super OutOfMoneyPacket> subscriber) {
+        publisher.subscribe(subscriber);
+    }
+
+    @Override
+    public void startInteraction(String serverName, int port) throws IOException {
+        source.startInteraction(serverName, port);
+    }
+
+    @Override
+    public OutOfMoneyPacket getPacket() throws IOException {
+        OutOfMoneyPacket packet = source.getPacket();
+        publish(packet);
+        return packet;
+    }
+
+    @Override
+    public int getPackets(List<OutOfMoneyPacket> batch, int maxPackets) throws IOException {
+        int start = batch.size();
+        int added = source.getPackets(batch, maxPackets);
+        for (int i = start; i < start + added; i++) {
+            publish(batch.get(i));
+        }
+        return added;
+    }
+
+    @Override
+    public void endInteraction() {
+        source.endInteraction();
+    }
+
+    /**
+     * Tell subscribers that there are no more packets. This doesn't end the interaction with the server.
+     */
+    @Override
+    public void close() {
+        publisher.close();
+    }
+
+    private void publish(OutOfMoneyPacket packet) {
+        if (publisher.hasSubscribers()) {
+            publisher.submit(detach(packet));
+        }
+    }
+
+    /**
+     * Return a packet with the same contents as `packet` that doesn't depend on anything `packet.release()` gives
+     * back. Ordinary packets already own their contents, so they're returned as they are.
+     */
+    static OutOfMoneyPacket detach(OutOfMoneyPacket packet) {
+        Class<?> type = packet.getClass();
+        if (type == OutOfMoneyDataPacket.class || type == OutOfMoneyHeaderPacket.class) {
+            return packet;
+        }
+
+        OutOfMoneyPacket copy;
+        if (packet.isHeaderPacket()) {
+            copy = new OutOfMoneyHeaderPacket(packet.getFileId(), packet.getContents());
+        } else {
+            var dataPacket = (OutOfMoneyDataPacket) packet;
+            copy = new OutOfMoneyDataPacket(
+                packet.getFileId(), packet.getContents(), dataPacket.getPacketNumber(), dataPacket.isFinalPacket()
+            );
+        }
+        copy.setReceivedNanos(packet.getReceivedNanos());
+        copy.setSource(packet.getSource());
+        return copy;
+    }
+}
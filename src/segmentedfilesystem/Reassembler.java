@@ -0,0 +1,514 @@
+package segmentedfilesystem;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import segmentedfilesystem.model.ChunkEvent;
+import segmentedfilesystem.model.OutOfMoneyDataPacket;
+import segmentedfilesystem.model.OutOfMoneyHeaderPacket;
+import segmentedfilesystem.model.OutOfMoneyPacket;
+
+/**
+ * The state of one OutOfMoney.com session: every file we've heard about so far, and how far along each one is.
+ *
+ * This class doesn't care where packets come from, so the same reassembly logic works whether we're reading from a
+ * blocking socket (`FileRetriever`) or from many non-blocking channels at once (`SessionMultiplexer`).
+ *
+ * Each file is written to disk, and its memory given back, as soon as it's complete. After that its file ID is
+ * tombstoned, so late duplicates of its packets are ignored rather than starting the file all over again.
+ *
+ * A session can be `restart()`ed without losing what we already have. The server is free to hand out different file
+ * IDs the next time round, so the files we've started are set aside by name, and merged back in when their headers
+ * turn up again.
+ *
+ * If there's a `MemoryBudget` and we go over it, the chunks of the files we've heard from least recently are spilled
+ * to a temporary `SpillFile` until we're back under it (or have nothing left in memory). They're read back when their
+ * files are written.
+ *
+ * If there's a `DownloadJournal`, every file is journaled as it arrives, and files recovered from an earlier run can be
+ * `resume()`d: they're set aside by name, just like after a restart.
+ *
+ * Every packet with a file ID we haven't seen takes up a slot, so a stream of spoofed IDs could make us keep hundreds
+ * of empty files going. `setMaxFileIds()` caps how many different IDs a session can start; packets for IDs beyond
+ * that are dropped and counted. Packets numbered beyond what a file can hold (`PartialFile.MAX_CHUNKS`) are dropped
+ * too.
+ *
+ * Version 2 of the protocol has 16-bit file IDs, so the table of files is split into pages of `PAGE_SIZE` IDs, which
+ * are only allocated once an ID in them is used. A version 1 session only ever touches the first page.
+ */
+public class Reassembler {
+    // File IDs are at most 16 bits, so there can't be more than this many files in one session.
+    private static final int MAX_FILE_IDS = 1 << 16;
+    private static final int PAGE_SIZE = 256;
+
+    private final FileWriterService fileWriterService;
+    private final MemoryBudget memoryBudget;
+
+    // A table from file IDs to partial files, which we'll append to until they're complete, a page at a time: file ID
+    // `id` is at `downloadingPages[id / PAGE_SIZE][id % PAGE_SIZE]`.
+    private final PartialFile[][] downloadingPages = new PartialFile[MAX_FILE_IDS / PAGE_SIZE][];
+    // The file IDs whose files we've already written.
+    private final BitSet completedIds = new BitSet();
+    // A packet can only change the state of its own file, so we keep running counts instead of re-checking every
+    // file after every packet.
+    private int filesStarted = 0;
+    private int filesCompleted = 0;
+    // How many file IDs have had a slot since the session (re)started, including ones that have been written or
+    // discarded since.
+    private int fileIdsUsed = 0;
+
+    // The names of the files we've written, in the order they finished.
+    private final Set<String> completedFilenames = new LinkedHashSet<>();
+    // Files from before the last restart, by name, that haven't turned up again yet. These still count towards
+    // `filesStarted`, except for the ones in `resumedFilenames`.
+    private final Map<String, PartialFile> carriedOver = new LinkedHashMap<>();
+    // The carried-over files that came from an earlier run rather than this one. The server may never send these
+    // again, so they don't count as started until their headers arrive.
+    private final Set<String> resumedFilenames = new HashSet<>();
+
+    // When each slot's file last got a packet, as a count of packets rather than a time, so we can tell which files
+    // have gone quiet. This is paged just like `downloadingPages`.
+    private final long[][] lastTouchedPages = new long[MAX_FILE_IDS / PAGE_SIZE][];
+    private long packetsAccepted = 0;
+    // How many bytes of new chunk data the packet we're handling brought, which saves copying a pooled packet's
+    // contents out a second time just to measure them.
+    private int newChunkBytes = 0;
+    // Where spilled chunks go. This is only created the first time we go over budget.
+    private SpillFile spillFile = null;
+
+    /**
+     * Called with each file's name once it's been written.
+     */
+    private Consumer<String> completionListener = null;
+    public void setCompletionListener(Consumer<String> completionListener) {
+        this.completionListener = completionListener;
+    }
+
+    /**
+     * Called with every new chunk as it arrives, and whenever a file gets its name or is finished (see `ChunkEvent`).
+     * It's called on the thread that's reassembling, so a listener that blocks (like `ChunkPublisher` when its
+     * subscribers fall behind) holds reassembly up.
+     */
+    private Consumer<ChunkEvent> chunkListener = null;
+    public void setChunkListener(Consumer<ChunkEvent> chunkListener) {
+        this.chunkListener = chunkListener;
+    }
+
+    /**
+     * If set, every packet, duplicate, reordering and completed file is recorded here.
+     */
+    private TransferMetrics metrics = null;
+    public void setMetrics(TransferMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * The most different file IDs a session can start, which, since the server gives every file its own ID, is the
+     * most files it can send. Packets for any more are dropped. This doesn't cap anything by default.
+     */
+    private int maxFileIds = MAX_FILE_IDS;
+    public int getMaxFileIds() {
+        return maxFileIds;
+    }
+    public void setMaxFileIds(int maxFileIds) {
+        if (maxFileIds <= 0) {
+            throw new IllegalArgumentException("A session needs room for at least one file ID");
+        }
+        this.maxFileIds = Math.min(maxFileIds, MAX_FILE_IDS);
+    }
+
+    /**
+     * How many packets have been dropped because their file IDs would have gone over `maxFileIds`.
+     */
+    private long packetsOverFileIdLimit = 0;
+    public long getPacketsOverFileIdLimit() {
+        return packetsOverFileIdLimit;
+    }
+
+    /**
+     * How many data packets have been dropped because their packet numbers were more than a file can hold.
+     */
+    private long packetsOutOfRange = 0;
+    public long getPacketsOutOfRange() {
+        return packetsOutOfRange;
+    }
+
+    /**
+     * If set, every new file gets a journal here, so that it can be recovered if we die before it's finished.
+     */
+    private DownloadJournal journal = null;
+    public void setJournal(DownloadJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Make a reassembler that gets its chunk stores from `fileWriterService`, and counts the chunks it holds in memory
+     * against `memoryBudget` (which may be `null`).
+     */
+    public Reassembler(FileWriterService fileWriterService, MemoryBudget memoryBudget) {
+        this.fileWriterService = fileWriterService;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Add a packet to the file it belongs to, and return whether it told us anything new (a chunk or filename we
+     * didn't have). If that completes the file, it's written straight away. This doesn't release the packet; that's
+     * up to the caller.
+     */
+    public boolean accept(OutOfMoneyPacket packet) {
+        newChunkBytes = 0;
+        boolean isNew = handle(packet);
+        if (metrics != null) {
+            metrics.recordPacket(packet.getReceivedNanos(), isNew, isNew ? newChunkBytes : 0);
+        }
+        return isNew;
+    }
+
+    private boolean handle(OutOfMoneyPacket packet) {
+        int fileIndex = packet.getFileId();
+        if (completedIds.get(fileIndex)) {
+            // A late duplicate for a file we've already written.
+            return false;
+        }
+        if (!packet.isHeaderPacket()) {
+            int packetNumber = ((OutOfMoneyDataPacket) packet).getPacketNumber();
+            if (packetNumber < 0 || packetNumber >= PartialFile.MAX_CHUNKS) {
+                packetsOutOfRange++;
+                return false;
+            }
+        }
+
+        PartialFile partialFile = downloading(fileIndex);
+        if (partialFile == null) {
+            if (fileIdsUsed >= maxFileIds) {
+                packetsOverFileIdLimit++;
+                return false;
+            }
+            fileIdsUsed++;
+            partialFile = new PartialFile(fileWriterService.newChunkStore());
+            if (journal != null) {
+                partialFile.setJournal(journal.open());
+            }
+            setDownloading(fileIndex, partialFile);
+            filesStarted++;
+        }
+
+        boolean isNew;
+        if (packet.isHeaderPacket()) {
+            var headerPacket = (OutOfMoneyHeaderPacket) packet;
+            String filename = headerPacket.getFilename();
+            if (completedFilenames.contains(filename)) {
+                // After a restart, the server is sending a file we already have under a new ID.
+                discard(fileIndex);
+                completedIds.set(fileIndex);
+                return false;
+            }
+
+            // Print some diagnostic output, just to make it clear that the process isn't hanging.
+            System.out.printf("Downloading file %s...\n", filename);
+            isNew = partialFile.getFilename() == null;
+            addHeaderToFile(partialFile, headerPacket);
+            if (isNew && chunkListener != null) {
+                chunkListener.accept(ChunkEvent.named(packet.getFileId(), filename));
+            }
+            PartialFile previous = carriedOver.remove(filename);
+            if (previous != null) {
+                partialFile = adopt(fileIndex, partialFile, previous);
+            }
+        } else {
+            isNew = addDataToFile(partialFile, (OutOfMoneyDataPacket) packet);
+        }
+        lastTouchedPages[fileIndex / PAGE_SIZE][fileIndex % PAGE_SIZE] = ++packetsAccepted;
+
+        if (partialFile.isComplete()) {
+            complete(fileIndex, partialFile);
+        }
+        if (isNew && memoryBudget != null && memoryBudget.isExceeded()) {
+            spillLeastRecentlyTouched();
+        }
+        return isNew;
+    }
+
+    /**
+     * Get ready for the server to start sending everything again. Files we know the names of are kept so they can be
+     * matched up with the new session; anything else can't be matched, so it's thrown away.
+     */
+    public void restart() {
+        for (int fileIndex = nextDownloading(0); fileIndex >= 0; fileIndex = nextDownloading(fileIndex + 1)) {
+            PartialFile pf = downloading(fileIndex);
+            if (pf.getFilename() != null) {
+                carriedOver.put(pf.getFilename(), pf);
+                setDownloading(fileIndex, null);
+            } else {
+                discard(fileIndex);
+            }
+        }
+        // The new session's IDs won't mean the same thing; files we've written are recognised by name instead.
+        completedIds.clear();
+        fileIdsUsed = 0;
+    }
+
+    /**
+     * Take on files recovered from an earlier run (see `DownloadJournal.recover()`), keyed by filename. They'll be
+     * matched up with this session's files when their headers arrive, and only count as started from then on, so a
+     * stale journal for a file the server never sends can't keep us waiting.
+     */
+    public void resume(Map<String, PartialFile> recoveredFiles) {
+        for (PartialFile pf : recoveredFiles.values()) {
+            System.out.printf("Resuming file %s...\n", pf.getFilename());
+            carriedOver.put(pf.getFilename(), pf);
+            changeBufferedBytes(pf.getBufferedBytes());
+            resumedFilenames.add(pf.getFilename());
+        }
+    }
+
+    /**
+     * Return whether we have at least `expectedFiles` files, and they're all complete.
+     */
+    public boolean isDone(int expectedFiles) {
+        return filesStarted >= expectedFiles && filesCompleted == filesStarted;
+    }
+
+    /**
+     * Return the names of the files we've written so far, in the order they finished.
+     */
+    public List<String> getCompletedFilenames() {
+        return new ArrayList<>(completedFilenames);
+    }
+
+    /**
+     * Describe the gaps in every file that isn't complete yet.
+     */
+    public List<LossReport.FileGaps> describeGaps() {
+        var gaps = new ArrayList<LossReport.FileGaps>();
+        for (int fileIndex = nextDownloading(0); fileIndex >= 0; fileIndex = nextDownloading(fileIndex + 1)) {
+            PartialFile pf = downloading(fileIndex);
+            String description = pf.getFilename() != null
+                ? pf.getFilename()
+                : String.format("file #%d (no header yet)", fileIndex);
+            gaps.add(new LossReport.FileGaps(description, pf.isLengthKnown(), pf.getMissingChunkRanges()));
+        }
+        for (PartialFile pf : carriedOver.values()) {
+            gaps.add(new LossReport.FileGaps(pf.getFilename(), pf.isLengthKnown(), pf.getMissingChunkRanges()));
+        }
+        return gaps;
+    }
+
+    /**
+     * Give back the memory this session has counted against its budget, let go of the chunks of files that aren't
+     * finished (closing and deleting any temporary files they were written through to), and delete anything it
+     * spilled. The journals of those files are closed, but kept for a later run to resume from. No more packets can be
+     * accepted after this, though `describeGaps()` still works.
+     */
+    public void releaseMemory() {
+        for (int fileIndex = nextDownloading(0); fileIndex >= 0; fileIndex = nextDownloading(fileIndex + 1)) {
+            PartialFile pf = downloading(fileIndex);
+            releaseMemory(pf);
+            pf.closeJournal();
+            pf.release();
+        }
+        for (PartialFile pf : carriedOver.values()) {
+            releaseMemory(pf);
+            pf.closeJournal();
+            pf.release();
+        }
+        if (spillFile != null) {
+            spillFile.close();
+            spillFile = null;
+        }
+    }
+
+    /**
+     * Spill whole files, starting with the ones we've heard from least recently, until we're back under budget. Files
+     * set aside by a restart go first, since we haven't heard from them at all since then.
+     */
+    private void spillLeastRecentlyTouched() {
+        for (PartialFile pf : carriedOver.values()) {
+            if (!memoryBudget.isExceeded()) {
+                return;
+            }
+            spill(pf);
+        }
+        while (memoryBudget.isExceeded()) {
+            int leastRecent = -1;
+            long leastRecentTouch = Long.MAX_VALUE;
+            for (int fileIndex = nextDownloading(0); fileIndex >= 0; fileIndex = nextDownloading(fileIndex + 1)) {
+                long touched = lastTouchedPages[fileIndex / PAGE_SIZE][fileIndex % PAGE_SIZE];
+                if (downloading(fileIndex).getBufferedBytes() > 0 && touched < leastRecentTouch) {
+                    leastRecent = fileIndex;
+                    leastRecentTouch = touched;
+                }
+            }
+            if (leastRecent < 0) {
+                // Everything this session has is already on disk; the rest of the budget is someone else's.
+                return;
+            }
+            spill(downloading(leastRecent));
+        }
+    }
+
+    private void spill(PartialFile pf) {
+        if (pf.getBufferedBytes() == 0) {
+            return;
+        }
+        if (spillFile == null) {
+            spillFile = new SpillFile();
+        }
+        changeBufferedBytes(-pf.spill(spillFile));
+    }
+
+    private void releaseMemory(PartialFile pf) {
+        changeBufferedBytes(-pf.getBufferedBytes());
+    }
+
+    /**
+     * Count `delta` more bytes (or fewer, if it's negative) as held in memory.
+     */
+    private void changeBufferedBytes(long delta) {
+        if (memoryBudget != null) {
+            if (delta >= 0) {
+                memoryBudget.reserve(delta);
+            } else {
+                memoryBudget.release(-delta);
+            }
+        }
+        if (metrics != null) {
+            metrics.recordBufferedBytes(delta);
+        }
+    }
+
+    /**
+     * Write a file that's just been completed, give its memory back, and tombstone its ID.
+     */
+    private void complete(int fileIndex, PartialFile partialFile) {
+        fileWriterService.writeCompletedFile(partialFile);
+        releaseMemory(partialFile);
+        partialFile.release();
+
+        setDownloading(fileIndex, null);
+        completedIds.set(fileIndex);
+        completedFilenames.add(partialFile.getFilename());
+        filesCompleted++;
+        if (metrics != null) {
+            metrics.recordFileCompleted(partialFile.getStartedNanos());
+        }
+        if (completionListener != null) {
+            completionListener.accept(partialFile.getFilename());
+        }
+        if (chunkListener != null) {
+            chunkListener.accept(ChunkEvent.completed(fileIndex, partialFile.getFilename()));
+        }
+    }
+
+    /**
+     * Throw away the file in slot `fileIndex`, as if we'd never heard of it.
+     */
+    private void discard(int fileIndex) {
+        PartialFile pf = downloading(fileIndex);
+        releaseMemory(pf);
+        pf.release();
+        setDownloading(fileIndex, null);
+        filesStarted--;
+    }
+
+    /**
+     * Put `previous` (a file from before a restart) in slot `fileIndex`, after merging in whatever `current` already
+     * got in this session, and return it. Both files were counted (unless `previous` was resumed from an earlier
+     * run), but now there's only one.
+     */
+    private PartialFile adopt(int fileIndex, PartialFile current, PartialFile previous) {
+        long bufferedBefore = previous.getBufferedBytes();
+        releaseMemory(current);
+        previous.mergeFrom(current);
+        changeBufferedBytes(previous.getBufferedBytes() - bufferedBefore);
+        setDownloading(fileIndex, previous);
+        if (!resumedFilenames.remove(previous.getFilename())) {
+            filesStarted--;
+        }
+        return previous;
+    }
+
+    /**
+     * Return the file in slot `fileIndex`, or `null` if there isn't one.
+     */
+    private PartialFile downloading(int fileIndex) {
+        PartialFile[] page = downloadingPages[fileIndex / PAGE_SIZE];
+        return page != null ? page[fileIndex % PAGE_SIZE] : null;
+    }
+
+    /**
+     * Put `pf` (or `null`, to empty it) in slot `fileIndex`, allocating the slot's page if it hasn't been yet. Pages
+     * are kept once they've been allocated, since a session that used one ID in a page is likely to use the rest.
+     */
+    private void setDownloading(int fileIndex, PartialFile pf) {
+        int pageIndex = fileIndex / PAGE_SIZE;
+        if (downloadingPages[pageIndex] == null) {
+            if (pf == null) {
+                return;
+            }
+            downloadingPages[pageIndex] = new PartialFile[PAGE_SIZE];
+            lastTouchedPages[pageIndex] = new long[PAGE_SIZE];
+        }
+        downloadingPages[pageIndex][fileIndex % PAGE_SIZE] = pf;
+    }
+
+    /**
+     * Return the lowest file ID from `fileIndex` on with a file in its slot, or -1 if there isn't one, skipping pages
+     * that were never allocated.
+     */
+    private int nextDownloading(int fileIndex) {
+        for (; fileIndex < MAX_FILE_IDS; fileIndex++) {
+            PartialFile[] page = downloadingPages[fileIndex / PAGE_SIZE];
+            if (page == null) {
+                // Jump to the last ID in this page, so the loop moves on to the start of the next.
+                fileIndex = (fileIndex / PAGE_SIZE + 1) * PAGE_SIZE - 1;
+            } else if (page[fileIndex % PAGE_SIZE] != null) {
+                return fileIndex;
+            }
+        }
+        return -1;
+    }
+
+    private void addHeaderToFile(PartialFile partialFile, OutOfMoneyHeaderPacket headerPacket) {
+        partialFile.setFilename(headerPacket.getFilename());
+    }
+
+    private boolean addDataToFile(PartialFile partialFile, OutOfMoneyDataPacket dataPacket) {
+        int packetNumber = dataPacket.getPacketNumber();
+        if (partialFile.hasChunk(packetNumber)) {
+            return false;
+        }
+        if (metrics != null && packetNumber < partialFile.getHighestPacketNumber()) {
+            metrics.recordReorder(partialFile.getHighestPacketNumber() - packetNumber);
+        }
+        // Set the length first, so that the partial file knows how big the file is when the final chunk goes in.
+        // That may cut off stray chunks past the end, which changes what's buffered too.
+        long bufferedBefore = partialFile.getBufferedBytes();
+        if (dataPacket.isFinalPacket()) {
+            partialFile.setNumberOfChunks(dataPacket.getPacketNumber() + 1);
+        }
+
+        byte[] data = dataPacket.getContents();
+        newChunkBytes = data.length;
+        partialFile.addChunk(packetNumber, data);
+        changeBufferedBytes(partialFile.getBufferedBytes() - bufferedBefore);
+        if (!partialFile.hasChunk(packetNumber)) {
+            // It's numbered past the end of the file, so the file didn't take it.
+            return false;
+        }
+        if (chunkListener != null) {
+            chunkListener.accept(ChunkEvent.chunk(
+                dataPacket.getFileId(), partialFile.getFilename(), packetNumber, data, dataPacket.isFinalPacket(),
+                partialFile.getStreamedPath(), partialFile.getStreamedLength()
+            ));
+        }
+        return true;
+    }
+}
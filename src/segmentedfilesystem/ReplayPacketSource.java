@@ -0,0 +1,258 @@
+package segmentedfilesystem;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import segmentedfilesystem.model.OutOfMoneyPacket;
+
+/**
+ * A `PacketSource` that plays back a log made by `DatagramCapture`, so a run can be repeated offline, packet for
+ * packet. Each datagram goes through the same `DatagramValidator` checks and the same decoding that it went through
+ * when it arrived.
+ *
+ * Every `startInteraction()` moves on to the next session in the log, whatever server it's given, and a session runs
+ * out where the next one starts. After that (or at the end of the log) the source behaves like a server that's gone
+ * quiet: `getPacket()` waits for the receive timeout and then throws a `SocketTimeoutException`, or, with no timeout,
+ * waits forever. So a `FileRetriever` with the same stall timeout as the original run restarts where it did.
+ *
+ * With `Pace.ORIGINAL`, datagrams are handed out with the same gaps between them as when they were captured, measured
+ * from the start of their session. With `Pace.FLAT_OUT`, they're handed out as fast as they're asked for; only the
+ * silences between sessions still take real time, since that's how a stall is noticed.
+ */
+public class ReplayPacketSource implements PacketSource, AutoCloseable {
+    /**
+     * How fast to play the log back.
+     */
+    public enum Pace {
+        /**
+         * With the same timing as the original run.
+         */
+        ORIGINAL,
+        /**
+         * As fast as the caller can take packets.
+         */
+        FLAT_OUT
+    }
+
+    // Nothing's left to read.
+    private static final int END_OF_LOG = -1;
+
+    private final Path path;
+    private final Pace pace;
+    private final DataInputStream in;
+    // Only used to decode datagrams, exactly as they're decoded when they arrive live.
+    private final OutOfMoneyApiService decoder = new OutOfMoneyApiService();
+
+    // The record we've read but not used yet: its type (or `END_OF_LOG`), when it was captured and where from, and,
+    // for a datagram, its contents.
+    private int recordType;
+    private long recordNanos;
+    private InetSocketAddress recordAddress;
+    private int recordFlags;
+    private int recordLength;
+    private final byte[] recordData = new byte[1 << 16];
+
+    // Whether we're inside a session, and when it started, both in the log and in this run.
+    private boolean inSession = false;
+    private long sessionCapturedNanos;
+    private long sessionStartedNanos;
+
+    /**
+     * How long to wait for a packet before giving up with a `SocketTimeoutException`, in milliseconds, or 0 to wait
+     * forever.
+     */
+    private int receiveTimeout = 0;
+    public int getReceiveTimeout() {
+        return receiveTimeout;
+    }
+    public void setReceiveTimeout(int receiveTimeout) {
+        this.receiveTimeout = receiveTimeout;
+    }
+    public ReplayPacketSource withReceiveTimeout(int receiveTimeout) {
+        setReceiveTimeout(receiveTimeout);
+        return this;
+    }
+
+    private final DatagramValidator validator = new DatagramValidator();
+    public DatagramValidator getValidator() {
+        return validator;
+    }
+
+    private long datagramsReplayed = 0;
+    public long getDatagramsReplayed() {
+        return datagramsReplayed;
+    }
+
+    private int sessionsReplayed = 0;
+    public int getSessionsReplayed() {
+        return sessionsReplayed;
+    }
+
+    /**
+     * Open the log at `path`. Throws an `IOException` if it can't be read, or isn't a log we know how to play.
+     */
+    public ReplayPacketSource(Path path, Pace pace) throws IOException {
+        this.path = path;
+        this.pace = pace;
+        this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)));
+        try {
+            if (in.readInt() != DatagramCapture.MAGIC) {
+                throw new IOException(path + " isn't a datagram capture");
+            }
+            int version = in.readByte();
+            if (version != DatagramCapture.VERSION) {
+                throw new IOException(path + " is a version " + version + " capture, which we can't play");
+            }
+            readRecord();
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Skip to the start of the next session in the log, ignoring whatever's left of this one.
+     */
+    @Override
+    public void startInteraction(String serverName, int port) throws IOException {
+        while (recordType == DatagramCapture.DATAGRAM_RECORD) {
+            readRecord();
+        }
+        inSession = recordType == DatagramCapture.SESSION_RECORD;
+        if (!inSession) {
+            return;
+        }
+        sessionCapturedNanos = recordNanos;
+        sessionStartedNanos = System.nanoTime();
+        validator.setExpectedSource((recordFlags & DatagramCapture.SOURCE_FILTERED) != 0 ? recordAddress : null);
+        validator.setOfferedVersion((recordFlags & DatagramCapture.OFFERED_VERSION_2) != 0 ? 2 : 1);
+        sessionsReplayed++;
+        readRecord();
+    }
+
+    /**
+     * Return the next valid datagram in this session, once it's due.
+     */
+    @Override
+    public OutOfMoneyPacket getPacket() throws IOException {
+        while (true) {
+            if (!inSession || recordType != DatagramCapture.DATAGRAM_RECORD) {
+                // The server went quiet here, so this never returns.
+                waitOutSilence();
+            }
+            if (pace == Pace.ORIGINAL) {
+                waitOrTimeOut(sessionStartedNanos + (recordNanos - sessionCapturedNanos));
+            }
+
+            datagramsReplayed++;
+            OutOfMoneyPacket packet = null;
+            if (validator.accept(
+                recordAddress.getAddress(), recordAddress.getPort(), recordLength, recordLength > 0 ? recordData[0] : 0
+            )) {
+                packet = decoder.deserialize(recordData, recordLength, validator.getProtocolVersion());
+                packet.setReceivedNanos(System.nanoTime());
+                packet.setSource(recordAddress);
+            }
+            readRecord();
+            if (packet != null) {
+                return packet;
+            }
+        }
+    }
+
+    /**
+     * There's no socket to close, and the log stays open for the next session.
+     */
+    @Override
+    public void endInteraction() {
+        inSession = false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Wait until `System.nanoTime()` reaches `dueNanos`, unless that's longer than the receive timeout, in which case
+     * wait for the timeout and throw a `SocketTimeoutException`.
+     */
+    private void waitOrTimeOut(long dueNanos) throws IOException {
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(receiveTimeout);
+        long now = System.nanoTime();
+        if (receiveTimeout > 0 && dueNanos - now > timeoutNanos) {
+            waitUntil(now + timeoutNanos);
+            throw new SocketTimeoutException("No packet received in " + receiveTimeout + " ms");
+        }
+        waitUntil(dueNanos);
+    }
+
+    /**
+     * Wait for the receive timeout and throw a `SocketTimeoutException`, or with no timeout, wait until interrupted.
+     */
+    private void waitOutSilence() throws IOException {
+        if (receiveTimeout == 0) {
+            while (true) {
+                LockSupport.park(this);
+                throwIfInterrupted();
+            }
+        }
+        waitUntil(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(receiveTimeout));
+        throw new SocketTimeoutException("No packet received in " + receiveTimeout + " ms");
+    }
+
+    private void waitUntil(long dueNanos) throws IOException {
+        long remainingNanos;
+        while ((remainingNanos = dueNanos - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remainingNanos);
+            throwIfInterrupted();
+        }
+    }
+
+    private void throwIfInterrupted() throws IOException {
+        if (Thread.interrupted()) {
+            throw new InterruptedIOException("Interrupted while replaying " + path);
+        }
+    }
+
+    /**
+     * Read the next record into the `record` fields. A log that stops partway through a record (because whoever was
+     * capturing it died) ends there.
+     */
+    private void readRecord() throws IOException {
+        try {
+            recordType = in.read();
+            if (recordType == END_OF_LOG) {
+                return;
+            }
+            recordNanos = in.readLong();
+            byte[] addressBytes = new byte[in.readUnsignedByte()];
+            in.readFully(addressBytes);
+            int port = in.readUnsignedShort();
+            recordAddress = addressBytes.length > 0
+                ? new InetSocketAddress(InetAddress.getByAddress(addressBytes), port)
+                : InetSocketAddress.createUnresolved("", port);
+
+            if (recordType == DatagramCapture.SESSION_RECORD) {
+                recordFlags = in.readUnsignedByte();
+            } else if (recordType == DatagramCapture.DATAGRAM_RECORD) {
+                recordLength = in.readUnsignedShort();
+                in.readFully(recordData, 0, recordLength);
+            } else {
+                throw new IOException("Unknown record type " + recordType + " in " + path);
+            }
+        } catch (EOFException e) {
+            recordType = END_OF_LOG;
+        }
+    }
+}
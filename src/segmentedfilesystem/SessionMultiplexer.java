@@ -0,0 +1,260 @@
+package segmentedfilesystem;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Downloads files from many OutOfMoney.com servers at once, using a single thread.
+ *
+ * Every session gets its own non-blocking `DatagramChannel`, and all of the channels are registered with one
+ * `Selector`. The event loop reads whatever datagrams are ready into pooled buffers and hands them to that session's
+ * `Reassembler`. This is an alternative to `DownloadEngine`'s thread-per-session approach.
+ */
+public class SessionMultiplexer {
+    // The most datagrams we'll read from one channel before giving the other channels a turn.
+    private static final int MAX_DATAGRAMS_PER_WAKEUP = 64;
+
+    private final Path outputDirectory;
+    private final PacketPool packetPool;
+
+    /**
+     * How many files each server is going to send. A session is over as soon as that many are complete.
+     */
+    private int expectedFiles = FileRetriever.NUMBER_OF_FILES_EXPECTED;
+    public SessionMultiplexer withExpectedFiles(int expectedFiles) {
+        if (expectedFiles <= 0) {
+            throw new IllegalArgumentException("Sessions need to know how many files to expect");
+        }
+        this.expectedFiles = expectedFiles;
+        return this;
+    }
+
+    /**
+     * If nothing arrives for a session for this long, in milliseconds, it fails with a `SocketTimeoutException`. 0
+     * means wait forever.
+     */
+    private long idleTimeoutMillis = 0;
+    public SessionMultiplexer withIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * Whether sessions should write chunks to disk as they arrive (see `DiskChunkStore`).
+     */
+    private boolean writeThrough = false;
+    public SessionMultiplexer withWriteThrough(boolean writeThrough) {
+        this.writeThrough = writeThrough;
+        return this;
+    }
+
+    /**
+     * If set, sessions that aren't writing through keep chunks off the heap in slabs shared between them (see
+     * `SlabChunkStore`).
+     */
+    private SlabAllocator slabAllocator = null;
+    public SessionMultiplexer withOffHeap(boolean offHeap) {
+        this.slabAllocator = offHeap ? new SlabAllocator() : null;
+        return this;
+    }
+
+    /**
+     * If set, every session records how it's going here, so these are totals across all of them.
+     */
+    private TransferMetrics metrics = null;
+    public SessionMultiplexer withMetrics(TransferMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * How many datagrams finished sessions dropped without decoding them (see `DatagramValidator`).
+     */
+    private long datagramsRejected = 0;
+    public long getDatagramsRejected() {
+        return datagramsRejected;
+    }
+
+    public SessionMultiplexer(Path outputDirectory, PacketPool packetPool) {
+        this.outputDirectory = outputDirectory;
+        this.packetPool = packetPool;
+    }
+
+    /**
+     * Download the files from every target, and return what happened to each one, in the same order as `targets`.
+     *
+     * A session that fails doesn't stop the others; its result records the error instead. Throws an `IOException` if
+     * we can't set up the selector itself.
+     */
+    public List<SessionResult> downloadAll(List<DownloadTarget> targets) throws IOException {
+        var results = new SessionResult[targets.size()];
+        var activeSessions = new ArrayList<Session>();
+
+        try (Selector selector = Selector.open()) {
+            for (int i = 0; i < targets.size(); i++) {
+                var session = new Session(i, targets.get(i));
+                try {
+                    session.start(selector);
+                    activeSessions.add(session);
+                } catch (IOException e) {
+                    results[i] = session.finish(e);
+                }
+            }
+
+            while (!activeSessions.isEmpty()) {
+                var finished = new ArrayList<Session>();
+                selector.select(key -> {
+                    var session = (Session) key.attachment();
+                    if (session.readReadyDatagrams()) {
+                        finished.add(session);
+                    }
+                }, idleTimeoutMillis);
+                if (idleTimeoutMillis > 0) {
+                    long now = System.nanoTime();
+                    for (Session session : activeSessions) {
+                        if (!finished.contains(session)
+                                && now - session.lastReceivedNanos > idleTimeoutMillis * 1_000_000) {
+                            session.error = new SocketTimeoutException(
+                                "Nothing arrived for " + idleTimeoutMillis + " ms"
+                            );
+                            finished.add(session);
+                        }
+                    }
+                }
+                for (Session session : finished) {
+                    results[session.index] = session.finish(session.error);
+                    activeSessions.remove(session);
+                }
+            }
+        } finally {
+            // If the selector itself failed, the sessions still running need their channels closed and their memory
+            // given back.
+            for (Session session : activeSessions) {
+                session.finish(null);
+            }
+        }
+
+        return List.of(results);
+    }
+
+    /**
+     * One download: its channel, and how far along its files are.
+     */
+    private final class Session {
+        private final int index;
+        private final DownloadTarget target;
+        private final Path directory;
+        private final Reassembler reassembler;
+        private final DatagramValidator validator = new DatagramValidator();
+        private DatagramChannel channel;
+        private long startedAt;
+        private long lastReceivedNanos;
+        private Exception error = null;
+
+        private Session(int index, DownloadTarget target) {
+            this.index = index;
+            this.target = target;
+            this.directory = outputDirectory.resolve(
+                String.format("%d-%s-%d", index, target.getServerName(), target.getPort())
+            );
+            var fileWriterService = new FileWriterService(directory)
+                .withWriteThrough(writeThrough)
+                .withSlabAllocator(slabAllocator);
+            this.reassembler = new Reassembler(fileWriterService, null);
+            this.reassembler.setMetrics(metrics);
+        }
+
+        private void start(Selector selector) throws IOException {
+            startedAt = System.nanoTime();
+            lastReceivedNanos = startedAt;
+            var server = new InetSocketAddress(target.getServerName(), target.getPort());
+            if (server.isUnresolved()) {
+                throw new IOException("Unable to resolve " + target);
+            }
+            Files.createDirectories(directory);
+
+            channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, this);
+            validator.setExpectedSource(server);
+            channel.send(ByteBuffer.allocate(0), server);
+        }
+
+        /**
+         * Read the datagrams waiting on this session's channel, and return whether the session is over, either
+         * because every file is complete or because the channel failed.
+         */
+        private boolean readReadyDatagrams() {
+            for (int i = 0; i < MAX_DATAGRAMS_PER_WAKEUP; i++) {
+                PacketPool.Slot slot = packetPool.acquire();
+                InetSocketAddress source;
+                try {
+                    source = (InetSocketAddress) channel.receive(slot.buffer);
+                    if (source == null) {
+                        // Nothing left to read for now.
+                        slot.release();
+                        return false;
+                    }
+                } catch (IOException e) {
+                    slot.release();
+                    error = e;
+                    return true;
+                }
+
+                slot.buffer.flip();
+                if (!validator.accept(source, slot.buffer)) {
+                    slot.release();
+                    continue;
+                }
+                lastReceivedNanos = System.nanoTime();
+                var packet = slot.view(validator.getProtocolVersion());
+                packet.setReceivedNanos(lastReceivedNanos);
+                packet.setSource(source);
+                try {
+                    reassembler.accept(packet);
+                } catch (RuntimeException e) {
+                    // Something went wrong with this session's files, which is no reason to stop the others.
+                    error = e;
+                    return true;
+                } finally {
+                    packet.release();
+                }
+                if (reassembler.isDone(expectedFiles)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private SessionResult finish(Exception error) {
+            datagramsRejected += validator.getRejected();
+            try {
+                try {
+                    if (channel != null) {
+                        // Closing the channel also deregisters it from the selector.
+                        channel.close();
+                    }
+                } finally {
+                    // Files that didn't finish keep nothing in memory (or in temporary files) once we're done.
+                    reassembler.releaseMemory();
+                }
+                if (error == null) {
+                    List<String> filenames = reassembler.getCompletedFilenames();
+                    return new SessionResult(target, filenames, 0, System.nanoTime() - startedAt, null);
+                }
+            } catch (IOException | RuntimeException e) {
+                error = e;
+            }
+            return new SessionResult(target, List.of(), 0, System.nanoTime() - startedAt, error);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package segmentedfilesystem;
+
+import java.util.List;
+
+/**
+ * What happened when we downloaded files from one server.
+ */
+public class SessionResult {
+    private final DownloadTarget target;
+    public DownloadTarget getTarget() {
+        return target;
+    }
+
+    private final List<String> filenames;
+    /**
+     * The names of the files we wrote. Empty if the session failed.
+     */
+    public List<String> getFilenames() {
+        return filenames;
+    }
+
+    private final long queuedNanos;
+    /**
+     * How long the session waited for a free slot (and for memory) before it started.
+     */
+    public long getQueuedNanos() {
+        return queuedNanos;
+    }
+
+    private final long elapsedNanos;
+    /**
+     * How long the session took once it started, including writing the files.
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    private final Throwable error;
+    /**
+     * Why the session failed, or `null` if it didn't.
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    public boolean isSuccessful() {
+        return error == null;
+    }
+
+    public SessionResult(
+        DownloadTarget target, List<String> filenames, long queuedNanos, long elapsedNanos, Throwable error
+    ) {
+        this.target = target;
+        this.filenames = filenames;
+        this.queuedNanos = queuedNanos;
+        this.elapsedNanos = elapsedNanos;
+        this.error = error;
+    }
+
+    @Override
+    public String toString() {
+        if (isSuccessful()) {
+            return String.format(
+                "%s: %d files in %d ms (queued %d ms)",
+                target, filenames.size(), elapsedNanos / 1_000_000, queuedNanos / 1_000_000
+            );
+        }
+        return String.format("%s: failed after %d ms: %s", target, elapsedNanos / 1_000_000, error);
+    }
+}
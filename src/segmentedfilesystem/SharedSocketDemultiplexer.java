@@ -0,0 +1,272 @@
+package segmentedfilesystem;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Downloads files from many OutOfMoney.com servers at once, through a single UDP socket.
+ *
+ * Every server is asked for its files from the same socket, and each datagram is routed by who sent it: each server
+ * gets its own `Reassembler`, whose table is indexed by file ID, so the state of a file is really keyed by (server
+ * address, file ID). Datagrams from anyone we didn't contact are dropped before they're even decoded.
+ *
+ * Compared with `SessionMultiplexer`, this needs one port and one buffer queue in the kernel, however many servers
+ * there are. The catch is that we can only talk to each server address once: two sessions with the same server
+ * would both send us file IDs from the same address, and there'd be no telling them apart.
+ */
+public class SharedSocketDemultiplexer {
+    private final Path outputDirectory;
+    private final PacketPool packetPool;
+
+    /**
+     * The local port to receive on, or 0 to let the OS pick one.
+     */
+    private int localPort = 0;
+    public SharedSocketDemultiplexer withLocalPort(int localPort) {
+        this.localPort = localPort;
+        return this;
+    }
+
+    /**
+     * The size of receive buffer (`SO_RCVBUF`) to ask the OS for, or 0 for the OS's default. Every server shares it,
+     * so it should be bigger than a single session would need.
+     */
+    private int receiveBufferSize = 0;
+    public SharedSocketDemultiplexer withReceiveBufferSize(int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+        return this;
+    }
+
+    /**
+     * How many files each server is going to send. A session is over as soon as that many are complete.
+     */
+    private int expectedFiles = FileRetriever.NUMBER_OF_FILES_EXPECTED;
+    public SharedSocketDemultiplexer withExpectedFiles(int expectedFiles) {
+        if (expectedFiles <= 0) {
+            throw new IllegalArgumentException("Sessions need to know how many files to expect");
+        }
+        this.expectedFiles = expectedFiles;
+        return this;
+    }
+
+    /**
+     * If nothing arrives from anyone for this long, in milliseconds, the sessions that aren't finished fail with a
+     * `SocketTimeoutException`. 0 means wait forever.
+     */
+    private long idleTimeoutMillis = 0;
+    public SharedSocketDemultiplexer withIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * Whether sessions should write chunks to disk as they arrive (see `DiskChunkStore`).
+     */
+    private boolean writeThrough = false;
+    public SharedSocketDemultiplexer withWriteThrough(boolean writeThrough) {
+        this.writeThrough = writeThrough;
+        return this;
+    }
+
+    /**
+     * If set, every session records how it's going here, so these are totals across all of them.
+     */
+    private TransferMetrics metrics = null;
+    public SharedSocketDemultiplexer withMetrics(TransferMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * How many datagrams came from addresses we never contacted, and were dropped.
+     */
+    private long strayDatagramsDropped = 0;
+    public long getStrayDatagramsDropped() {
+        return strayDatagramsDropped;
+    }
+
+    /**
+     * How many datagrams from servers we did contact were dropped for being too short or too long to be packets, by
+     * sessions that are over.
+     */
+    private long malformedDatagramsDropped = 0;
+    public long getMalformedDatagramsDropped() {
+        return malformedDatagramsDropped;
+    }
+
+    public SharedSocketDemultiplexer(Path outputDirectory, PacketPool packetPool) {
+        this.outputDirectory = outputDirectory;
+        this.packetPool = packetPool;
+    }
+
+    /**
+     * Download the files from every target, and return what happened to each one, in the same order as `targets`.
+     *
+     * A session that fails doesn't stop the others; its result records the error instead. Throws an `IOException` if
+     * we can't set up the socket itself.
+     */
+    public List<SessionResult> downloadAll(List<DownloadTarget> targets) throws IOException {
+        var results = new SessionResult[targets.size()];
+        Map<InetSocketAddress, Session> sessions = new HashMap<>();
+        long startedAt = System.nanoTime();
+
+        try (DatagramChannel channel = DatagramChannel.open(); Selector selector = Selector.open()) {
+            if (receiveBufferSize > 0) {
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+            }
+            channel.bind(new InetSocketAddress(localPort));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+
+            for (int i = 0; i < targets.size(); i++) {
+                DownloadTarget target = targets.get(i);
+                var address = new InetSocketAddress(target.getServerName(), target.getPort());
+                if (address.isUnresolved()) {
+                    results[i] = failed(target, startedAt, new IOException("Unable to resolve " + target));
+                } else if (sessions.containsKey(address)) {
+                    results[i] = failed(
+                        target, startedAt, new IllegalArgumentException("Already downloading from " + address)
+                    );
+                } else {
+                    var session = new Session(i, target);
+                    try {
+                        Files.createDirectories(session.directory);
+                        channel.send(ByteBuffer.allocate(0), address);
+                        sessions.put(address, session);
+                    } catch (IOException e) {
+                        results[i] = failed(target, startedAt, e);
+                    }
+                }
+            }
+
+            int activeSessions = sessions.size();
+            while (activeSessions > 0) {
+                // Passing an action means the selector doesn't have to keep a set of selected keys for us to clear.
+                if (selector.select(key -> { }, idleTimeoutMillis) == 0) {
+                    if (idleTimeoutMillis > 0) {
+                        break;
+                    }
+                    continue;
+                }
+                activeSessions -= readReadyDatagrams(channel, sessions, results, startedAt);
+            }
+        } finally {
+            // Whatever stopped us, the sessions that aren't over yet have failed, and need their memory given back.
+            for (Session session : sessions.values()) {
+                if (results[session.index] == null) {
+                    results[session.index] = session.finish(startedAt, new SocketTimeoutException(
+                        "Nothing arrived for " + idleTimeoutMillis + " ms"
+                    ));
+                }
+            }
+        }
+        return List.of(results);
+    }
+
+    /**
+     * Read every datagram waiting on the channel, route each one to its session, and return how many sessions that
+     * finished.
+     */
+    private int readReadyDatagrams(
+        DatagramChannel channel, Map<InetSocketAddress, Session> sessions, SessionResult[] results, long startedAt
+    ) throws IOException {
+        int finished = 0;
+        while (true) {
+            PacketPool.Slot slot = packetPool.acquire();
+            InetSocketAddress source;
+            try {
+                source = (InetSocketAddress) channel.receive(slot.buffer);
+            } catch (IOException e) {
+                slot.release();
+                throw e;
+            }
+            if (source == null) {
+                // Nothing left to read for now.
+                slot.release();
+                return finished;
+            }
+
+            Session session = sessions.get(source);
+            if (session == null || results[session.index] != null) {
+                // Someone we didn't contact, or a late duplicate for a session that's over.
+                strayDatagramsDropped++;
+                slot.release();
+                continue;
+            }
+
+            slot.buffer.flip();
+            if (!session.validator.accept(source, slot.buffer)) {
+                slot.release();
+                continue;
+            }
+            var packet = slot.view(session.validator.getProtocolVersion());
+            packet.setReceivedNanos(System.nanoTime());
+            packet.setSource(source);
+            try {
+                session.reassembler.accept(packet);
+            } catch (RuntimeException e) {
+                results[session.index] = session.finish(startedAt, e);
+                finished++;
+                continue;
+            } finally {
+                packet.release();
+            }
+            if (session.reassembler.isDone(expectedFiles)) {
+                results[session.index] = session.finish(startedAt, null);
+                finished++;
+            }
+        }
+    }
+
+    private static SessionResult failed(DownloadTarget target, long startedAt, Exception error) {
+        return new SessionResult(target, List.of(), 0, System.nanoTime() - startedAt, error);
+    }
+
+    /**
+     * One server we're downloading from, and how far along its files are.
+     */
+    private final class Session {
+        private final int index;
+        private final DownloadTarget target;
+        private final Path directory;
+        private final Reassembler reassembler;
+        // Each server settles on its own protocol version, so each session needs its own validator. Sessions are told
+        // apart by address already, so it only checks lengths and versions.
+        private final DatagramValidator validator = new DatagramValidator();
+
+        private Session(int index, DownloadTarget target) {
+            this.index = index;
+            this.target = target;
+            this.directory = outputDirectory.resolve(
+                String.format("%d-%s-%d", index, target.getServerName(), target.getPort())
+            );
+            this.reassembler = new Reassembler(new FileWriterService(directory).withWriteThrough(writeThrough), null);
+            this.reassembler.setMetrics(metrics);
+        }
+
+        /**
+         * End this session, giving back the memory its unfinished files were using, and return its result: the files
+         * it wrote, or `error` if it failed.
+         */
+        private SessionResult finish(long startedAt, Exception error) {
+            malformedDatagramsDropped += validator.getRejected();
+            reassembler.releaseMemory();
+            if (error != null) {
+                return failed(target, startedAt, error);
+            }
+            List<String> filenames = reassembler.getCompletedFilenames();
+            return new SessionResult(target, filenames, 0, System.nanoTime() - startedAt, null);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package segmentedfilesystem;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands out fixed-size slabs of off-heap memory for `SlabChunkStore`s to keep chunks in, and takes them back when the
+ * stores are released.
+ *
+ * Slabs are carved out of much bigger direct `ByteBuffer`s, since allocating direct memory is slow and each buffer
+ * has bookkeeping of its own. Memory is never given back to the OS: returned slabs are kept for the next store that
+ * needs one, so the allocator grows to the most that was ever in use at once and stays there.
+ */
+public class SlabAllocator {
+    // How many chunks fit in one slab, and how many slabs to carve out of each direct buffer.
+    public static final int DEFAULT_SLOTS_PER_SLAB = 64;
+    private static final int SLABS_PER_REGION = 256;
+
+    private final int slabSize;
+    private final ArrayDeque<ByteBuffer> freeSlabs = new ArrayDeque<>();
+    // We use a lock rather than `synchronized`, so that virtual threads don't pin their carriers.
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * How many bytes of direct memory the allocator has reserved from the OS.
+     */
+    private long bytesReserved = 0;
+    public long getBytesReserved() {
+        lock.lock();
+        try {
+            return bytesReserved;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * How many slabs are currently held by stores.
+     */
+    private int slabsInUse = 0;
+    public int getSlabsInUse() {
+        lock.lock();
+        try {
+            return slabsInUse;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public SlabAllocator() {
+        this(DEFAULT_SLOTS_PER_SLAB);
+    }
+
+    /**
+     * Make an allocator whose slabs each have room for `slotsPerSlab` full chunks.
+     */
+    public SlabAllocator(int slotsPerSlab) {
+        this.slabSize = slotsPerSlab * DiskChunkStore.CHUNK_SIZE;
+    }
+
+    public int getSlotsPerSlab() {
+        return slabSize / DiskChunkStore.CHUNK_SIZE;
+    }
+
+    ByteBuffer acquire() {
+        lock.lock();
+        try {
+            if (freeSlabs.isEmpty()) {
+                var region = ByteBuffer.allocateDirect(slabSize * SLABS_PER_REGION);
+                for (int i = 0; i < SLABS_PER_REGION; i++) {
+                    freeSlabs.add(region.slice(i * slabSize, slabSize));
+                }
+                bytesReserved += region.capacity();
+            }
+            slabsInUse++;
+            return freeSlabs.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void release(ByteBuffer slab) {
+        lock.lock();
+        try {
+            freeSlabs.push(slab);
+            slabsInUse--;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package segmentedfilesystem;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A `ChunkStore` that keeps chunks off the heap, in slabs from a `SlabAllocator`.
+ *
+ * Each slab is divided into `CHUNK_SIZE`-byte slots, which are handed out in the order chunks arrive, so a chunk is
+ * just a slot number and the garbage collector never sees the data. When the store is released, its slabs all go back
+ * to the allocator at once.
+ */
+public class SlabChunkStore implements ChunkStore {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int NO_SLOT = -1;
+
+    private final SlabAllocator allocator;
+    private final int slotsPerSlab;
+
+    private ByteBuffer[] slabs = new ByteBuffer[1];
+    private int slabCount = 0;
+    private int slotCount = 0;
+
+    // The slot each chunk is in (or `NO_SLOT`), and how long it is, indexed by packet number. These grow as
+    // higher-numbered packets arrive.
+    private int[] slots = newSlots(INITIAL_CAPACITY);
+    private int[] lengths = new int[INITIAL_CAPACITY];
+
+    // Where each spilled chunk is in `spillFile`, indexed by packet number. This is only allocated the first time we
+    // spill; see `HeapChunkStore`.
+    private SpillFile spillFile = null;
+    private long[] spilledOffsets = null;
+
+    public SlabChunkStore(SlabAllocator allocator) {
+        this.allocator = allocator;
+        this.slotsPerSlab = allocator.getSlotsPerSlab();
+    }
+
+    @Override
+    public void put(int packetNumber, byte[] data) {
+        if (data.length > DiskChunkStore.CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunks can't be longer than " + DiskChunkStore.CHUNK_SIZE + " bytes");
+        }
+        ensureCapacity(packetNumber + 1);
+        if (slots[packetNumber] == NO_SLOT) {
+            slots[packetNumber] = newSlot();
+        }
+        if (spilledOffsets != null) {
+            spilledOffsets[packetNumber] = NO_SLOT;
+        }
+        lengths[packetNumber] = data.length;
+        int slot = slots[packetNumber];
+        slabFor(slot).put(offsetOf(slot), data);
+    }
+
+    @Override
+    public byte[] get(int packetNumber) {
+        byte[] data = new byte[lengths[packetNumber]];
+        copyChunk(packetNumber, data, 0);
+        return data;
+    }
+
+    @Override
+    public byte[] toByteArray(int numberOfChunks) {
+        long totalLength = 0;
+        for (int i = 0; i < numberOfChunks; i++) {
+            totalLength += lengths[i];
+        }
+        byte[] allBytes = new byte[Math.toIntExact(totalLength)];
+        int offset = 0;
+        for (int i = 0; i < numberOfChunks; i++) {
+            copyChunk(i, allBytes, offset);
+            offset += lengths[i];
+        }
+        return allBytes;
+    }
+
+    /**
+     * Spilling empties every slot, so all our slabs go back to the allocator. Like `HeapChunkStore`, a store only
+     * ever spills to one file, which it doesn't own.
+     */
+    @Override
+    public long spill(SpillFile spillFile) {
+        if (this.spillFile == null) {
+            this.spillFile = spillFile;
+            spilledOffsets = new long[slots.length];
+            Arrays.fill(spilledOffsets, NO_SLOT);
+        } else if (this.spillFile != spillFile) {
+            throw new IllegalStateException("A chunk store can only spill to one file");
+        }
+
+        long freed = 0;
+        for (int i = 0; i < slots.length; i++) {
+            int slot = slots[i];
+            if (slot != NO_SLOT) {
+                spilledOffsets[i] = spillFile.write(slabFor(slot).slice(offsetOf(slot), lengths[i]));
+                slots[i] = NO_SLOT;
+                freed += lengths[i];
+            }
+        }
+        releaseSlabs();
+        return freed;
+    }
+
+    @Override
+    public void release() {
+        releaseSlabs();
+        slots = null;
+        lengths = null;
+        spilledOffsets = null;
+        spillFile = null;
+    }
+
+    private void copyChunk(int packetNumber, byte[] destination, int offset) {
+        int slot = slots[packetNumber];
+        if (slot != NO_SLOT) {
+            slabFor(slot).get(offsetOf(slot), destination, offset, lengths[packetNumber]);
+        } else {
+            spillFile.read(spilledOffsets[packetNumber], destination, offset, lengths[packetNumber]);
+        }
+    }
+
+    private int newSlot() {
+        if (slotCount == slabCount * slotsPerSlab) {
+            if (slabCount == slabs.length) {
+                slabs = Arrays.copyOf(slabs, 2 * slabs.length);
+            }
+            slabs[slabCount++] = allocator.acquire();
+        }
+        return slotCount++;
+    }
+
+    private ByteBuffer slabFor(int slot) {
+        return slabs[slot / slotsPerSlab];
+    }
+
+    private int offsetOf(int slot) {
+        return (slot % slotsPerSlab) * DiskChunkStore.CHUNK_SIZE;
+    }
+
+    private void releaseSlabs() {
+        for (int i = 0; i < slabCount; i++) {
+            allocator.release(slabs[i]);
+            slabs[i] = null;
+        }
+        slabCount = 0;
+        slotCount = 0;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > slots.length) {
+            int oldLength = slots.length;
+            int newLength = Math.max(capacity, 2 * oldLength);
+            slots = Arrays.copyOf(slots, newLength);
+            Arrays.fill(slots, oldLength, newLength, NO_SLOT);
+            lengths = Arrays.copyOf(lengths, newLength);
+            if (spilledOffsets != null) {
+                spilledOffsets = Arrays.copyOf(spilledOffsets, newLength);
+                Arrays.fill(spilledOffsets, oldLength, newLength, NO_SLOT);
+            }
+        }
+    }
+
+    private static int[] newSlots(int capacity) {
+        int[] slots = new int[capacity];
+        Arrays.fill(slots, NO_SLOT);
+        return slots;
+    }
+}
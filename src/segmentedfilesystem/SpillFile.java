@@ -0,0 +1,94 @@
+package segmentedfilesystem;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A temporary file that chunks can be moved out to when we're holding too much in memory (see `ChunkStore.spill()`),
+ * and read back from when they're needed.
+ *
+ * Chunks are appended one after the other, in whatever order they're spilled, and the space isn't reused until the
+ * file is closed. That's fine for a download, which only ever spills the chunks it hasn't written yet, and deletes
+ * the file when it's over. Errors are reported as `UncheckedIOException`s, like `ChunkStore`s do.
+ */
+public class SpillFile implements AutoCloseable {
+    private final Path path;
+    private final FileChannel channel;
+    private final AtomicLong end = new AtomicLong();
+
+    /**
+     * Make a new spill file in the default temporary directory. It's deleted when it's closed.
+     */
+    public SpillFile() {
+        try {
+            path = Files.createTempFile("segmentedfilesystem-", ".spill");
+            channel = FileChannel.open(
+                path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE
+            );
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to create a spill file", e);
+        }
+    }
+
+    /**
+     * How many bytes have been spilled so far.
+     */
+    public long getSize() {
+        return end.get();
+    }
+
+    /**
+     * Append `data` to the file, and return where it went.
+     */
+    public long write(byte[] data) {
+        return write(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Append what's left in `buffer` to the file, and return where it went.
+     */
+    public long write(ByteBuffer buffer) {
+        long offset = end.getAndAdd(buffer.remaining());
+        int start = buffer.position();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, offset + buffer.position() - start);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write to " + path, e);
+        }
+        return offset;
+    }
+
+    /**
+     * Read `length` bytes starting at `offset` into `destination`, starting at `destinationOffset`.
+     */
+    public void read(long offset, byte[] destination, int destinationOffset, int length) {
+        var buffer = ByteBuffer.wrap(destination, destinationOffset, length);
+        try {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position() - destinationOffset) < 0) {
+                    throw new IOException("Unexpected end of file");
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read from " + path, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.printf("Unable to clean up %s\n", path);
+            e.printStackTrace();
+        }
+    }
+}
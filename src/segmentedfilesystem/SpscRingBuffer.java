@@ -0,0 +1,94 @@
+package segmentedfilesystem;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * A bounded, lock-free queue for exactly one producer thread and exactly one consumer thread.
+ *
+ * The producer only ever writes `tail` and the consumer only ever writes `head`, so neither side needs a lock or a
+ * compare-and-swap: each publishes its progress with a release store, and reads the other side's with an acquire
+ * load. Offering and polling don't allocate.
+ */
+public class SpscRingBuffer<E> {
+    private static final VarHandle HEAD;
+    private static final VarHandle TAIL;
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            HEAD = lookup.findVarHandle(SpscRingBuffer.class, "head", long.class);
+            TAIL = lookup.findVarHandle(SpscRingBuffer.class, "tail", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Object[] elements;
+    private final int mask;
+
+    // The index of the next element the consumer will take. Only the consumer writes this.
+    private volatile long head = 0;
+    // The index of the next slot the producer will fill. Only the producer writes this.
+    private volatile long tail = 0;
+
+    /**
+     * Make a ring buffer that can hold `capacity` elements. `capacity` must be a power of two.
+     */
+    public SpscRingBuffer(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("The capacity of a ring buffer must be a power of two");
+        }
+        this.elements = new Object[capacity];
+        this.mask = capacity - 1;
+    }
+
+    public int getCapacity() {
+        return elements.length;
+    }
+
+    /**
+     * Add an element to the ring, and return `true`; or, if the ring is full, return `false`.
+     *
+     * Only the producer thread may call this.
+     */
+    public boolean offer(E element) {
+        long currentTail = (long) TAIL.getOpaque(this);
+        if (currentTail - (long) HEAD.getAcquire(this) == elements.length) {
+            return false;
+        }
+
+        elements[(int) currentTail & mask] = element;
+        TAIL.setRelease(this, currentTail + 1);
+        return true;
+    }
+
+    /**
+     * Remove and return the oldest element in the ring, or return `null` if the ring is empty.
+     *
+     * Only the consumer thread may call this.
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long currentHead = (long) HEAD.getOpaque(this);
+        if (currentHead == (long) TAIL.getAcquire(this)) {
+            return null;
+        }
+
+        int index = (int) currentHead & mask;
+        E element = (E) elements[index];
+        // Don't keep the element alive after the consumer has it.
+        elements[index] = null;
+        HEAD.setRelease(this, currentHead + 1);
+        return element;
+    }
+
+    /**
+     * How many elements are in the ring right now. Any thread can call this, but the answer may be out of date by the
+     * time it returns.
+     */
+    public int size() {
+        long currentHead = (long) HEAD.getAcquire(this);
+        long currentTail = (long) TAIL.getAcquire(this);
+        return (int) Math.max(0, currentTail - currentHead);
+    }
+}
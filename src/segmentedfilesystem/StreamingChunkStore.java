@@ -0,0 +1,370 @@
+package segmentedfilesystem;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A `ChunkStore` that writes a file out in order, as soon as it can, the way TCP hands data to an application: the
+ * moment chunks 0 to k have all arrived, they're appended to a temporary file, and only the chunks that arrived ahead
+ * of a gap are held in memory.
+ *
+ * Chunks up to `reorderWindow` ahead of the first missing one wait in a ring. If the server gets further out of order
+ * than that, the `OverflowPolicy` decides what happens to the chunks beyond the window: `BUFFER` keeps them in memory
+ * too, which is as good as holding the whole file; `SPILL` writes them straight to their place in the file, as
+ * `DiskChunkStore` would, so they're skipped over when the gap before them fills. Either way, memory use depends on
+ * how far out of order packets arrive, rather than on how big the file is.
+ *
+ * Under `BUFFER`, the temporary file only ever holds the contiguous prefix of the file, so it can be read (up to
+ * `getContiguousLength()` bytes) long before the file is finished. Under `SPILL`, the same goes for those first bytes,
+ * but there may be more beyond them. Each new chunk's `ChunkEvent` says where the file is and how far it's got.
+ *
+ * Like `DiskChunkStore`, this relies on every chunk except the last being exactly `CHUNK_SIZE` bytes long. Once
+ * `setLength()` says where the file ends, stray chunks past that point are dropped, wherever they're waiting, and
+ * nothing is written past it.
+ */
+public class StreamingChunkStore implements WriteThroughChunkStore {
+    /**
+     * What to do with chunks that arrive further ahead of the first gap than the reorder window reaches.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Keep them in memory until the gap fills.
+         */
+        BUFFER,
+        /**
+         * Write them to their place in the file straight away.
+         */
+        SPILL
+    }
+
+    private final Path tempFile;
+    private final FileChannel channel;
+    private final OverflowPolicy overflowPolicy;
+
+    // The chunks waiting for the gap before them to fill. Chunk n, if it's within the window, is in slot
+    // n % window.length; chunks beyond the window that we're buffering are in `overflow`.
+    private final byte[][] window;
+    private final Map<Integer, byte[]> overflow = new HashMap<>();
+    // Chunks past the contiguous prefix that have already been written to their place in the file.
+    private final BitSet written = new BitSet();
+    private long bufferedBytes = 0;
+    // How far into the file anything's been written.
+    private long fileLength = 0;
+    // How long the finished file is, or -1 if we don't know yet.
+    private long length = -1;
+
+    /**
+     * The number of the first chunk we don't have yet. Every chunk before it is in the file.
+     */
+    private int contiguousChunks = 0;
+    public int getContiguousChunks() {
+        return contiguousChunks;
+    }
+
+    /**
+     * How many bytes at the start of the temporary file are the finished file's, with no gaps.
+     */
+    private long contiguousLength = 0;
+    public long getContiguousLength() {
+        return contiguousLength;
+    }
+
+    /**
+     * How many chunks have been written to the file ahead of a gap, because they arrived beyond the reorder window
+     * (under `SPILL`) or were spilled to free memory.
+     */
+    private long chunksWrittenOutOfOrder = 0;
+    public long getChunksWrittenOutOfOrder() {
+        return chunksWrittenOutOfOrder;
+    }
+
+    /**
+     * Make a store backed by a new temporary file in `directory`, which holds up to `reorderWindow` chunks ahead of a
+     * gap in memory before `overflowPolicy` kicks in.
+     */
+    public StreamingChunkStore(Path directory, int reorderWindow, OverflowPolicy overflowPolicy) {
+        if (reorderWindow <= 0) {
+            throw new IllegalArgumentException("The reorder window must hold at least one chunk");
+        }
+        this.window = new byte[reorderWindow][];
+        this.overflowPolicy = overflowPolicy;
+        tempFile = DiskChunkStore.newTempFilePath(directory);
+        try {
+            channel = FileChannel.open(
+                tempFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE
+            );
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to create a temporary file in " + directory, e);
+        }
+    }
+
+    @Override
+    public void put(int packetNumber, byte[] data) {
+        if (data.length > DiskChunkStore.CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunks can't be longer than " + DiskChunkStore.CHUNK_SIZE + " bytes");
+        }
+        if (packetNumber < contiguousChunks || written.get(packetNumber)) {
+            // Already in the file.
+            return;
+        }
+        if (length >= 0 && packetNumber > lastChunk()) {
+            // Past the end of the file.
+            return;
+        }
+
+        if (packetNumber == contiguousChunks) {
+            write(packetNumber, data);
+            advance();
+        } else if (packetNumber < contiguousChunks + window.length) {
+            int slot = packetNumber % window.length;
+            if (window[slot] == null) {
+                window[slot] = data;
+                bufferedBytes += data.length;
+            }
+        } else if (overflowPolicy == OverflowPolicy.SPILL) {
+            writeOutOfOrder(packetNumber, data);
+        } else if (overflow.putIfAbsent(packetNumber, data) == null) {
+            bufferedBytes += data.length;
+        }
+    }
+
+    /**
+     * Return a chunk, from memory if it's still waiting there, or from the file if it's been written.
+     */
+    @Override
+    public byte[] get(int packetNumber) {
+        if (packetNumber >= contiguousChunks && !written.get(packetNumber)) {
+            byte[] data = packetNumber < contiguousChunks + window.length
+                ? window[packetNumber % window.length]
+                : overflow.get(packetNumber);
+            if (data == null) {
+                throw new IllegalArgumentException("Chunk " + packetNumber + " hasn't been stored");
+            }
+            return data;
+        }
+
+        long position = (long) packetNumber * DiskChunkStore.CHUNK_SIZE;
+        try {
+            var buffer = ByteBuffer.allocate(
+                (int) Math.max(0, Math.min(DiskChunkStore.CHUNK_SIZE, channel.size() - position))
+            );
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    break;
+                }
+            }
+            return buffer.array();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read from " + tempFile, e);
+        }
+    }
+
+    /**
+     * Drop every chunk past the end of the file, whether it's waiting in memory or already in the file, so that the
+     * file stops where it should.
+     */
+    @Override
+    public void setLength(long length) {
+        this.length = length;
+        int lastChunk = lastChunk();
+        for (int slot = 0; slot < window.length; slot++) {
+            if (window[slot] != null && packetNumberInSlot(slot) > lastChunk) {
+                bufferedBytes -= window[slot].length;
+                window[slot] = null;
+            }
+        }
+        var overflowChunks = overflow.entrySet().iterator();
+        while (overflowChunks.hasNext()) {
+            var entry = overflowChunks.next();
+            if (entry.getKey() > lastChunk) {
+                bufferedBytes -= entry.getValue().length;
+                overflowChunks.remove();
+            }
+        }
+        if (written.length() > lastChunk + 1) {
+            written.clear(lastChunk + 1, written.length());
+        }
+
+        try {
+            if (channel.size() > length) {
+                channel.truncate(length);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to resize " + tempFile, e);
+        }
+        fileLength = Math.min(fileLength, length);
+        contiguousLength = Math.min(contiguousLength, length);
+    }
+
+    /**
+     * Once every chunk has been stored, they've all been written, so the file is the whole thing.
+     */
+    @Override
+    public byte[] toByteArray(int numberOfChunks) {
+        if (contiguousChunks < numberOfChunks) {
+            throw new IllegalStateException("Chunk " + contiguousChunks + " hasn't been stored");
+        }
+        try {
+            return Files.readAllBytes(tempFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read " + tempFile, e);
+        }
+    }
+
+    /**
+     * How many bytes of chunks are waiting in memory for the gaps before them to fill.
+     */
+    @Override
+    public long getBufferedBytes() {
+        return bufferedBytes;
+    }
+
+    /**
+     * Write every chunk that's waiting in memory to its place in the file, whatever the overflow policy, and return
+     * how many bytes that freed. The spill file isn't needed, since the chunks have somewhere better to go.
+     */
+    @Override
+    public long spill(SpillFile spillFile) {
+        long freed = bufferedBytes;
+        for (int slot = 0; slot < window.length; slot++) {
+            if (window[slot] != null) {
+                writeOutOfOrder(packetNumberInSlot(slot), window[slot]);
+                window[slot] = null;
+            }
+        }
+        for (Map.Entry<Integer, byte[]> entry : overflow.entrySet()) {
+            writeOutOfOrder(entry.getKey(), entry.getValue());
+        }
+        overflow.clear();
+        bufferedBytes = 0;
+        return freed;
+    }
+
+    @Override
+    public Path getStreamedPath() {
+        return tempFile;
+    }
+
+    @Override
+    public long getStreamedLength() {
+        return contiguousLength;
+    }
+
+    @Override
+    public void moveTo(Path target) {
+        try {
+            channel.close();
+            Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to move " + tempFile + " to " + target, e);
+        }
+    }
+
+    @Override
+    public void release() {
+        Arrays.fill(window, null);
+        overflow.clear();
+        bufferedBytes = 0;
+        try {
+            channel.close();
+            Files.deleteIfExists(tempFile);
+        } catch (IOException e) {
+            System.err.printf("Unable to clean up %s\n", tempFile);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Having just written chunk `contiguousChunks`, move past it, and past every chunk after it that's waiting in
+     * memory or already in the file, writing the waiting ones as we go.
+     */
+    private void advance() {
+        while (true) {
+            contiguousChunks++;
+            int next = contiguousChunks;
+            // The window has moved on by one, so the slot we've just left now stands for the chunk at its far end,
+            // which may have been waiting in `overflow`.
+            pullIntoWindow(next + window.length - 1);
+            if (written.get(next)) {
+                written.clear(next);
+                // Only the last chunk can be short, and nothing's written after the end of the last chunk.
+                contiguousLength = Math.min((long) (next + 1) * DiskChunkStore.CHUNK_SIZE, fileLength);
+                continue;
+            }
+            int slot = next % window.length;
+            byte[] data = window[slot];
+            if (data == null) {
+                return;
+            }
+            window[slot] = null;
+            bufferedBytes -= data.length;
+            write(next, data);
+        }
+    }
+
+    /**
+     * Return the number of the chunk that `slot` holds, which is the one chunk in the window that maps to it.
+     */
+    private int packetNumberInSlot(int slot) {
+        return contiguousChunks + Math.floorMod(slot - contiguousChunks, window.length);
+    }
+
+    /**
+     * The number of the last chunk that can hold any of the file, once we know how long it is. If the file is a whole
+     * number of chunks long, the chunk after its last one can still be stored, since it may be an empty final chunk.
+     */
+    private int lastChunk() {
+        return (int) (length / DiskChunkStore.CHUNK_SIZE);
+    }
+
+    /**
+     * Move chunk `packetNumber` out of `overflow` into its window slot, if it's there.
+     */
+    private void pullIntoWindow(int packetNumber) {
+        if (overflow.isEmpty()) {
+            return;
+        }
+        byte[] data = overflow.remove(packetNumber);
+        if (data != null) {
+            window[packetNumber % window.length] = data;
+        }
+    }
+
+    private void write(int packetNumber, byte[] data) {
+        writeAt(packetNumber, data);
+        contiguousLength = Math.min((long) packetNumber * DiskChunkStore.CHUNK_SIZE + data.length, fileLength);
+    }
+
+    private void writeOutOfOrder(int packetNumber, byte[] data) {
+        writeAt(packetNumber, data);
+        written.set(packetNumber);
+        chunksWrittenOutOfOrder++;
+    }
+
+    private void writeAt(int packetNumber, byte[] data) {
+        var buffer = ByteBuffer.wrap(data);
+        long position = (long) packetNumber * DiskChunkStore.CHUNK_SIZE;
+        if (length >= 0 && position + data.length > length) {
+            // Whatever would go past the end of the file isn't part of it.
+            buffer.limit((int) Math.max(0, length - position));
+        }
+        try {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write to " + tempFile, e);
+        }
+        fileLength = Math.max(fileLength, position);
+    }
+}
@@ -0,0 +1,188 @@
+package segmentedfilesystem;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and histograms describing how transfers are going, which can be published over JMX with `register()`.
+ *
+ * `Reassembler` feeds these as it handles packets. Every `record...()` method is a few atomic operations on fields
+ * that already exist, so collecting metrics doesn't allocate anything on the packet path, and one instance can be
+ * shared by sessions running on different threads.
+ */
+public class TransferMetrics implements TransferMetricsMBean {
+    private static final long NANOS_PER_MICRO = 1_000;
+    private static final long NANOS_PER_MILLI = 1_000_000;
+
+    private final AtomicLong packetsReceived = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong duplicatePackets = new AtomicLong();
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private final Log2Histogram reorderDistance = new Log2Histogram();
+    private final Log2Histogram fileCompletionNanos = new Log2Histogram();
+    private final Log2Histogram assembleLatencyNanos = new Log2Histogram();
+    private volatile long startedNanos = System.nanoTime();
+
+    /**
+     * Publish these metrics in the platform MBean server as `segmentedfilesystem:type=TransferMetrics,name=<name>`.
+     */
+    public void register(String name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(
+            this, new ObjectName("segmentedfilesystem:type=TransferMetrics,name=" + ObjectName.quote(name))
+        );
+    }
+
+    /**
+     * A packet has been handled. `isNew` says whether it told us anything we didn't know, and `bytes` is how much new
+     * file data it had.
+     */
+    public void recordPacket(long receivedNanos, boolean isNew, int bytes) {
+        packetsReceived.incrementAndGet();
+        if (isNew) {
+            bytesReceived.addAndGet(bytes);
+        } else {
+            duplicatePackets.incrementAndGet();
+        }
+        if (receivedNanos != 0) {
+            assembleLatencyNanos.record(System.nanoTime() - receivedNanos);
+        }
+    }
+
+    /**
+     * A data packet arrived `distance` packet numbers behind the highest one we'd seen for its file.
+     */
+    public void recordReorder(int distance) {
+        reorderDistance.record(distance);
+    }
+
+    public void recordFileCompleted(long firstPacketNanos) {
+        fileCompletionNanos.record(System.nanoTime() - firstPacketNanos);
+    }
+
+    /**
+     * The amount of chunk data held in memory changed by `delta` bytes (which may be negative).
+     */
+    public void recordBufferedBytes(long delta) {
+        bufferedBytes.addAndGet(delta);
+    }
+
+    @Override
+    public long getPacketsReceived() {
+        return packetsReceived.get();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    @Override
+    public double getPacketsPerSecond() {
+        return perSecond(packetsReceived.get());
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        return perSecond(bytesReceived.get());
+    }
+
+    @Override
+    public long getDuplicatePackets() {
+        return duplicatePackets.get();
+    }
+
+    @Override
+    public long getReorderedPackets() {
+        return reorderDistance.getCount();
+    }
+
+    @Override
+    public long getReorderDistanceP99() {
+        return reorderDistance.getPercentile(99);
+    }
+
+    @Override
+    public long getMaxReorderDistance() {
+        return reorderDistance.getMax();
+    }
+
+    @Override
+    public long getFilesCompleted() {
+        return fileCompletionNanos.getCount();
+    }
+
+    @Override
+    public long getFileCompletionMillisP50() {
+        return fileCompletionNanos.getPercentile(50) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public long getFileCompletionMillisP99() {
+        return fileCompletionNanos.getPercentile(99) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public long getFileCompletionMillisMax() {
+        return fileCompletionNanos.getMax() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public long getAssembleLatencyMicrosP50() {
+        return assembleLatencyNanos.getPercentile(50) / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public long getAssembleLatencyMicrosP99() {
+        return assembleLatencyNanos.getPercentile(99) / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public long getAssembleLatencyMicrosP999() {
+        return assembleLatencyNanos.getPercentile(99.9) / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public long getAssembleLatencyMicrosMax() {
+        return assembleLatencyNanos.getMax() / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public long getBufferedBytes() {
+        return bufferedBytes.get();
+    }
+
+    /**
+     * Zero everything except the buffered bytes, which describe what's in memory right now rather than what's
+     * happened so far.
+     */
+    @Override
+    public void reset() {
+        packetsReceived.set(0);
+        bytesReceived.set(0);
+        duplicatePackets.set(0);
+        reorderDistance.reset();
+        fileCompletionNanos.reset();
+        assembleLatencyNanos.reset();
+        startedNanos = System.nanoTime();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+            "%d packets (%.0f/s), %d bytes (%.0f/s), %d duplicates, %d reordered (max distance %d), "
+                + "%d files (p50 %d ms), assemble latency p50 %d us / p99 %d us / max %d us",
+            getPacketsReceived(), getPacketsPerSecond(), getBytesReceived(), getBytesPerSecond(),
+            getDuplicatePackets(), getReorderedPackets(), getMaxReorderDistance(),
+            getFilesCompleted(), getFileCompletionMillisP50(),
+            getAssembleLatencyMicrosP50(), getAssembleLatencyMicrosP99(), getAssembleLatencyMicrosMax()
+        );
+    }
+
+    private double perSecond(long count) {
+        double seconds = (System.nanoTime() - startedNanos) / 1e9;
+        return seconds > 0 ? count / seconds : 0;
+    }
+}
@@ -0,0 +1,69 @@
+package segmentedfilesystem;
+
+/**
+ * The management interface for `TransferMetrics`: what JConsole, VisualVM and other JMX clients can see.
+ *
+ * Latencies are in microseconds and file times in milliseconds; percentiles come from `Log2Histogram`, so they're
+ * upper bounds accurate to within a factor of two.
+ */
+public interface TransferMetricsMBean {
+    long getPacketsReceived();
+
+    /**
+     * Bytes of file data received in chunks we didn't already have.
+     */
+    long getBytesReceived();
+
+    double getPacketsPerSecond();
+
+    double getBytesPerSecond();
+
+    /**
+     * Packets that told us nothing new: chunks we already had, and headers for files we'd already named or finished.
+     */
+    long getDuplicatePackets();
+
+    /**
+     * Data packets that arrived after a higher-numbered packet of the same file.
+     */
+    long getReorderedPackets();
+
+    /**
+     * How far back a reordered packet was, in packet numbers, at the 99th percentile.
+     */
+    long getReorderDistanceP99();
+
+    long getMaxReorderDistance();
+
+    long getFilesCompleted();
+
+    /**
+     * How long files took from their first packet to being complete.
+     */
+    long getFileCompletionMillisP50();
+
+    long getFileCompletionMillisP99();
+
+    long getFileCompletionMillisMax();
+
+    /**
+     * How long packets took from coming off the socket to being added to their files.
+     */
+    long getAssembleLatencyMicrosP50();
+
+    long getAssembleLatencyMicrosP99();
+
+    long getAssembleLatencyMicrosP999();
+
+    long getAssembleLatencyMicrosMax();
+
+    /**
+     * Bytes of chunk data currently held in memory by files that aren't complete.
+     */
+    long getBufferedBytes();
+
+    /**
+     * Zero every counter and histogram, and restart the clock for the rates.
+     */
+    void reset();
+}
@@ -23,4 +23,33 @@ public class Utils {
 
         return allBytes;
     }
+
+    /**
+     * Concatenate the first `count` arrays in `chunks`, none of which may be null.
+     */
+    public static byte[] flatten(byte[][] chunks, int count) {
+        int totalLength = 0;
+        for (int i = 0; i < count; i++) {
+            totalLength += chunks[i].length;
+        }
+        byte[] allBytes = new byte[totalLength];
+
+        int offset = 0;
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(chunks[i], 0, allBytes, offset, chunks[i].length);
+            offset += chunks[i].length;
+        }
+
+        return allBytes;
+    }
+
+    /**
+     * Return the shorter of two timeouts, where 0 means "no timeout".
+     */
+    public static int shortestTimeout(int a, int b) {
+        if (a == 0 || b == 0) {
+            return Math.max(a, b);
+        }
+        return Math.min(a, b);
+    }
 }
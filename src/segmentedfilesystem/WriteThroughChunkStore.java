@@ -0,0 +1,19 @@
+package segmentedfilesystem;
+
+import java.nio.file.Path;
+
+/**
+ * A `ChunkStore` that writes chunks to a temporary file on disk as they arrive, so that the finished file just has to
+ * be moved into place, rather than built in memory.
+ */
+public interface WriteThroughChunkStore extends ChunkStore {
+    @Override
+    default boolean isWriteThrough() {
+        return true;
+    }
+
+    /**
+     * Move the finished file to `target`. The store can't be used afterwards.
+     */
+    void moveTo(Path target);
+}
@@ -0,0 +1,133 @@
+package segmentedfilesystem.model;
+
+import java.nio.file.Path;
+
+/**
+ * Something that happened to a file while it was being put together: a new chunk arrived, it got its name, or it was
+ * finished and written.
+ *
+ * Chunks are reported as they arrive, which isn't necessarily in order, and can be before the file's name is known.
+ * Duplicates aren't reported. Files are told apart by their file ID until they're named; after that, every event
+ * carries the filename too. Files that are being written out in order as they arrive also say how far that's got, so
+ * the start of a file can be read before the rest of it turns up.
+ */
+public class ChunkEvent {
+    public enum Kind {
+        /**
+         * A chunk we didn't have yet: `getPacketNumber()` and `getData()` say which, and what's in it.
+         */
+        CHUNK,
+        /**
+         * The file's header arrived, so `getFilename()` is now known.
+         */
+        NAMED,
+        /**
+         * The file has every chunk and has been written. Nothing more will be reported for it.
+         */
+        COMPLETED
+    }
+
+    private final Kind kind;
+    public Kind getKind() {
+        return kind;
+    }
+
+    private final int fileId;
+    public int getFileId() {
+        return fileId;
+    }
+
+    /**
+     * The file's name, or `null` if its header hasn't arrived yet.
+     */
+    private final String filename;
+    public String getFilename() {
+        return filename;
+    }
+
+    /**
+     * For a `CHUNK`, which chunk it is; otherwise -1.
+     */
+    private final int packetNumber;
+    public int getPacketNumber() {
+        return packetNumber;
+    }
+
+    /**
+     * For a `CHUNK`, what's in it; otherwise `null`. Listeners mustn't change it, since it may be the very array the
+     * file is put together from.
+     */
+    private final byte[] data;
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * For a `CHUNK`, whether it's the last chunk in the file. Only the last chunk knows; it says how many there are.
+     */
+    private final boolean isFinalChunk;
+    public boolean isFinalChunk() {
+        return isFinalChunk;
+    }
+
+    /**
+     * For a `CHUNK` of a file that's being written out in order as it arrives, the temporary file it's going to;
+     * otherwise `null`. It's moved into place once the file is finished.
+     */
+    private final Path streamedPath;
+    public Path getStreamedPath() {
+        return streamedPath;
+    }
+
+    /**
+     * For a `CHUNK` of a file that's being written out in order as it arrives, how many bytes at the start of
+     * `getStreamedPath()` are now the finished file's, with no gaps; otherwise -1. This only grows when this chunk
+     * filled the first gap.
+     */
+    private final long streamedLength;
+    public long getStreamedLength() {
+        return streamedLength;
+    }
+
+    private ChunkEvent(
+        Kind kind, int fileId, String filename, int packetNumber, byte[] data, boolean isFinalChunk, Path streamedPath,
+        long streamedLength
+    ) {
+        this.kind = kind;
+        this.fileId = fileId;
+        this.filename = filename;
+        this.packetNumber = packetNumber;
+        this.data = data;
+        this.isFinalChunk = isFinalChunk;
+        this.streamedPath = streamedPath;
+        this.streamedLength = streamedLength;
+    }
+
+    public static ChunkEvent chunk(
+        int fileId, String filename, int packetNumber, byte[] data, boolean isFinalChunk, Path streamedPath,
+        long streamedLength
+    ) {
+        return new ChunkEvent(
+            Kind.CHUNK, fileId, filename, packetNumber, data, isFinalChunk, streamedPath, streamedLength
+        );
+    }
+
+    public static ChunkEvent named(int fileId, String filename) {
+        return new ChunkEvent(Kind.NAMED, fileId, filename, -1, null, false, null, -1);
+    }
+
+    public static ChunkEvent completed(int fileId, String filename) {
+        return new ChunkEvent(Kind.COMPLETED, fileId, filename, -1, null, false, null, -1);
+    }
+
+    @Override
+    public String toString() {
+        String name = filename != null ? filename : "file #" + fileId;
+        return kind == Kind.CHUNK
+            ? String.format(
+                "%s %s #%d (%d bytes%s%s)", kind, name, packetNumber, data.length, isFinalChunk ? ", final" : "",
+                streamedLength >= 0 ? ", " + streamedLength + " streamed" : ""
+            )
+            : kind + " " + name;
+    }
+}
@@ -0,0 +1,45 @@
+package segmentedfilesystem.model;
+
+/**
+ * A run of consecutive packet numbers, from `first` to `last` inclusive.
+ */
+public class ChunkRange {
+    private final int first;
+    public int getFirst() {
+        return first;
+    }
+
+    private final int last;
+    public int getLast() {
+        return last;
+    }
+
+    public ChunkRange(int first, int last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    public int size() {
+        return last - first + 1;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ChunkRange)) {
+            return false;
+        }
+
+        ChunkRange other = (ChunkRange) o;
+        return first == other.first && last == other.last;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * first + last;
+    }
+
+    @Override
+    public String toString() {
+        return first == last ? Integer.toString(first) : first + "-" + last;
+    }
+}
@@ -2,8 +2,15 @@ package segmentedfilesystem.model;
 
 import java.util.Arrays;
 import java.util.Objects;
+import java.util.zip.CRC32C;
 
+/**
+ * A complete file: its name and its contents. The contents mustn't be changed once the file has been made, since the
+ * checksum is only worked out once.
+ */
 public class File {
+    private static final long UNKNOWN_CHECKSUM = -1;
+
     private String name;
     public String getName() {
         return name;
@@ -14,9 +21,31 @@ public class File {
         return data;
     }
 
+    /**
+     * The CRC32C of the contents, as an unsigned value. It's worked out the first time it's needed, unless whoever
+     * made the file already knew it.
+     */
+    private long checksum;
+    public long getChecksum() {
+        if (checksum == UNKNOWN_CHECKSUM) {
+            var crc = new CRC32C();
+            crc.update(data);
+            checksum = crc.getValue();
+        }
+        return checksum;
+    }
+
     public File(String filename, byte[] data) {
+        this(filename, data, UNKNOWN_CHECKSUM);
+    }
+
+    /**
+     * Make a file whose CRC32C we already know (for example because we worked it out as the chunks arrived).
+     */
+    public File(String filename, byte[] data, long checksum) {
         this.name = filename;
         this.data = data;
+        this.checksum = checksum;
     }
 
     @Override
@@ -27,17 +56,20 @@ public class File {
         }
 
         File other = (File) o;
-        return Objects.equals(name, other.getName()) && Arrays.equals(data, other.getData());
+        if (!Objects.equals(name, other.getName()) || data.length != other.data.length) {
+            return false;
+        }
+        // If we already know both checksums, and they're different, there's no need to compare the contents.
+        if (checksum != UNKNOWN_CHECKSUM && other.checksum != UNKNOWN_CHECKSUM && checksum != other.checksum) {
+            return false;
+        }
+        return Arrays.equals(data, other.getData());
     }
 
     @Override
     public int hashCode() {
-        Object[] allRelevantValues = new Object[1 + data.length];
-        allRelevantValues[0] = name;
-        for (int i = 0; i < data.length; i++) {
-            allRelevantValues[i + 1] = data[i];
-        }
-        return Arrays.hashCode(allRelevantValues);
+        // Equal files have equal contents, and so equal checksums.
+        return 31 * Objects.hashCode(name) + Long.hashCode(getChecksum());
     }
 
     @Override
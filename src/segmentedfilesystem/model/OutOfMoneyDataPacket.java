@@ -11,9 +11,16 @@ public class OutOfMoneyDataPacket extends OutOfMoneyPacket {
         return isFinalPacket;
     }
 
-    public OutOfMoneyDataPacket(byte fileId, byte[] contents, int packetNumber, boolean isFinalPacket) {
+    public OutOfMoneyDataPacket(int fileId, byte[] contents, int packetNumber, boolean isFinalPacket) {
         super(false, fileId, contents);
         this.packetNumber = packetNumber;
         this.isFinalPacket = isFinalPacket;
     }
+
+    /**
+     * Make a packet with a version 1 (single byte) file ID, which is unsigned.
+     */
+    public OutOfMoneyDataPacket(byte fileId, byte[] contents, int packetNumber, boolean isFinalPacket) {
+        this(Byte.toUnsignedInt(fileId), contents, packetNumber, isFinalPacket);
+    }
 }
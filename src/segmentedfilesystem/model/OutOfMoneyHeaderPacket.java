@@ -8,7 +8,14 @@ public class OutOfMoneyHeaderPacket extends OutOfMoneyPacket {
         return new String(getContents(), StandardCharsets.UTF_8);
     }
 
-    public OutOfMoneyHeaderPacket(byte fileId, byte[] contents) {
+    public OutOfMoneyHeaderPacket(int fileId, byte[] contents) {
         super(true, fileId, contents);
     }
+
+    /**
+     * Make a packet with a version 1 (single byte) file ID, which is unsigned.
+     */
+    public OutOfMoneyHeaderPacket(byte fileId, byte[] contents) {
+        this(Byte.toUnsignedInt(fileId), contents);
+    }
 }
@@ -1,5 +1,7 @@
 package segmentedfilesystem.model;
 
+import java.net.InetSocketAddress;
+
 /**
  * A packet from the OutOfMoney.com protocol, representing a piece of a file.
  */
@@ -9,8 +11,11 @@ public abstract class OutOfMoneyPacket {
         return isHeaderPacket;
     }
 
-    private byte fileId;
-    public byte getFileId() {
+    /**
+     * The file ID, as an unsigned number: a single byte in version 1 of the protocol, and two bytes in version 2.
+     */
+    private int fileId;
+    public int getFileId() {
         return fileId;
     }
 
@@ -23,9 +28,40 @@ public abstract class OutOfMoneyPacket {
         return contents;
     }
 
-    protected OutOfMoneyPacket(boolean isHeaderPacket, byte fileId, byte[] contents) {
+    /**
+     * When the packet came off the socket, by `System.nanoTime()`, or 0 if nobody recorded it.
+     */
+    private long receivedNanos = 0;
+    public long getReceivedNanos() {
+        return receivedNanos;
+    }
+    public void setReceivedNanos(long receivedNanos) {
+        this.receivedNanos = receivedNanos;
+    }
+
+    /**
+     * Who sent the packet, or `null` if nobody recorded it.
+     */
+    private InetSocketAddress source = null;
+    public InetSocketAddress getSource() {
+        return source;
+    }
+    public void setSource(InetSocketAddress source) {
+        this.source = source;
+    }
+
+    protected OutOfMoneyPacket(boolean isHeaderPacket, int fileId, byte[] contents) {
         this.isHeaderPacket = isHeaderPacket;
         this.fileId = fileId;
         this.contents = contents;
     }
+
+    /**
+     * Tell the packet that we're done with it.
+     *
+     * Packets that are views over a pooled receive buffer hand the buffer back to their pool here, after which they
+     * must not be used again. Ordinary packets own their contents, so for them this does nothing.
+     */
+    public void release() {
+    }
 }
@@ -0,0 +1,417 @@
+package segmentedfilesystem.simulator;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import segmentedfilesystem.model.File;
+
+/**
+ * A stand-in for the OutOfMoney.com server, for testing and measuring the client on one machine.
+ *
+ * It listens on the loopback interface, and whenever any datagram arrives it starts a session that sends every file
+ * to whoever sent that datagram, using the protocol described in the README. Each session can mess the stream up in
+ * the ways a real network might:
+ *
+ * - `shuffleRate`: the fraction of packets that are swapped with another packet at a random position.
+ * - `dropRate`: the fraction of packets that are never sent.
+ * - `duplicateRate`: the fraction of packets that are sent twice in a row.
+ * - `burstRate`: the chance, at each packet, of sending the next `burstLength` packets without any pacing.
+ * - `packetsPerSecond`: the pace to send at otherwise, or 0 to send as fast as possible.
+ *
+ * Like the real server, every session uses new file IDs, carrying on from where the last session's IDs left off. All
+ * of the randomness comes from `seed` (and the session's number), so runs can be reproduced exactly.
+ *
+ * If the datagram that starts a session asks for version 2 of the protocol (see `OutOfMoneyApiService`), the session
+ * is sent in version 2, with its 16-bit file IDs and 32-bit packet numbers. Otherwise it's sent in version 1, as long
+ * as the files fit in version 1's limits; if they don't, the session is refused.
+ */
+public class OutOfMoneyServerSimulator implements AutoCloseable {
+    // The limits of version 1 of the protocol: a one-byte file ID, and a two-byte packet number.
+    public static final int MAX_FILES_V1 = 256;
+    public static final int MAX_CHUNKS_PER_FILE_V1 = 65536;
+    // The limits of version 2: a two-byte file ID, and as many chunks as the client will hold of one file.
+    public static final int MAX_FILES = 65536;
+    public static final int MAX_CHUNKS_PER_FILE = 1 << 22;
+    public static final int CHUNK_SIZE = 1024;
+
+    private static final int MAX_PACKET_SIZE = CHUNK_SIZE + 4;
+    private static final int MAX_PACKET_SIZE_V2 = CHUNK_SIZE + 7;
+    private static final int VERSION_2_BIT = 0b100;
+    // A header packet is marked in a packet descriptor by using this as its packet number.
+    private static final int HEADER = -1;
+
+    private final List<File> files;
+    // Whether the files can be sent in version 1 of the protocol at all.
+    private final boolean fitsVersion1;
+    private DatagramSocket socket;
+    private Thread listenerThread;
+    private final AtomicInteger sessionsStarted = new AtomicInteger();
+
+    private long seed = 0;
+    public OutOfMoneyServerSimulator withSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    private double shuffleRate = 0;
+    public OutOfMoneyServerSimulator withShuffleRate(double shuffleRate) {
+        this.shuffleRate = checkRate(shuffleRate);
+        return this;
+    }
+
+    private double dropRate = 0;
+    public OutOfMoneyServerSimulator withDropRate(double dropRate) {
+        this.dropRate = checkRate(dropRate);
+        return this;
+    }
+
+    private double duplicateRate = 0;
+    public OutOfMoneyServerSimulator withDuplicateRate(double duplicateRate) {
+        this.duplicateRate = checkRate(duplicateRate);
+        return this;
+    }
+
+    private double burstRate = 0;
+    public OutOfMoneyServerSimulator withBurstRate(double burstRate) {
+        this.burstRate = checkRate(burstRate);
+        return this;
+    }
+
+    private int burstLength = 32;
+    public OutOfMoneyServerSimulator withBurstLength(int burstLength) {
+        this.burstLength = burstLength;
+        return this;
+    }
+
+    private int packetsPerSecond = 0;
+    public OutOfMoneyServerSimulator withPacketsPerSecond(int packetsPerSecond) {
+        this.packetsPerSecond = packetsPerSecond;
+        return this;
+    }
+
+    private final AtomicLong packetsSent = new AtomicLong();
+    public long getPacketsSent() {
+        return packetsSent.get();
+    }
+
+    private final AtomicLong packetsDropped = new AtomicLong();
+    public long getPacketsDropped() {
+        return packetsDropped.get();
+    }
+
+    private final AtomicLong packetsDuplicated = new AtomicLong();
+    public long getPacketsDuplicated() {
+        return packetsDuplicated.get();
+    }
+
+    public int getSessionsStarted() {
+        return sessionsStarted.get();
+    }
+
+    /**
+     * Make a simulator that serves `files`. There can be at most `MAX_FILES` of them, and none can need more than
+     * `MAX_CHUNKS_PER_FILE` chunks. Clients that only speak version 1 of the protocol can only be sent them if there
+     * are at most `MAX_FILES_V1` of them, none needing more than `MAX_CHUNKS_PER_FILE_V1` chunks.
+     */
+    public OutOfMoneyServerSimulator(List<File> files) {
+        if (files.size() > MAX_FILES) {
+            throw new IllegalArgumentException("The protocol can't send more than " + MAX_FILES + " files at once");
+        }
+        boolean fitsVersion1 = files.size() <= MAX_FILES_V1;
+        for (File file : files) {
+            if (chunksIn(file) > MAX_CHUNKS_PER_FILE) {
+                throw new IllegalArgumentException(file.getName() + " is too big to send with this protocol");
+            }
+            fitsVersion1 &= chunksIn(file) <= MAX_CHUNKS_PER_FILE_V1;
+            if (file.getName().getBytes(StandardCharsets.UTF_8).length > MAX_PACKET_SIZE - 2) {
+                throw new IllegalArgumentException(file.getName() + " is too long to fit in a header packet");
+            }
+        }
+        this.files = files;
+        this.fitsVersion1 = fitsVersion1;
+    }
+
+    /**
+     * Start listening on `port` (or any free port, if it's 0) on the loopback interface, and return the port we got.
+     */
+    public int start(int port) throws IOException {
+        socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        listenerThread = new Thread(this::listen, "simulator-listener");
+        listenerThread.setDaemon(true);
+        listenerThread.start();
+        return socket.getLocalPort();
+    }
+
+    private void listen() {
+        var request = new DatagramPacket(new byte[MAX_PACKET_SIZE_V2], MAX_PACKET_SIZE_V2);
+        while (!socket.isClosed()) {
+            try {
+                socket.receive(request);
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    System.err.println("I/O exception when waiting for a request:");
+                    e.printStackTrace();
+                }
+                continue;
+            }
+
+            SocketAddress client = request.getSocketAddress();
+            // An empty request (or anything else that doesn't ask for more) gets version 1.
+            int version = request.getLength() > 0 && request.getData()[0] >= 2 ? 2 : 1;
+            int sessionNumber = sessionsStarted.getAndIncrement();
+            Thread.ofVirtual()
+                .name("simulator-session-" + sessionNumber)
+                .start(() -> serve(client, sessionNumber, version));
+        }
+    }
+
+    /**
+     * Send every file to `client` in `version` of the protocol, with this session's share of shuffling, loss,
+     * duplication and bursts.
+     */
+    private void serve(SocketAddress client, int sessionNumber, int version) {
+        if (version == 1 && !fitsVersion1) {
+            System.err.printf("%s asked for version 1 of the protocol, which can't send these files\n", client);
+            return;
+        }
+        var random = new SplittableRandom(seed + sessionNumber);
+        int firstFileId = sessionNumber * files.size();
+        long[] packets = shuffle(packetDescriptors(), random);
+
+        byte[] buffer = new byte[MAX_PACKET_SIZE_V2];
+        var datagram = new DatagramPacket(buffer, MAX_PACKET_SIZE_V2, client);
+        long intervalNanos = packetsPerSecond > 0 ? 1_000_000_000L / packetsPerSecond : 0;
+        long nextSendAt = System.nanoTime();
+        int burstRemaining = 0;
+
+        try {
+            for (long descriptor : packets) {
+                if (burstRemaining == 0 && random.nextDouble() < burstRate) {
+                    burstRemaining = burstLength;
+                }
+                if (random.nextDouble() < dropRate) {
+                    packetsDropped.incrementAndGet();
+                    continue;
+                }
+
+                int length = version == 2
+                    ? encodeVersion2(descriptor, firstFileId, buffer)
+                    : encode(descriptor, firstFileId, buffer);
+                datagram.setLength(length);
+                int copies = 1;
+                if (random.nextDouble() < duplicateRate) {
+                    copies = 2;
+                    packetsDuplicated.incrementAndGet();
+                }
+                for (int copy = 0; copy < copies; copy++) {
+                    if (burstRemaining > 0) {
+                        burstRemaining--;
+                        nextSendAt = System.nanoTime();
+                    } else if (intervalNanos > 0) {
+                        nextSendAt += intervalNanos;
+                        long wait = nextSendAt - System.nanoTime();
+                        if (wait > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                    }
+                    socket.send(datagram);
+                    packetsSent.incrementAndGet();
+                }
+            }
+        } catch (IOException e) {
+            if (!socket.isClosed()) {
+                System.err.printf("I/O exception when sending to %s:\n", client);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * List every packet of every file, in order. Each packet is described by a `long`: the index of its file in the
+     * top 32 bits, and its packet number plus one (so that a header is 0) in the bottom 32.
+     */
+    private long[] packetDescriptors() {
+        int count = 0;
+        for (File file : files) {
+            count = Math.addExact(count, 1 + chunksIn(file));
+        }
+
+        long[] descriptors = new long[count];
+        int next = 0;
+        for (int fileIndex = 0; fileIndex < files.size(); fileIndex++) {
+            descriptors[next++] = describe(fileIndex, HEADER);
+            for (int packetNumber = 0; packetNumber < chunksIn(files.get(fileIndex)); packetNumber++) {
+                descriptors[next++] = describe(fileIndex, packetNumber);
+            }
+        }
+        return descriptors;
+    }
+
+    private long[] shuffle(long[] packets, SplittableRandom random) {
+        for (int i = 0; i < packets.length; i++) {
+            if (random.nextDouble() < shuffleRate) {
+                int j = random.nextInt(packets.length);
+                long swap = packets[i];
+                packets[i] = packets[j];
+                packets[j] = swap;
+            }
+        }
+        return packets;
+    }
+
+    /**
+     * Write the packet described by `descriptor` into `buffer`, in version 1 of the protocol, and return its length.
+     */
+    private int encode(long descriptor, int firstFileId, byte[] buffer) {
+        int fileIndex = (int) (descriptor >>> 32);
+        int packetNumber = (int) descriptor - 1;
+        File file = files.get(fileIndex);
+        buffer[1] = (byte) (firstFileId + fileIndex);
+
+        if (packetNumber == HEADER) {
+            byte[] filename = file.getName().getBytes(StandardCharsets.UTF_8);
+            buffer[0] = 0;
+            System.arraycopy(filename, 0, buffer, 2, filename.length);
+            return 2 + filename.length;
+        }
+
+        boolean isFinalPacket = packetNumber == chunksIn(file) - 1;
+        buffer[0] = (byte) (isFinalPacket ? 0b11 : 0b01);
+        buffer[2] = (byte) (packetNumber >>> 8);
+        buffer[3] = (byte) packetNumber;
+        int start = packetNumber * CHUNK_SIZE;
+        int length = Math.min(CHUNK_SIZE, file.getData().length - start);
+        System.arraycopy(file.getData(), start, buffer, 4, length);
+        return 4 + length;
+    }
+
+    /**
+     * Write the packet described by `descriptor` into `buffer`, in version 2 of the protocol, and return its length.
+     */
+    private int encodeVersion2(long descriptor, int firstFileId, byte[] buffer) {
+        int fileIndex = (int) (descriptor >>> 32);
+        int packetNumber = (int) descriptor - 1;
+        File file = files.get(fileIndex);
+        int fileId = firstFileId + fileIndex;
+        buffer[1] = (byte) (fileId >>> 8);
+        buffer[2] = (byte) fileId;
+
+        if (packetNumber == HEADER) {
+            byte[] filename = file.getName().getBytes(StandardCharsets.UTF_8);
+            buffer[0] = VERSION_2_BIT;
+            System.arraycopy(filename, 0, buffer, 3, filename.length);
+            return 3 + filename.length;
+        }
+
+        boolean isFinalPacket = packetNumber == chunksIn(file) - 1;
+        buffer[0] = (byte) ((isFinalPacket ? 0b11 : 0b01) | VERSION_2_BIT);
+        buffer[3] = (byte) (packetNumber >>> 24);
+        buffer[4] = (byte) (packetNumber >>> 16);
+        buffer[5] = (byte) (packetNumber >>> 8);
+        buffer[6] = (byte) packetNumber;
+        int start = packetNumber * CHUNK_SIZE;
+        int length = Math.min(CHUNK_SIZE, file.getData().length - start);
+        System.arraycopy(file.getData(), start, buffer, 7, length);
+        return 7 + length;
+    }
+
+    private static long describe(int fileIndex, int packetNumber) {
+        return (long) fileIndex << 32 | (packetNumber + 1);
+    }
+
+    /**
+     * How many data packets it takes to send `file`. Even an empty file gets one (empty) packet, since that's how the
+     * client finds out how long it is.
+     */
+    private static int chunksIn(File file) {
+        return Math.max(1, (file.getData().length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    private static double checkRate(double rate) {
+        if (rate < 0 || rate > 1) {
+            throw new IllegalArgumentException("Rates must be between 0 and 1, not " + rate);
+        }
+        return rate;
+    }
+
+    /**
+     * Stop listening. Sessions that are still sending stop at their next packet.
+     */
+    @Override
+    public void close() {
+        socket.close();
+        try {
+            listenerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Serves the files named on the command line until it's killed. Options:
+    //   --port=N          the port to listen on (default 6014, the same as the real server)
+    //   --seed=N          the seed for all of the randomness (default 0)
+    //   --shuffle=RATE    --drop=RATE    --duplicate=RATE    --burst=RATE
+    //   --burst-length=N  how many packets a burst sends without pacing (default 32)
+    //   --pps=N           how many packets to send per second, outside of bursts (default 0, meaning no limit)
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = 6014;
+        long seed = 0;
+        double shuffleRate = 0;
+        double dropRate = 0;
+        double duplicateRate = 0;
+        double burstRate = 0;
+        int burstLength = 32;
+        int packetsPerSecond = 0;
+        var files = new ArrayList<File>();
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(value);
+            } else if (arg.startsWith("--seed=")) {
+                seed = Long.parseLong(value);
+            } else if (arg.startsWith("--shuffle=")) {
+                shuffleRate = Double.parseDouble(value);
+            } else if (arg.startsWith("--drop=")) {
+                dropRate = Double.parseDouble(value);
+            } else if (arg.startsWith("--duplicate=")) {
+                duplicateRate = Double.parseDouble(value);
+            } else if (arg.startsWith("--burst=")) {
+                burstRate = Double.parseDouble(value);
+            } else if (arg.startsWith("--burst-length=")) {
+                burstLength = Integer.parseInt(value);
+            } else if (arg.startsWith("--pps=")) {
+                packetsPerSecond = Integer.parseInt(value);
+            } else if (arg.startsWith("--")) {
+                System.err.printf("Unknown option %s\n", arg);
+                System.exit(1);
+            } else {
+                Path path = Path.of(arg);
+                files.add(new File(path.getFileName().toString(), Files.readAllBytes(path)));
+            }
+        }
+
+        var simulator = new OutOfMoneyServerSimulator(files)
+            .withSeed(seed)
+            .withShuffleRate(shuffleRate)
+            .withDropRate(dropRate)
+            .withDuplicateRate(duplicateRate)
+            .withBurstRate(burstRate)
+            .withBurstLength(burstLength)
+            .withPacketsPerSecond(packetsPerSecond);
+        System.out.printf("Serving %d files on port %d\n", files.size(), simulator.start(port));
+        simulator.listenerThread.join();
+    }
+}
@@ -0,0 +1,80 @@
+package segmentedfilesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import segmentedfilesystem.model.File;
+
+public class AsyncFileWriterServiceTest {
+    private Path directory;
+
+    @Before
+    public void beforeEach() throws Exception {
+        directory = Files.createTempDirectory("async-file-writer-service-test");
+    }
+
+    @After
+    public void afterEach() throws Exception {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testEveryPolicyWritesEveryFile() throws Exception {
+        for (AsyncFileWriterService.FsyncPolicy policy : AsyncFileWriterService.FsyncPolicy.values()) {
+            try (var writer = new AsyncFileWriterService(directory, 2, 4)) {
+                writer.withFsyncPolicy(policy).withGroupCommitSize(3).setVerifyOnWrite(true);
+                var futures = new ArrayList<CompletableFuture<Void>>();
+                for (int i = 0; i < 10; i++) {
+                    futures.add(writer.writeAsync(new File(policy + "-" + i, new byte[] { (byte) i, 1, 2 })));
+                }
+                writer.flush();
+
+                for (CompletableFuture<Void> future : futures) {
+                    assertTrue(future.isDone());
+                    assertFalse(future.isCompletedExceptionally());
+                }
+                assertEquals(10, writer.getFilesWritten());
+                assertThat(Files.readAllBytes(directory.resolve(policy + "-7"))).containsExactly(7, 1, 2);
+            }
+        }
+    }
+
+    @Test
+    public void testGroupCommitFinishesAPartialBatchOnItsOwn() throws Exception {
+        try (var writer = new AsyncFileWriterService(directory, 1, 4)) {
+            writer.withFsyncPolicy(AsyncFileWriterService.FsyncPolicy.GROUP_COMMIT)
+                .withGroupCommitSize(100)
+                .withGroupCommitMillis(5);
+            // Only one file, so the batch never fills up; the deadline has to commit it.
+            writer.writeAsync(new File("lonely.txt", new byte[] { 1 })).get();
+            assertEquals(1, writer.getFilesWritten());
+        }
+    }
+
+    @Test
+    public void testFlushReportsFilesThatCouldNotBeWritten() throws Exception {
+        try (var writer = new AsyncFileWriterService(directory.resolve("does-not-exist"), 1, 1)) {
+            writer.createFileInWorkingDirectory(new File("nowhere.txt", new byte[] { 1 }));
+            assertThrows(IOException.class, writer::flush);
+            // The error has been reported, so the writer can be closed cleanly.
+            writer.flush();
+        }
+    }
+}
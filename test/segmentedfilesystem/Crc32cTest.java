@@ -0,0 +1,37 @@
+package segmentedfilesystem;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class Crc32cTest {
+    @Test
+    public void testKnownValue() {
+        // The standard CRC check value: the CRC32C of the ASCII digits 1 to 9.
+        assertEquals(0xE3069283, Crc32c.of("123456789".getBytes()));
+    }
+
+    @Test
+    public void testCombiningMatchesChecksumOfConcatenation() {
+        var random = new Random(1);
+        byte[] data = new byte[5000];
+        random.nextBytes(data);
+
+        // Split points at the edges, at full chunks, and at odd places.
+        for (int split : new int[] { 0, 1, 17, DiskChunkStore.CHUNK_SIZE, 4000, 5000 }) {
+            byte[] a = Arrays.copyOfRange(data, 0, split);
+            byte[] b = Arrays.copyOfRange(data, split, data.length);
+            assertEquals(Crc32c.of(data), Crc32c.combine(Crc32c.of(a), Crc32c.of(b), b.length));
+        }
+    }
+
+    @Test
+    public void testCombiningEmptyChecksumChangesNothing() {
+        int crc = Crc32c.of(new byte[] { 1, 2, 3 });
+        assertEquals(crc, Crc32c.combine(crc, 0, 0));
+        assertEquals(crc, Crc32c.combine(0, crc, 3));
+    }
+}
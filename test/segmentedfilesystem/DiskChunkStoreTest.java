@@ -0,0 +1,115 @@
+package segmentedfilesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DiskChunkStoreTest {
+    private Path directory;
+
+    @Before
+    public void beforeEach() throws Exception {
+        directory = Files.createTempDirectory("disk-chunk-store-test");
+    }
+
+    @After
+    public void afterEach() throws Exception {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testChunksLandAtTheirOffsets() throws Exception {
+        var store = new DiskChunkStore(directory);
+        store.put(1, fullChunk((byte) 2));
+        store.put(2, new byte[] { 7, 8, 9 });
+        store.put(0, fullChunk((byte) 1));
+
+        byte[] data = store.toByteArray(3);
+        assertThat(data).hasSize(2 * DiskChunkStore.CHUNK_SIZE + 3);
+        assertThat(data[0]).isEqualTo((byte) 1);
+        assertThat(data[DiskChunkStore.CHUNK_SIZE]).isEqualTo((byte) 2);
+        assertThat(data[2 * DiskChunkStore.CHUNK_SIZE + 2]).isEqualTo((byte) 9);
+        store.release();
+    }
+
+    @Test
+    public void testWrittenThroughPartialFileIsMovedIntoPlace() throws Exception {
+        var partialFile = new PartialFile(new DiskChunkStore(directory))
+            .withFilename("finished.bin")
+            .withNumberOfChunks(2)
+            .addChunk(1, new byte[] { 4, 5 })
+            .addChunk(0, fullChunk((byte) 3));
+        assertTrue(partialFile.isWriteThrough());
+        assertTrue(partialFile.isComplete());
+
+        partialFile.moveTo(directory);
+
+        byte[] data = Files.readAllBytes(directory.resolve("finished.bin"));
+        assertThat(data).hasSize(DiskChunkStore.CHUNK_SIZE + 2);
+        assertThat(data[DiskChunkStore.CHUNK_SIZE + 1]).isEqualTo((byte) 5);
+        try (Stream<Path> paths = Files.list(directory)) {
+            assertThat(paths.count()).isEqualTo(1L);
+        }
+    }
+
+    @Test
+    public void testStrayChunksPastTheEndAreLeftOutOfTheFile() throws Exception {
+        var partialFile = new PartialFile(new DiskChunkStore(directory))
+            .withFilename("stray.bin")
+            .addChunk(5, fullChunk((byte) 9))
+            .addChunk(0, fullChunk((byte) 1));
+        // The final chunk cuts off the stray that came before it, and strays after it are dropped.
+        partialFile.setNumberOfChunks(2);
+        partialFile.addChunk(1, new byte[] { 2, 3 });
+        partialFile.addChunk(3, fullChunk((byte) 8));
+        assertTrue(partialFile.isComplete());
+
+        assertThat(partialFile.toFile().getData()).hasSize(DiskChunkStore.CHUNK_SIZE + 2);
+        partialFile.moveTo(directory);
+        byte[] data = Files.readAllBytes(directory.resolve("stray.bin"));
+        assertThat(data).hasSize(DiskChunkStore.CHUNK_SIZE + 2);
+        assertThat(data[DiskChunkStore.CHUNK_SIZE + 1]).isEqualTo((byte) 3);
+    }
+
+    @Test
+    public void testAFinalChunkThatArrivedFirstStillCutsOffStrays() throws Exception {
+        var partialFile = new PartialFile(new DiskChunkStore(directory))
+            .withFilename("early.bin")
+            .addChunk(1, new byte[] { 2 })
+            .addChunk(4, fullChunk((byte) 9))
+            .addChunk(0, fullChunk((byte) 1))
+            .withNumberOfChunks(2);
+        assertTrue(partialFile.isComplete());
+
+        assertThat(partialFile.toFile().getData()).hasSize(DiskChunkStore.CHUNK_SIZE + 1);
+        partialFile.release();
+    }
+
+    @Test
+    public void testReleaseDeletesTheTemporaryFile() throws Exception {
+        var store = new DiskChunkStore(directory);
+        store.put(0, new byte[] { 1 });
+        store.release();
+
+        try (Stream<Path> paths = Files.list(directory)) {
+            assertFalse(paths.findAny().isPresent());
+        }
+    }
+
+    private static byte[] fullChunk(byte value) {
+        byte[] chunk = new byte[DiskChunkStore.CHUNK_SIZE];
+        chunk[0] = value;
+        return chunk;
+    }
+}
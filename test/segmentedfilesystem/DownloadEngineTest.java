@@ -0,0 +1,79 @@
+package segmentedfilesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import segmentedfilesystem.model.File;
+import segmentedfilesystem.simulator.OutOfMoneyServerSimulator;
+
+public class DownloadEngineTest {
+    private static final int PACKETS_PER_SECOND = 2_000;
+
+    private static final List<File> FILES = List.of(
+        new File("small.txt", "Hello from the simulator\n".getBytes(StandardCharsets.UTF_8)),
+        new File("empty.bin", new byte[0]),
+        new File("random.bin", randomBytes(50 * 1024 + 7, 1))
+    );
+
+    private Path directory;
+
+    @Before
+    public void beforeEach() throws Exception {
+        directory = Files.createTempDirectory("download-engine-test");
+    }
+
+    @After
+    public void afterEach() throws Exception {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test(timeout = 30_000)
+    public void testASilentServerFailsItsSessionWithoutHoldingUpTheOthers() throws Exception {
+        try (var simulator = new OutOfMoneyServerSimulator(FILES).withSeed(1).withShuffleRate(0.5)
+                .withPacketsPerSecond(PACKETS_PER_SECOND);
+             var silentServer = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            int port = simulator.start(0);
+            var engine = new DownloadEngine(directory, 2, 1 << 20)
+                .withStallTimeoutMillis(200)
+                .withMaxRestarts(1);
+
+            List<SessionResult> results = engine.downloadAll(List.of(
+                new DownloadTarget("localhost", port), new DownloadTarget("localhost", silentServer.getLocalPort())
+            ));
+
+            assertEquals(2, results.size());
+            assertTrue(results.get(0).isSuccessful());
+            assertThat(results.get(0).getFilenames()).containsExactlyInAnyOrder("small.txt", "empty.bin", "random.bin");
+            for (File file : FILES) {
+                assertThat(Files.readAllBytes(directory.resolve("0-localhost-" + port).resolve(file.getName())))
+                    .isEqualTo(file.getData());
+            }
+            assertFalse(results.get(1).isSuccessful());
+            assertThat(results.get(1).getError()).isInstanceOf(DownloadIncompleteException.class);
+        }
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,152 @@
+package segmentedfilesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import segmentedfilesystem.model.OutOfMoneyDataPacket;
+import segmentedfilesystem.model.OutOfMoneyHeaderPacket;
+
+public class DownloadJournalTest {
+    private Path directory;
+
+    @Before
+    public void beforeEach() throws Exception {
+        directory = Files.createTempDirectory("download-journal-test");
+    }
+
+    @After
+    public void afterEach() throws Exception {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testUnfinishedFilesAreRecoveredByName() {
+        var journal = new DownloadJournal(directory);
+        PartialFile named = journaledFile(journal)
+            .withFilename("named.txt")
+            .addChunk(2, new byte[] { 7, 8 })
+            .withNumberOfChunks(3)
+            .addChunk(0, new byte[] { 1, 2, 3 });
+        named.closeJournal();
+        PartialFile nameless = journaledFile(journal).addChunk(0, new byte[] { 9 });
+        nameless.closeJournal();
+
+        Map<String, PartialFile> recovered = journal.recover(new FileWriterService(directory));
+        assertThat(recovered.keySet()).containsExactly("named.txt");
+
+        PartialFile resumed = recovered.get("named.txt");
+        assertTrue(resumed.hasChunk(0));
+        assertFalse(resumed.hasChunk(1));
+        assertTrue(resumed.hasChunk(2));
+        resumed.addChunk(1, new byte[] { 4, 5, 6 });
+        assertThat(resumed.toFile().getData()).containsExactly(1, 2, 3, 4, 5, 6, 7, 8);
+
+        // Finishing the file deletes its journal, and the nameless one was deleted when we couldn't use it, so there's
+        // nothing left, not even the directory.
+        resumed.release();
+        assertTrue(journal.recover(new FileWriterService(directory)).isEmpty());
+        assertFalse(Files.exists(directory.resolve(".segmentedfilesystem-journal")));
+    }
+
+    @Test
+    public void testAnEmptyFinalChunkIsRecovered() {
+        var journal = new DownloadJournal(directory);
+        journaledFile(journal)
+            .withFilename("empty-end.txt")
+            .addChunk(0, new byte[] { 1, 2 })
+            .withNumberOfChunks(2)
+            .addChunk(1, new byte[0])
+            .closeJournal();
+
+        PartialFile resumed = journal.recover(new FileWriterService(directory)).get("empty-end.txt");
+        assertTrue(resumed.hasChunk(1));
+        assertTrue(resumed.isComplete());
+        assertThat(resumed.toFile().getData()).containsExactly(1, 2);
+        resumed.release();
+    }
+
+    @Test
+    public void testChunksAppendedAfterTheLastCheckpointAreRecovered() {
+        var journal = new DownloadJournal(directory);
+        // Setting the name checkpoints the journal; the chunks after that are only in the journal itself, as if the
+        // process died before the next checkpoint.
+        journaledFile(journal)
+            .withFilename("crashed.txt")
+            .addChunk(0, new byte[] { 1 })
+            .addChunk(1, new byte[] { 2 });
+
+        PartialFile resumed = journal.recover(new FileWriterService(directory)).get("crashed.txt");
+        assertTrue(resumed.hasChunk(0));
+        assertTrue(resumed.hasChunk(1));
+        resumed.release();
+    }
+
+    @Test
+    public void testATornRecordIsDropped() throws Exception {
+        var journal = new DownloadJournal(directory);
+        journaledFile(journal)
+            .withFilename("torn.txt")
+            .addChunk(0, new byte[] { 1, 2, 3 })
+            .closeJournal();
+
+        // Add half a record header to the journal, as if we died halfway through appending to it.
+        Path journalPath;
+        try (Stream<Path> paths = Files.list(directory.resolve(".segmentedfilesystem-journal"))) {
+            journalPath = paths.filter(path -> path.toString().endsWith(".journal")).findFirst().orElseThrow();
+        }
+        try (var channel = FileChannel.open(journalPath, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] { 0, 0, 0, 1, 0, 0, 0, 9 }), channel.size());
+        }
+
+        PartialFile resumed = journal.recover(new FileWriterService(directory)).get("torn.txt");
+        assertTrue(resumed.hasChunk(0));
+        // The torn record is cut off, so what we journal next can be read back.
+        resumed.addChunk(1, new byte[] { 4 });
+        resumed.closeJournal();
+
+        PartialFile resumedAgain = journal.recover(new FileWriterService(directory)).get("torn.txt");
+        assertTrue(resumedAgain.hasChunk(0));
+        assertTrue(resumedAgain.hasChunk(1));
+        resumedAgain.release();
+    }
+
+    @Test
+    public void testAStaleJournalDoesNotHoldUpTheDownload() {
+        var journal = new DownloadJournal(directory);
+        journaledFile(journal).withFilename("stale.txt").addChunk(0, new byte[] { 1 }).closeJournal();
+        journaledFile(journal).withFilename("live.txt").addChunk(0, new byte[] { 2 }).closeJournal();
+
+        var reassembler = new Reassembler(new FileWriterService(directory), null);
+        reassembler.resume(journal.recover(new FileWriterService(directory)));
+        // The server never sends `stale.txt` again, but once `live.txt` is finished we're done.
+        reassembler.accept(new OutOfMoneyHeaderPacket((byte) 0xFF, "live.txt".getBytes(StandardCharsets.UTF_8)));
+        assertFalse(reassembler.isDone(1));
+        reassembler.accept(new OutOfMoneyDataPacket((byte) 0xFF, new byte[] { 3 }, 1, true));
+        assertTrue(reassembler.isDone(1));
+        assertThat(reassembler.getCompletedFilenames()).containsExactly("live.txt");
+        reassembler.releaseMemory();
+    }
+
+    private static PartialFile journaledFile(DownloadJournal journal) {
+        var partialFile = new PartialFile();
+        partialFile.setJournal(journal.open());
+        return partialFile;
+    }
+}
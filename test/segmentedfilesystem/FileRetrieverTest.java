@@ -1,6 +1,7 @@
 package segmentedfilesystem;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
@@ -9,7 +10,10 @@ import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
+import java.io.IOException;
+import java.net.SocketTimeoutException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -22,6 +26,7 @@ import org.mockito.Spy;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
+import segmentedfilesystem.model.ChunkRange;
 import segmentedfilesystem.model.File;
 import segmentedfilesystem.model.OutOfMoneyDataPacket;
 import segmentedfilesystem.model.OutOfMoneyHeaderPacket;
@@ -141,6 +146,121 @@ public class FileRetrieverTest {
         );
     }
 
+    @Test
+    public void testWritesEachFileAsSoonAsItIsComplete() throws Exception {
+        // File 1 starts first, but file 3 finishes first. Late duplicates of file 3 don't start it all over again.
+        List<OutOfMoneyPacket> packets = new ArrayList<>();
+        packets.add(FILE_1_PACKETS.get(0));
+        packets.addAll(FILE_3_PACKETS);
+        packets.addAll(FILE_1_PACKETS.subList(1, FILE_1_PACKETS.size()));
+        packets.addAll(FILE_3_PACKETS);
+        packets.addAll(FILE_2_PACKETS);
+        setUpWithThesePackets(packets);
+
+        var completed = new ArrayList<String>();
+        fileRetriever.withCompletionListener(completed::add);
+        assertThat(fileRetriever.retrieveFiles(SERVER_NAME, PORT))
+            .containsExactly(FILE_3.getName(), FILE_1.getName(), FILE_2.getName());
+        assertThat(completed).containsExactly(FILE_3.getName(), FILE_1.getName(), FILE_2.getName());
+        verifyWroteAllThreeFiles();
+    }
+
+    @Test
+    public void testTracksCompletionByUnsignedFileId() throws Exception {
+        // IDs 0x7F, 0x80 and 0xFF sit either side of where a signed byte wraps around. Each file has to be tracked on
+        // its own, and counted as done exactly once, in the order it finished.
+        List<OutOfMoneyPacket> packets = List.of(
+            new OutOfMoneyHeaderPacket((byte) 0xFF, "ff.txt".getBytes(StandardCharsets.UTF_8)),
+            new OutOfMoneyHeaderPacket((byte) 0x7F, "7f.txt".getBytes(StandardCharsets.UTF_8)),
+            new OutOfMoneyDataPacket((byte) 0x80, new byte[] { 2 }, 0, true),
+            new OutOfMoneyDataPacket((byte) 0xFF, new byte[] { 3 }, 1, true),
+            new OutOfMoneyHeaderPacket((byte) 0x80, "80.txt".getBytes(StandardCharsets.UTF_8)),
+            // A late duplicate of a finished file doesn't count it twice.
+            new OutOfMoneyDataPacket((byte) 0x80, new byte[] { 2 }, 0, true),
+            new OutOfMoneyDataPacket((byte) 0x7F, new byte[] { 1 }, 0, true),
+            new OutOfMoneyDataPacket((byte) 0xFF, new byte[] { 3 }, 0, false)
+        );
+        setUpWithThesePackets(packets);
+
+        var completed = new ArrayList<String>();
+        fileRetriever.withCompletionListener(completed::add);
+        assertThat(fileRetriever.retrieveFiles(SERVER_NAME, PORT)).containsExactly("80.txt", "7f.txt", "ff.txt");
+        assertThat(completed).containsExactly("80.txt", "7f.txt", "ff.txt");
+        verify(fileWriterService).createFileInWorkingDirectory(new File("ff.txt", new byte[] { 3, 3 }));
+    }
+
+    @Test
+    public void testPacketsReadBeforeAnErrorAreStillUsed() throws Exception {
+        // The first batch gets all of file 3, and then the read fails before the batch is full.
+        boolean[] failed = { false };
+        doAnswer(invocation -> {
+            List<OutOfMoneyPacket> batch = invocation.getArgument(0);
+            if (!failed[0]) {
+                failed[0] = true;
+                batch.addAll(FILE_3_PACKETS);
+                throw new IOException("The channel went away partway through a batch");
+            }
+            batch.add(outOfMoneyApiService.getPacket());
+            return 1;
+        }).when(outOfMoneyApiService).getPackets(any(), anyInt());
+        setUpWithThesePackets(List.of(FILE_1_PACKETS, FILE_2_PACKETS).stream()
+            .flatMap(f -> f.stream())
+            .collect(Collectors.toList()));
+
+        fileRetriever.downloadFiles(SERVER_NAME, PORT);
+        verifyWroteAllThreeFiles();
+    }
+
+    @Test
+    public void testIdleTimeoutEndsSessionWithoutAnExpectedFileCount() throws Exception {
+        setUpWithTheseSessions(List.of(FILE_1_PACKETS));
+        fileRetriever.withExpectedFiles(0).withIdleTimeoutMillis(1);
+
+        assertThat(fileRetriever.retrieveFiles(SERVER_NAME, PORT)).containsExactly(FILE_1.getName());
+        verify(fileWriterService).createFileInWorkingDirectory(FILE_1);
+    }
+
+    @Test
+    public void testRestartsStalledSessionAndKeepsWhatItAlreadyHad() throws Exception {
+        // Each time round, the server numbers the files differently, and we only get some of what we were missing.
+        // Files are matched up across sessions by the names in their headers.
+        List<OutOfMoneyPacket> secondSession = List.of(
+            new OutOfMoneyHeaderPacket((byte) 5, "file2.bin".getBytes(StandardCharsets.UTF_8)),
+            new OutOfMoneyDataPacket((byte) 5, new byte[] { 0, 1, 1 }, 0, false)
+        );
+        List<OutOfMoneyPacket> thirdSession = List.of(
+            new OutOfMoneyDataPacket((byte) 7, new byte[] { 8, 13, 21 }, 2, false),
+            new OutOfMoneyHeaderPacket((byte) 7, "file2.bin".getBytes(StandardCharsets.UTF_8)),
+            new OutOfMoneyDataPacket((byte) 7, new byte[] { 2, 3, 5 }, 1, false),
+            FILE_1_PACKETS.get(0),
+            FILE_1_PACKETS.get(1),
+            FILE_1_PACKETS.get(2)
+        );
+        setUpWithTheseSessions(List.of(INCOMPLETE_PACKETS, secondSession, thirdSession));
+        fileRetriever.withStallTimeoutMillis(1).downloadFiles(SERVER_NAME, PORT);
+
+        verify(outOfMoneyApiService, times(3)).startInteraction(SERVER_NAME, PORT);
+        verifyWroteAllThreeFiles();
+    }
+
+    @Test
+    public void testGivesUpAfterTooManyRestartsAndReportsWhatIsMissing() throws Exception {
+        setUpWithTheseSessions(List.of(INCOMPLETE_PACKETS, List.of()));
+        fileRetriever.withStallTimeoutMillis(1).withMaxRestarts(1);
+
+        var e = assertThrows(DownloadIncompleteException.class, () ->
+            fileRetriever.retrieveFiles(SERVER_NAME, PORT)
+        );
+        assertEquals(2, e.getLossReport().getFiles().size());
+        assertThat(e.getLossReport().getFiles().get(0).getMissingChunks())
+            .containsExactly(new ChunkRange(0, 1));
+        assertThat(e.getLossReport().getFiles().get(1).getMissingChunks())
+            .containsExactly(new ChunkRange(0, 2));
+
+        // The file we did get all of is still written.
+        verify(fileWriterService).createFileInWorkingDirectory(FILE_3);
+    }
+
     /**
      * Mock `outOfMoneyApiService.getPacket()` so that the first call returns the first element of `packets`, the
      * second call returns the second element of `packets`, and so on.
@@ -172,6 +292,29 @@ public class FileRetrieverTest {
         }).when(outOfMoneyApiService).getPacket();
     }
 
+    /**
+     * Mock the API service so that each call to `startInteraction()` starts the next of `sessions`. Within a session,
+     * `getPacket()` returns its packets in order and then times out (after a short pause, so that the session has
+     * definitely stalled).
+     */
+    private void setUpWithTheseSessions(List<List<OutOfMoneyPacket>> sessions) throws Exception {
+        int[] sessionIndex = { -1 };
+        int[] indexInSession = { 0 };
+        doAnswer(invocation -> {
+            sessionIndex[0] = Math.min(sessionIndex[0] + 1, sessions.size() - 1);
+            indexInSession[0] = 0;
+            return null;
+        }).when(outOfMoneyApiService).startInteraction(any(), anyInt());
+        doAnswer(invocation -> {
+            List<OutOfMoneyPacket> packets = sessions.get(sessionIndex[0]);
+            if (indexInSession[0] < packets.size()) {
+                return packets.get(indexInSession[0]++);
+            }
+            Thread.sleep(2);
+            throw new SocketTimeoutException();
+        }).when(outOfMoneyApiService).getPacket();
+    }
+
     private void verifyWroteAllThreeFiles() {
         ArgumentCaptor<File> filesWritten = ArgumentCaptor.forClass(File.class);
         verify(fileWriterService, times(3)).createFileInWorkingDirectory(filesWritten.capture());
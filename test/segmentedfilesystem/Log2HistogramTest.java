@@ -0,0 +1,51 @@
+package segmentedfilesystem;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class Log2HistogramTest {
+    @Test
+    public void testEmptyHistogramIsAllZeroes() {
+        var histogram = new Log2Histogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void testPercentilesAreBucketUpperBounds() {
+        var histogram = new Log2Histogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(5);
+        }
+        histogram.record(1000);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        // 5 is in the bucket [4, 7].
+        assertEquals(7, histogram.getPercentile(50));
+        assertEquals(7, histogram.getPercentile(99));
+        // The top bucket is [512, 1023], but nothing bigger than 1000 was recorded.
+        assertEquals(1000, histogram.getPercentile(100));
+        assertEquals((99 * 5 + 1000) / 100.0, histogram.getMean(), 1e-9);
+    }
+
+    @Test
+    public void testZeroesAndNegativeValuesGoInTheBottomBucket() {
+        var histogram = new Log2Histogram();
+        histogram.record(0);
+        histogram.record(-3);
+        assertEquals(2, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void testReset() {
+        var histogram = new Log2Histogram();
+        histogram.record(Long.MAX_VALUE);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+    }
+}
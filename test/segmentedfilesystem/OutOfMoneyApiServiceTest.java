@@ -4,6 +4,10 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketAddress;
 import java.nio.charset.StandardCharsets;
 
 import org.junit.Before;
@@ -27,6 +31,9 @@ public class OutOfMoneyApiServiceTest {
     private static final byte[] DATA_DATAGRAM_NUMBER_2 = new byte[] { 0b01, 77, 0, 2 };
     private static final byte[] DATA_DATAGRAM_NUMBER_255 = new byte[] { 0b01, 77, 0, -1, 'a' };
     private static final byte[] DATA_DATAGRAM_NUMBER_1023 = new byte[] { 0b11, 77, 3, -1, 'a' };
+    // Version 2 packets for file ID 300, the data packet numbered 70000.
+    private static final byte[] V2_HEADER_DATAGRAM = new byte[] { 0b100, 1, 44, 'b', 'i', 'g' };
+    private static final byte[] V2_DATA_DATAGRAM = new byte[] { 0b111, 1, 44, 0, 1, 0x11, 0x70, 'z' };
 
     @Test
     public void testCanDeserializeHeaderPackets() {
@@ -99,4 +106,163 @@ public class OutOfMoneyApiServiceTest {
         assertThat(dataPacket.getPacketNumber()).isEqualTo(1023);
         assertThat(dataPacket.getContents()).containsExactly('a');
     }
+
+    @Test
+    public void testPooledHeaderPacketsReadFromTheBuffer() {
+        var pool = new PacketPool(1, OutOfMoneyApiService.MAX_PACKET_SIZE);
+        OutOfMoneyPacket packet = receiveIntoPool(pool, HEADER_DATAGRAM);
+        assertTrue(packet.isHeaderPacket());
+
+        var headerPacket = (OutOfMoneyHeaderPacket) packet;
+        assertThat(headerPacket.getFileId()).isEqualTo((byte) 53);
+        assertThat(headerPacket.getFilename()).isEqualTo("foo.txt");
+    }
+
+    @Test
+    public void testPooledDataPacketsReadFromTheBuffer() {
+        var pool = new PacketPool(1, OutOfMoneyApiService.MAX_PACKET_SIZE);
+        OutOfMoneyPacket packet = receiveIntoPool(pool, DATA_DATAGRAM_NUMBER_1023);
+        assertFalse(packet.isHeaderPacket());
+
+        var dataPacket = (OutOfMoneyDataPacket) packet;
+        assertTrue(dataPacket.isFinalPacket());
+        assertThat(dataPacket.getFileId()).isEqualTo((byte) 77);
+        assertThat(dataPacket.getPacketNumber()).isEqualTo(1023);
+        assertThat(dataPacket.getContents()).containsExactly('a');
+    }
+
+    @Test
+    public void testReleasedSlotsAreReused() {
+        var pool = new PacketPool(1, OutOfMoneyApiService.MAX_PACKET_SIZE);
+        receiveIntoPool(pool, DATA_DATAGRAM_NUMBER_0).release();
+        OutOfMoneyPacket packet = receiveIntoPool(pool, DATA_DATAGRAM_NUMBER_1);
+
+        var dataPacket = (OutOfMoneyDataPacket) packet;
+        assertThat(dataPacket.getPacketNumber()).isEqualTo(1);
+        assertThat(dataPacket.getContents()).containsExactly(-1, -2, -3, -4);
+        assertThat(pool.getSlotsCreated()).isEqualTo(1);
+    }
+
+    @Test(timeout = 10_000)
+    public void testMalformedAndStrayDatagramsAreDropped() throws Exception {
+        for (boolean pooled : new boolean[] { false, true }) {
+            var service = pooled
+                ? new OutOfMoneyApiService(new PacketPool(2, DatagramValidator.RECEIVE_BUFFER_SIZE))
+                : new OutOfMoneyApiService();
+            try (var server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+                 var stranger = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+                service.startInteraction(server.getLocalAddress().getHostAddress(), server.getLocalPort());
+                var request = new DatagramPacket(new byte[1], 1);
+                server.receive(request);
+                SocketAddress client = request.getSocketAddress();
+
+                stranger.send(new DatagramPacket(DATA_DATAGRAM_NUMBER_0, DATA_DATAGRAM_NUMBER_0.length, client));
+                server.send(new DatagramPacket(new byte[] { 0b01, 77, 0 }, 3, client));
+                server.send(new DatagramPacket(new byte[] { 0b00, 53 }, 2, client));
+                server.send(new DatagramPacket(new byte[0], 0, client));
+                byte[] tooLong = new byte[OutOfMoneyApiService.MAX_PACKET_SIZE + 1];
+                tooLong[0] = 0b01;
+                server.send(new DatagramPacket(tooLong, tooLong.length, client));
+                server.send(new DatagramPacket(DATA_DATAGRAM_NUMBER_2, DATA_DATAGRAM_NUMBER_2.length, client));
+
+                var dataPacket = (OutOfMoneyDataPacket) service.getPacket();
+                assertThat(dataPacket.getPacketNumber()).isEqualTo(2);
+                assertThat(dataPacket.getContents()).isEmpty();
+                dataPacket.release();
+
+                DatagramValidator validator = service.getValidator();
+                assertThat(validator.getRejectedAsFromElsewhere()).isEqualTo(1);
+                assertThat(validator.getRejectedAsTooShort()).isEqualTo(3);
+                assertThat(validator.getRejectedAsTooLong()).isEqualTo(1);
+                assertThat(service.getDatagramsReceived()).isEqualTo(6);
+            } finally {
+                service.endInteraction();
+            }
+        }
+    }
+
+    @Test
+    public void testCanDeserializeVersion2Packets() {
+        var pool = new PacketPool(2, OutOfMoneyApiService.MAX_PACKET_SIZE);
+        for (boolean pooled : new boolean[] { false, true }) {
+            var headerPacket = (OutOfMoneyHeaderPacket) (pooled
+                ? receiveIntoPool(pool, V2_HEADER_DATAGRAM, 2)
+                : outOfMoneyApiService.deserialize(V2_HEADER_DATAGRAM, V2_HEADER_DATAGRAM.length, 2));
+            assertThat(headerPacket.getFileId()).isEqualTo(300);
+            assertThat(headerPacket.getFilename()).isEqualTo("big");
+
+            var dataPacket = (OutOfMoneyDataPacket) (pooled
+                ? receiveIntoPool(pool, V2_DATA_DATAGRAM, 2)
+                : outOfMoneyApiService.deserialize(V2_DATA_DATAGRAM, V2_DATA_DATAGRAM.length, 2));
+            assertTrue(dataPacket.isFinalPacket());
+            assertThat(dataPacket.getFileId()).isEqualTo(300);
+            assertThat(dataPacket.getPacketNumber()).isEqualTo(70000);
+            assertThat(dataPacket.getContents()).containsExactly('z');
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void testVersion2IsUsedIfTheServerAnswersInIt() throws Exception {
+        var service = new OutOfMoneyApiService().withProtocolVersion(2);
+        try (var server = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            service.startInteraction(server.getLocalAddress().getHostAddress(), server.getLocalPort());
+            var request = new DatagramPacket(new byte[4], 4);
+            server.receive(request);
+            assertThat(request.getLength()).isEqualTo(1);
+            assertThat(request.getData()[0]).isEqualTo((byte) 2);
+            SocketAddress client = request.getSocketAddress();
+
+            server.send(new DatagramPacket(V2_HEADER_DATAGRAM, V2_HEADER_DATAGRAM.length, client));
+            // Once the session's in version 2, a version 1 packet is a mistake.
+            server.send(new DatagramPacket(DATA_DATAGRAM_NUMBER_0, DATA_DATAGRAM_NUMBER_0.length, client));
+            server.send(new DatagramPacket(V2_DATA_DATAGRAM, V2_DATA_DATAGRAM.length, client));
+
+            assertThat(service.getPacket().getFileId()).isEqualTo(300);
+            var dataPacket = (OutOfMoneyDataPacket) service.getPacket();
+            assertThat(dataPacket.getPacketNumber()).isEqualTo(70000);
+            assertThat(service.getValidator().getProtocolVersion()).isEqualTo(2);
+            assertThat(service.getValidator().getRejectedAsWrongVersion()).isEqualTo(1);
+        } finally {
+            service.endInteraction();
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void testAServerThatOnlySpeaksVersion1IsStillUnderstood() throws Exception {
+        var service = new OutOfMoneyApiService().withProtocolVersion(2);
+        try (var server = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            service.startInteraction(server.getLocalAddress().getHostAddress(), server.getLocalPort());
+            var request = new DatagramPacket(new byte[4], 4);
+            server.receive(request);
+            SocketAddress client = request.getSocketAddress();
+
+            server.send(new DatagramPacket(DATA_DATAGRAM_NUMBER_1023, DATA_DATAGRAM_NUMBER_1023.length, client));
+            server.send(new DatagramPacket(V2_HEADER_DATAGRAM, V2_HEADER_DATAGRAM.length, client));
+            server.send(new DatagramPacket(HEADER_DATAGRAM, HEADER_DATAGRAM.length, client));
+
+            var dataPacket = (OutOfMoneyDataPacket) service.getPacket();
+            assertThat(dataPacket.getFileId()).isEqualTo(77);
+            assertThat(dataPacket.getPacketNumber()).isEqualTo(1023);
+            assertThat(((OutOfMoneyHeaderPacket) service.getPacket()).getFilename()).isEqualTo("foo.txt");
+            assertThat(service.getValidator().getProtocolVersion()).isEqualTo(1);
+            assertThat(service.getValidator().getRejectedAsWrongVersion()).isEqualTo(1);
+        } finally {
+            service.endInteraction();
+        }
+    }
+
+    /**
+     * Copy `datagram` into a buffer from `pool`, the same way `DatagramChannel.receive()` would, and return the
+     * resulting packet view.
+     */
+    private static OutOfMoneyPacket receiveIntoPool(PacketPool pool, byte[] datagram) {
+        return receiveIntoPool(pool, datagram, 1);
+    }
+
+    private static OutOfMoneyPacket receiveIntoPool(PacketPool pool, byte[] datagram, int version) {
+        PacketPool.Slot slot = pool.acquire();
+        slot.buffer.put(datagram);
+        slot.buffer.flip();
+        return slot.view(version);
+    }
 }
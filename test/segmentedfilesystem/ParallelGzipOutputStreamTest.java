@@ -0,0 +1,139 @@
+package segmentedfilesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import segmentedfilesystem.model.File;
+
+public class ParallelGzipOutputStreamTest {
+    private ExecutorService executor;
+    private Path directory;
+
+    @Before
+    public void beforeEach() throws Exception {
+        executor = Executors.newFixedThreadPool(4);
+        directory = Files.createTempDirectory("parallel-gzip-output-stream-test");
+    }
+
+    @After
+    public void afterEach() throws Exception {
+        executor.shutdownNow();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testEmptyInputIsAValidGzipStream() throws Exception {
+        assertThat(gunzip(gzip(new byte[0], 1024))).isEmpty();
+    }
+
+    @Test
+    public void testManyBlocksComeBackInOrder() throws Exception {
+        // Random bytes don't compress, so every block grows a little; text compresses, and refers back across blocks.
+        byte[] random = new byte[10 * 1024 + 7];
+        new Random(1).nextBytes(random);
+        byte[] text = "All the world's a stage, and all the men and women merely players. ".repeat(500)
+            .getBytes(StandardCharsets.UTF_8);
+
+        assertThat(gunzip(gzip(random, 1024))).isEqualTo(random);
+        byte[] compressedText = gzip(text, 1024);
+        assertThat(gunzip(compressedText)).isEqualTo(text);
+        assertTrue(compressedText.length < text.length / 10);
+    }
+
+    @Test
+    public void testWritesOfAnySizeGoInTheRightBlocks() throws Exception {
+        byte[] data = new byte[5000];
+        new Random(2).nextBytes(data);
+        var compressed = new ByteArrayOutputStream();
+        try (var outputStream = new ParallelGzipOutputStream(compressed, executor, 300, Deflater.BEST_SPEED, 2)) {
+            outputStream.write(data, 0, 1);
+            outputStream.write(data[1]);
+            outputStream.write(data, 2, 997);
+            outputStream.write(data, 999, data.length - 999);
+            assertThat(outputStream.getUncompressedSize()).isEqualTo(data.length);
+        }
+        assertThat(gunzip(compressed.toByteArray())).isEqualTo(data);
+    }
+
+    @Test
+    public void testFinishLeavesTheUnderlyingStreamOpen() throws Exception {
+        var compressed = new ByteArrayOutputStream() {
+            boolean closed = false;
+
+            @Override
+            public void close() {
+                closed = true;
+            }
+        };
+        var outputStream = new ParallelGzipOutputStream(compressed, executor);
+        outputStream.write(new byte[] { 1, 2, 3 });
+        outputStream.finish();
+
+        assertFalse(compressed.closed);
+        assertThat(outputStream.getCompressedSize()).isEqualTo(compressed.size());
+        assertThat(gunzip(compressed.toByteArray())).containsExactly(1, 2, 3);
+        assertThrows(IOException.class, () -> outputStream.write(4));
+    }
+
+    @Test
+    public void testFileWriterServiceWritesAndVerifiesGzippedFiles() throws Exception {
+        byte[] firstChunk = new byte[DiskChunkStore.CHUNK_SIZE];
+        new Random(3).nextBytes(firstChunk);
+        byte[] secondChunk = "the end".getBytes(StandardCharsets.UTF_8);
+        var partialFile = new PartialFile().withFilename("chunks.bin").withNumberOfChunks(2)
+            .addChunk(1, secondChunk)
+            .addChunk(0, firstChunk);
+        var fileWriterService = new FileWriterService(directory).withCompressionExecutor(executor);
+        fileWriterService.setVerifyOnWrite(true);
+
+        fileWriterService.writeCompletedFile(partialFile);
+        fileWriterService.createFileInWorkingDirectory(new File("whole.txt", secondChunk));
+
+        assertFalse(Files.exists(directory.resolve("chunks.bin")));
+        byte[] expected = new byte[firstChunk.length + secondChunk.length];
+        System.arraycopy(firstChunk, 0, expected, 0, firstChunk.length);
+        System.arraycopy(secondChunk, 0, expected, firstChunk.length, secondChunk.length);
+        assertThat(gunzip(Files.readAllBytes(directory.resolve("chunks.bin.gz")))).isEqualTo(expected);
+        assertThat(gunzip(Files.readAllBytes(directory.resolve("whole.txt.gz")))).isEqualTo(secondChunk);
+        assertTrue(fileWriterService.verify("chunks.bin", partialFile.getChecksum()));
+    }
+
+    private byte[] gzip(byte[] data, int blockSize) throws IOException {
+        var compressed = new ByteArrayOutputStream();
+        try (var outputStream = new ParallelGzipOutputStream(
+            compressed, executor, blockSize, Deflater.DEFAULT_COMPRESSION, 3
+        )) {
+            outputStream.write(data);
+        }
+        return compressed.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] compressed) throws IOException {
+        // GZIPInputStream checks the CRC32 and length in the trailer, and throws if they're wrong.
+        try (var inputStream = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            return inputStream.readAllBytes();
+        }
+    }
+}
@@ -1,14 +1,18 @@
 package segmentedfilesystem;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.List;
 
 import org.junit.Test;
 
+import segmentedfilesystem.model.ChunkRange;
 import segmentedfilesystem.model.File;
 
 public class PartialFileTest {
@@ -92,6 +96,12 @@ public class PartialFileTest {
         assertTrue(ZERO_BYTES_LONG.isComplete());
     }
 
+    @Test
+    public void testOnlyWrittenThroughFilesCanBeMovedIntoPlace() {
+        // The file's chunks are in memory, so there's nothing on disk to move.
+        assertThrows(IllegalStateException.class, () -> COMPLETE_PARTIAL_FILE.moveTo(Path.of(".")));
+    }
+
     @Test
     public void testToFileWorks() {
         File file = COMPLETE_PARTIAL_FILE.toFile();
@@ -106,6 +116,131 @@ public class PartialFileTest {
         assertThat(file.getData()).isEmpty();
     }
 
+    @Test
+    public void testDuplicateChunksAreCountedOnce() {
+        PartialFile partialFile = new PartialFile()
+            .withFilename("duplicates.txt")
+            .withNumberOfChunks(2)
+            .addChunk(0, new byte[] { 1, 2, 3 })
+            .addChunk(0, new byte[] { 1, 2, 3 });
+        assertFalse(partialFile.isComplete());
+
+        partialFile.addChunk(1, new byte[] { 4 });
+        assertTrue(partialFile.isComplete());
+        assertThat(partialFile.toFile().getData()).containsExactly(1, 2, 3, 4);
+    }
+
+    @Test
+    public void testFinalChunkCanArriveFirst() {
+        PartialFile partialFile = new PartialFile()
+            .withFilename("backwards.txt")
+            .addChunk(2, new byte[] { 6, 7, 8, 9 })
+            .withNumberOfChunks(3)
+            .addChunk(1, new byte[] { 4, 5 })
+            .addChunk(0, new byte[] { 1, 2, 3 });
+        assertTrue(partialFile.isComplete());
+        assertThat(partialFile.toFile().getData()).containsExactly(1, 2, 3, 4, 5, 6, 7, 8, 9);
+    }
+
+    @Test
+    public void testGrowsToFitLargePacketNumbers() {
+        PartialFile partialFile = new PartialFile().withFilename("big.bin");
+        for (int i = 65535; i >= 0; i--) {
+            partialFile.addChunk(i, new byte[] { (byte) i });
+        }
+        assertFalse(partialFile.isComplete());
+
+        partialFile.setNumberOfChunks(65536);
+        assertTrue(partialFile.isComplete());
+        assertThat(partialFile.toFile().getData()).hasSize(65536);
+    }
+
+    @Test
+    public void testChunksPastTheEndDoNotCountTowardsCompletion() {
+        PartialFile partialFile = new PartialFile()
+            .withFilename("stray.txt")
+            .addChunk(5, new byte[] { 42 })
+            .addChunk(0, new byte[] { 1 })
+            .withNumberOfChunks(2);
+        assertFalse(partialFile.isComplete());
+
+        partialFile.addChunk(1, new byte[] { 2 });
+        assertTrue(partialFile.isComplete());
+        assertThat(partialFile.toFile().getData()).containsExactly(1, 2);
+    }
+
+    @Test
+    public void testMissingChunkRangesCoverTheWholeFileOnceTheLengthIsKnown() {
+        assertThat(MISSING_SOME_DATA.getMissingChunkRanges()).containsExactly(new ChunkRange(1, 1));
+        assertThat(WITHOUT_ANY_DATA.getMissingChunkRanges()).containsExactly(new ChunkRange(0, 2));
+        assertThat(COMPLETE_PARTIAL_FILE.getMissingChunkRanges()).isEmpty();
+    }
+
+    @Test
+    public void testMissingChunkRangesStopAtTheHighestChunkWhenTheLengthIsUnknown() {
+        PartialFile partialFile = new PartialFile()
+            .addChunk(2, new byte[] { 1 })
+            .addChunk(3, new byte[] { 2 })
+            .addChunk(70, new byte[] { 3 });
+        assertFalse(partialFile.isLengthKnown());
+        assertThat(partialFile.getMissingChunkRanges()).containsExactly(new ChunkRange(0, 1), new ChunkRange(4, 69));
+    }
+
+    @Test
+    public void testMergeFromFillsInMissingChunksAndLength() {
+        PartialFile older = new PartialFile()
+            .withFilename("merged.txt")
+            .addChunk(0, new byte[] { 1, 2 })
+            .addChunk(2, new byte[] { 5 });
+        PartialFile newer = new PartialFile()
+            .addChunk(1, new byte[] { 3, 4 })
+            .addChunk(2, new byte[] { 5 })
+            .withNumberOfChunks(3);
+
+        older.mergeFrom(newer);
+        assertTrue(older.hasChunk(1));
+        assertTrue(older.isComplete());
+        assertThat(older.toFile().getData()).containsExactly(1, 2, 3, 4, 5);
+    }
+
+    @Test
+    public void testChecksumIsWorkedOutFromChunksInAnyOrder() {
+        byte[] fullChunk = new byte[DiskChunkStore.CHUNK_SIZE];
+        Arrays.fill(fullChunk, (byte) 7);
+        PartialFile partialFile = new PartialFile()
+            .withFilename("checksummed.bin")
+            .addChunk(2, new byte[] { 1, 2, 3 })
+            .withNumberOfChunks(3)
+            .addChunk(0, fullChunk)
+            .addChunk(1, fullChunk);
+
+        File file = partialFile.toFile();
+        assertEquals(new File("checksummed.bin", file.getData()).getChecksum(), partialFile.getChecksum());
+        assertEquals(partialFile.getChecksum(), file.getChecksum());
+    }
+
+    @Test
+    public void testSpilledChunksAreReadBackWhenTheFileIsFinished() {
+        try (var spillFile = new SpillFile()) {
+            PartialFile partialFile = new PartialFile()
+                .withFilename("spilled.txt")
+                .addChunk(1, new byte[] { 4, 5 })
+                .addChunk(0, new byte[] { 1, 2, 3 });
+            assertEquals(5, partialFile.spill(spillFile));
+            assertEquals(0, partialFile.getBufferedBytes());
+
+            // A duplicate of a spilled chunk doesn't bring it back into memory.
+            partialFile.addChunk(0, new byte[] { 1, 2, 3 });
+            assertEquals(0, partialFile.getBufferedBytes());
+
+            partialFile.withNumberOfChunks(3).addChunk(2, new byte[] { 6 });
+            assertEquals(1, partialFile.getBufferedBytes());
+            File file = partialFile.toFile();
+            assertThat(file.getData()).containsExactly(1, 2, 3, 4, 5, 6);
+            assertEquals(new File("spilled.txt", file.getData()).getChecksum(), partialFile.getChecksum());
+        }
+    }
+
     @Test
     public void testConvertingIncompletePartialFileToFileThrows() {
         for (PartialFile pf : INCOMPLETE_PARTIAL_FILES) {
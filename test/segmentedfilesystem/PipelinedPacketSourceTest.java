@@ -0,0 +1,77 @@
+package segmentedfilesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import segmentedfilesystem.model.OutOfMoneyDataPacket;
+import segmentedfilesystem.model.OutOfMoneyPacket;
+
+public class PipelinedPacketSourceTest {
+    @Test(timeout = 10_000)
+    public void testAReceiveErrorReachesTheConsumerAfterTheLastPacket() throws Exception {
+        var failingSource = new FailingPacketSource(3);
+        var source = new PipelinedPacketSource(failingSource, 4);
+        source.startInteraction("ignored", 0);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, ((OutOfMoneyDataPacket) source.getPacket()).getPacketNumber());
+        }
+        var e = assertThrows(IOException.class, source::getPacket);
+        assertThat(e.getCause()).isInstanceOf(ClosedChannelException.class);
+        // The receiver thread gave up on the first error, rather than trying again and again.
+        assertEquals(4, failingSource.calls.get());
+        source.endInteraction();
+    }
+
+    @Test(timeout = 10_000)
+    public void testAFullRingHoldsTheReceiverBackWithoutLosingPackets() throws Exception {
+        var source = new PipelinedPacketSource(new FailingPacketSource(20), 2);
+        source.startInteraction("ignored", 0);
+        // Let the receiver fill the ring and wait for room.
+        Thread.sleep(100);
+
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i, ((OutOfMoneyDataPacket) source.getPacket()).getPacketNumber());
+        }
+        assertTrue(source.getRingFullEvents() > 0);
+        assertThrows(IOException.class, source::getPacket);
+        source.endInteraction();
+    }
+
+    /**
+     * A source that hands out `count` packets, and then fails as if its channel had been closed.
+     */
+    private static class FailingPacketSource implements PacketSource {
+        private final int count;
+        final AtomicInteger calls = new AtomicInteger();
+
+        FailingPacketSource(int count) {
+            this.count = count;
+        }
+
+        @Override
+        public void startInteraction(String serverName, int port) {
+        }
+
+        @Override
+        public OutOfMoneyPacket getPacket() throws IOException {
+            int call = calls.getAndIncrement();
+            if (call >= count) {
+                throw new ClosedChannelException();
+            }
+            return new OutOfMoneyDataPacket(1, new byte[] { (byte) call }, call, call == count - 1);
+        }
+
+        @Override
+        public void endInteraction() {
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package segmentedfilesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import segmentedfilesystem.model.OutOfMoneyDataPacket;
+import segmentedfilesystem.model.OutOfMoneyPacket;
+
+public class PublishingPacketSourceTest {
+    private ExecutorService executor;
+
+    @Before
+    public void beforeEach() {
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void afterEach() {
+        executor.shutdownNow();
+    }
+
+    @Test(timeout = 10_000)
+    public void testSubscribersSeeEveryPacketInOrder() throws Exception {
+        var source = new PublishingPacketSource(new ListPacketSource(10), executor, 4);
+        var received = new CopyOnWriteArrayList<Integer>();
+        var completed = new CountDownLatch(1);
+        source.subscribe(new RequestingSubscriber(Long.MAX_VALUE) {
+            @Override
+            public void onNext(OutOfMoneyPacket packet) {
+                received.add(((OutOfMoneyDataPacket) packet).getPacketNumber());
+            }
+
+            @Override
+            public void onComplete() {
+                completed.countDown();
+            }
+        });
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, ((OutOfMoneyDataPacket) source.getPacket()).getPacketNumber());
+        }
+        source.close();
+
+        assertTrue(completed.await(5, TimeUnit.SECONDS));
+        assertThat(received).containsExactly(0, 1, 2, 3, 4, 5, 6, 7, 8, 9);
+    }
+
+    @Test(timeout = 10_000)
+    public void testASlowSubscriberHoldsTheReceiverUp() throws Exception {
+        var source = new PublishingPacketSource(new ListPacketSource(100), executor, 2);
+        var subscriber = new RequestingSubscriber(0);
+        source.subscribe(subscriber);
+        subscriber.subscribed.await();
+
+        var receiver = Thread.ofVirtual().start(() -> {
+            try {
+                for (int i = 0; i < 100; i++) {
+                    source.getPacket();
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        // The subscriber hasn't asked for anything, so once its buffer is full, receiving has to wait.
+        assertFalse(receiver.join(Duration.ofMillis(200)));
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        receiver.join();
+        source.close();
+    }
+
+    @Test
+    public void testPooledPacketsAreCopiedBeforeTheyArePublished() {
+        var pool = new PacketPool(1, 16);
+        PacketPool.Slot slot = pool.acquire();
+        slot.buffer.put(new byte[] { OutOfMoneyApiService.DATA_PACKET_BIT, 7, 0, 3, 42, 43 }).flip();
+        OutOfMoneyPacket view = slot.view();
+        view.setReceivedNanos(123);
+
+        var copy = (OutOfMoneyDataPacket) PublishingPacketSource.detach(view);
+        view.release();
+        // Reuse the slot, as the next packet received would.
+        pool.acquire().buffer.put(new byte[] { 0, 0, 0, 0, 0, 0 });
+
+        assertEquals(OutOfMoneyDataPacket.class, copy.getClass());
+        assertEquals(7, copy.getFileId());
+        assertEquals(3, copy.getPacketNumber());
+        assertFalse(copy.isFinalPacket());
+        assertThat(copy.getContents()).containsExactly(42, 43);
+        assertEquals(123, copy.getReceivedNanos());
+
+        var ordinary = new OutOfMoneyDataPacket((byte) 1, new byte[] { 1 }, 0, true);
+        assertTrue(PublishingPacketSource.detach(ordinary) == ordinary);
+    }
+
+    /**
+     * Hands out data packets numbered 0, 1, 2, ..., for file 1.
+     */
+    private static class ListPacketSource implements PacketSource {
+        private final ArrayDeque<OutOfMoneyPacket> packets = new ArrayDeque<>();
+
+        ListPacketSource(int count) {
+            for (int i = 0; i < count; i++) {
+                packets.add(new OutOfMoneyDataPacket((byte) 1, new byte[] { (byte) i }, i, i == count - 1));
+            }
+        }
+
+        @Override
+        public void startInteraction(String serverName, int port) {
+        }
+
+        @Override
+        public OutOfMoneyPacket getPacket() {
+            return packets.remove();
+        }
+
+        @Override
+        public void endInteraction() {
+        }
+    }
+
+    private static class RequestingSubscriber implements Flow.Subscriber<OutOfMoneyPacket> {
+        private final long initialRequest;
+        final CountDownLatch subscribed = new CountDownLatch(1);
+        volatile Flow.Subscription subscription;
+
+        RequestingSubscriber(long initialRequest) {
+            this.initialRequest = initialRequest;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (initialRequest > 0) {
+                subscription.request(initialRequest);
+            }
+            subscribed.countDown();
+        }
+
+        @Override
+        public void onNext(OutOfMoneyPacket packet) {
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+}
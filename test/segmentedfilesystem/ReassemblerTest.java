@@ -0,0 +1,190 @@
+package segmentedfilesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import segmentedfilesystem.model.ChunkEvent;
+import segmentedfilesystem.model.ChunkRange;
+import segmentedfilesystem.model.OutOfMoneyDataPacket;
+import segmentedfilesystem.model.OutOfMoneyHeaderPacket;
+
+public class ReassemblerTest {
+    private Path directory;
+
+    @Before
+    public void beforeEach() throws Exception {
+        directory = Files.createTempDirectory("reassembler-test");
+    }
+
+    @After
+    public void afterEach() throws Exception {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testLeastRecentlyTouchedFilesAreSpilledOverBudget() throws Exception {
+        var memoryBudget = new MemoryBudget(3 * DiskChunkStore.CHUNK_SIZE);
+        var reassembler = new Reassembler(new FileWriterService(directory), memoryBudget);
+
+        reassembler.accept(new OutOfMoneyHeaderPacket((byte) 1, "one.bin".getBytes(StandardCharsets.UTF_8)));
+        reassembler.accept(new OutOfMoneyHeaderPacket((byte) 2, "two.bin".getBytes(StandardCharsets.UTF_8)));
+        reassembler.accept(new OutOfMoneyDataPacket((byte) 1, chunk(1), 0, false));
+        reassembler.accept(new OutOfMoneyDataPacket((byte) 1, chunk(2), 1, false));
+        reassembler.accept(new OutOfMoneyDataPacket((byte) 2, chunk(3), 0, false));
+        reassembler.accept(new OutOfMoneyDataPacket((byte) 2, chunk(4), 1, false));
+        // File 1 hasn't been heard from since file 2 started, so it's the one that goes.
+        assertEquals(2 * DiskChunkStore.CHUNK_SIZE, memoryBudget.getUsed());
+
+        reassembler.accept(new OutOfMoneyDataPacket((byte) 1, new byte[] { 9 }, 2, true));
+        reassembler.accept(new OutOfMoneyDataPacket((byte) 2, new byte[] { 8 }, 2, true));
+        assertThat(reassembler.getCompletedFilenames()).containsExactly("one.bin", "two.bin");
+        assertEquals(0, memoryBudget.getUsed());
+        assertThat(Files.readAllBytes(directory.resolve("one.bin")))
+            .isEqualTo(concat(chunk(1), chunk(2), new byte[] { 9 }));
+        assertThat(Files.readAllBytes(directory.resolve("two.bin")))
+            .isEqualTo(concat(chunk(3), chunk(4), new byte[] { 8 }));
+        reassembler.releaseMemory();
+    }
+
+    @Test
+    public void testChunkEventsFollowTheFileAsItArrives() throws Exception {
+        var events = new ArrayList<String>();
+        var reassembler = new Reassembler(new FileWriterService(directory), null);
+        reassembler.setChunkListener(event -> events.add(event.toString()));
+
+        reassembler.accept(new OutOfMoneyDataPacket((byte) 3, new byte[] { 2 }, 1, true));
+        reassembler.accept(new OutOfMoneyHeaderPacket((byte) 3, "three.bin".getBytes(StandardCharsets.UTF_8)));
+        reassembler.accept(new OutOfMoneyDataPacket((byte) 3, new byte[] { 2 }, 1, true));
+        reassembler.accept(new OutOfMoneyDataPacket((byte) 3, new byte[] { 1 }, 0, false));
+
+        assertThat(events).containsExactly(
+            "CHUNK file #3 #1 (1 bytes, final)",
+            "NAMED three.bin",
+            "CHUNK three.bin #0 (1 bytes)",
+            "COMPLETED three.bin"
+        );
+        reassembler.releaseMemory();
+    }
+
+    @Test
+    public void testStreamedFilesCanBeReadUpToTheFirstGap() throws Exception {
+        var events = new ArrayList<ChunkEvent>();
+        var reassembler = new Reassembler(
+            new FileWriterService(directory).withStreaming(4, StreamingChunkStore.OverflowPolicy.BUFFER), null
+        );
+        reassembler.setChunkListener(events::add);
+
+        reassembler.accept(new OutOfMoneyHeaderPacket((byte) 1, "streamed.bin".getBytes(StandardCharsets.UTF_8)));
+        reassembler.accept(new OutOfMoneyDataPacket((byte) 1, chunk(2), 1, false));
+        assertEquals(0, events.get(1).getStreamedLength());
+        reassembler.accept(new OutOfMoneyDataPacket((byte) 1, chunk(1), 0, false));
+        ChunkEvent filledGap = events.get(2);
+        assertEquals(2 * DiskChunkStore.CHUNK_SIZE, filledGap.getStreamedLength());
+        // The file isn't finished, but its first two chunks can already be read.
+        assertThat(Files.readAllBytes(filledGap.getStreamedPath())).isEqualTo(concat(chunk(1), chunk(2)));
+
+        reassembler.accept(new OutOfMoneyDataPacket((byte) 1, new byte[] { 9 }, 2, true));
+        assertEquals(2 * DiskChunkStore.CHUNK_SIZE + 1, events.get(3).getStreamedLength());
+        assertEquals(ChunkEvent.Kind.COMPLETED, events.get(4).getKind());
+        assertThat(Files.readAllBytes(directory.resolve("streamed.bin")))
+            .isEqualTo(concat(chunk(1), chunk(2), new byte[] { 9 }));
+        reassembler.releaseMemory();
+    }
+
+    @Test
+    public void testPacketsForTooManyFileIdsAreDropped() throws Exception {
+        var reassembler = new Reassembler(new FileWriterService(directory), null);
+        reassembler.setMaxFileIds(2);
+
+        reassembler.accept(new OutOfMoneyHeaderPacket((byte) 1, "one.bin".getBytes(StandardCharsets.UTF_8)));
+        assertThat(reassembler.accept(new OutOfMoneyDataPacket((byte) 9, new byte[] { 9 }, 0, true))).isTrue();
+        // A third ID is one too many, even once the file with the second one is done.
+        assertThat(reassembler.accept(new OutOfMoneyDataPacket((byte) 7, new byte[] { 7 }, 0, true))).isFalse();
+        assertThat(reassembler.accept(new OutOfMoneyDataPacket((byte) 1, new byte[] { 1 }, 0, true))).isTrue();
+        assertEquals(1, reassembler.getPacketsOverFileIdLimit());
+        assertEquals(2, reassembler.describeGaps().size() + reassembler.getCompletedFilenames().size());
+
+        // After a restart, the server gets a fresh set of IDs.
+        reassembler.restart();
+        assertThat(reassembler.accept(new OutOfMoneyDataPacket((byte) 7, new byte[] { 7 }, 0, true))).isTrue();
+        reassembler.releaseMemory();
+    }
+
+    @Test
+    public void testWideFileIdsAndPacketNumbersAreReassembled() throws Exception {
+        var reassembler = new Reassembler(new FileWriterService(directory), null);
+
+        reassembler.accept(new OutOfMoneyHeaderPacket(40000, "far.bin".getBytes(StandardCharsets.UTF_8)));
+        reassembler.accept(new OutOfMoneyDataPacket(40000, new byte[] { 4 }, 0, true));
+        reassembler.accept(new OutOfMoneyHeaderPacket(300, "big.bin".getBytes(StandardCharsets.UTF_8)));
+        reassembler.accept(new OutOfMoneyDataPacket(300, new byte[] { 3 }, 70000, false));
+        assertThat(reassembler.getCompletedFilenames()).containsExactly("far.bin");
+        // A late duplicate for a file that's done doesn't start it again.
+        assertThat(reassembler.accept(new OutOfMoneyDataPacket(40000, new byte[] { 4 }, 0, true))).isFalse();
+
+        var gaps = reassembler.describeGaps();
+        assertEquals(1, gaps.size());
+        assertEquals("big.bin", gaps.get(0).getDescription());
+        assertThat(gaps.get(0).getMissingChunks()).containsExactly(new ChunkRange(0, 69999));
+
+        // Nothing can be numbered past the end of the biggest file we'd hold.
+        assertThat(reassembler.accept(new OutOfMoneyDataPacket(300, new byte[] { 3 }, PartialFile.MAX_CHUNKS, false)))
+            .isFalse();
+        assertThat(reassembler.accept(new OutOfMoneyDataPacket(300, new byte[] { 3 }, -1, false))).isFalse();
+        assertEquals(2, reassembler.getPacketsOutOfRange());
+        reassembler.releaseMemory();
+    }
+
+    @Test
+    public void testReleasingMemoryLetsGoOfUnfinishedFilesButKeepsTheirJournals() throws Exception {
+        var journal = new DownloadJournal(directory.resolve("journal"));
+        var reassembler = new Reassembler(new FileWriterService(directory).withWriteThrough(true), null);
+        reassembler.setJournal(journal);
+        reassembler.accept(new OutOfMoneyHeaderPacket((byte) 1, "kept.bin".getBytes(StandardCharsets.UTF_8)));
+        reassembler.accept(new OutOfMoneyDataPacket((byte) 1, new byte[] { 1 }, 0, false));
+        reassembler.restart();
+        reassembler.accept(new OutOfMoneyDataPacket((byte) 2, new byte[] { 2 }, 0, false));
+
+        reassembler.releaseMemory();
+        try (Stream<Path> paths = Files.list(directory)) {
+            assertThat(paths.map(path -> path.getFileName().toString()).toList()).containsExactly("journal");
+        }
+        PartialFile resumed = journal.recover(new FileWriterService(directory)).get("kept.bin");
+        assertThat(resumed.hasChunk(0)).isTrue();
+        resumed.closeJournal();
+        resumed.release();
+
+        var slabAllocator = new SlabAllocator();
+        var offHeapReassembler = new Reassembler(
+            new FileWriterService(directory).withSlabAllocator(slabAllocator), null
+        );
+        offHeapReassembler.accept(new OutOfMoneyDataPacket((byte) 3, new byte[] { 3 }, 0, false));
+        assertEquals(1, slabAllocator.getSlabsInUse());
+        offHeapReassembler.releaseMemory();
+        assertEquals(0, slabAllocator.getSlabsInUse());
+    }
+
+    private static byte[] chunk(int value) {
+        byte[] data = new byte[DiskChunkStore.CHUNK_SIZE];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+
+    private static byte[] concat(byte[]... chunks) {
+        return Utils.flatten(Arrays.asList(chunks));
+    }
+}
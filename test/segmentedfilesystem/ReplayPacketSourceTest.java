@@ -0,0 +1,168 @@
+package segmentedfilesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import segmentedfilesystem.model.OutOfMoneyDataPacket;
+import segmentedfilesystem.model.OutOfMoneyHeaderPacket;
+
+public class ReplayPacketSourceTest {
+    private static final InetSocketAddress SERVER = new InetSocketAddress(InetAddress.getLoopbackAddress(), 6014);
+    private static final InetSocketAddress STRANGER = new InetSocketAddress(InetAddress.getLoopbackAddress(), 6015);
+    private static final byte[] HEADER_DATAGRAM = new byte[] { 0b00, 5, 'a', '.', 'b', 'i', 'n' };
+    private static final byte[] DATA_DATAGRAM = new byte[] { 0b11, 5, 0, 0, 42 };
+    private static final long MILLISECOND = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private Path log;
+
+    @Before
+    public void beforeEach() throws Exception {
+        log = Files.createTempFile("replay-test", ".cap");
+    }
+
+    @After
+    public void afterEach() throws Exception {
+        Files.deleteIfExists(log);
+    }
+
+    @Test(timeout = 10_000)
+    public void testOnlyValidDatagramsAreReplayed() throws Exception {
+        try (var capture = new DatagramCapture(log)) {
+            capture.recordSession(0, SERVER, true);
+            record(capture, 1, SERVER, HEADER_DATAGRAM);
+            record(capture, 2, STRANGER, DATA_DATAGRAM);
+            record(capture, 3, SERVER, new byte[] { 0b01, 5, 0 });
+            record(capture, 4, SERVER, DATA_DATAGRAM);
+        }
+
+        try (var replay = new ReplayPacketSource(log, ReplayPacketSource.Pace.FLAT_OUT).withReceiveTimeout(20)) {
+            replay.startInteraction("ignored", 0);
+            var headerPacket = (OutOfMoneyHeaderPacket) replay.getPacket();
+            assertEquals("a.bin", headerPacket.getFilename());
+            assertEquals(SERVER, headerPacket.getSource());
+            var dataPacket = (OutOfMoneyDataPacket) replay.getPacket();
+            assertTrue(dataPacket.isFinalPacket());
+            assertThat(dataPacket.getContents()).containsExactly(42);
+
+            // That's everything, so the server's gone quiet.
+            assertThrows(SocketTimeoutException.class, replay::getPacket);
+            assertEquals(4, replay.getDatagramsReplayed());
+            assertEquals(1, replay.getValidator().getRejectedAsFromElsewhere());
+            assertEquals(1, replay.getValidator().getRejectedAsTooShort());
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void testEachInteractionStartsTheNextSession() throws Exception {
+        try (var capture = new DatagramCapture(log)) {
+            capture.recordSession(0, SERVER, false);
+            record(capture, 1, SERVER, dataDatagram(0));
+            record(capture, 2, SERVER, dataDatagram(1));
+            capture.recordSession(3, STRANGER, false);
+            record(capture, 4, STRANGER, dataDatagram(2));
+        }
+
+        try (var replay = new ReplayPacketSource(log, ReplayPacketSource.Pace.FLAT_OUT).withReceiveTimeout(20)) {
+            replay.startInteraction("ignored", 0);
+            assertEquals(0, ((OutOfMoneyDataPacket) replay.getPacket()).getPacketNumber());
+            replay.endInteraction();
+
+            // The rest of the first session is skipped.
+            replay.startInteraction("ignored", 0);
+            assertEquals(2, ((OutOfMoneyDataPacket) replay.getPacket()).getPacketNumber());
+            assertThrows(SocketTimeoutException.class, replay::getPacket);
+            assertEquals(2, replay.getSessionsReplayed());
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void testOriginalPaceKeepsTheGapsBetweenDatagrams() throws Exception {
+        try (var capture = new DatagramCapture(log)) {
+            capture.recordSession(1_000 * MILLISECOND, SERVER, true);
+            record(capture, 1_000 * MILLISECOND, SERVER, dataDatagram(0));
+            record(capture, 1_300 * MILLISECOND, SERVER, dataDatagram(1));
+        }
+
+        try (var replay = new ReplayPacketSource(log, ReplayPacketSource.Pace.ORIGINAL).withReceiveTimeout(100)) {
+            long startedNanos = System.nanoTime();
+            replay.startInteraction("ignored", 0);
+            replay.getPacket();
+            // The next datagram is further off than the receive timeout, so we time out a couple of times first.
+            int timeouts = 0;
+            OutOfMoneyDataPacket packet = null;
+            while (packet == null) {
+                try {
+                    packet = (OutOfMoneyDataPacket) replay.getPacket();
+                } catch (SocketTimeoutException e) {
+                    timeouts++;
+                }
+            }
+            assertEquals(1, packet.getPacketNumber());
+            assertThat(timeouts).isBetween(2, 3);
+            assertThat(System.nanoTime() - startedNanos).isGreaterThanOrEqualTo(300 * MILLISECOND);
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void testVersion2SessionsAreDecodedInVersion2() throws Exception {
+        try (var capture = new DatagramCapture(log)) {
+            capture.recordSession(0, SERVER, true, 2);
+            record(capture, 1, SERVER, new byte[] { 0b111, 1, 44, 0, 1, 0x11, 0x70, 42 });
+        }
+
+        try (var replay = new ReplayPacketSource(log, ReplayPacketSource.Pace.FLAT_OUT).withReceiveTimeout(20)) {
+            replay.startInteraction("ignored", 0);
+            var dataPacket = (OutOfMoneyDataPacket) replay.getPacket();
+            assertEquals(300, dataPacket.getFileId());
+            assertEquals(70000, dataPacket.getPacketNumber());
+            assertThat(dataPacket.getContents()).containsExactly(42);
+        }
+    }
+
+    @Test
+    public void testALogCutOffMidRecordEndsThere() throws Exception {
+        try (var capture = new DatagramCapture(log)) {
+            capture.recordSession(0, SERVER, true);
+            record(capture, 1, SERVER, dataDatagram(0));
+            record(capture, 2, SERVER, dataDatagram(1));
+        }
+        byte[] bytes = Files.readAllBytes(log);
+        Files.write(log, Arrays.copyOf(bytes, bytes.length - 3));
+
+        try (var replay = new ReplayPacketSource(log, ReplayPacketSource.Pace.FLAT_OUT).withReceiveTimeout(1)) {
+            replay.startInteraction("ignored", 0);
+            assertEquals(0, ((OutOfMoneyDataPacket) replay.getPacket()).getPacketNumber());
+            assertThrows(SocketTimeoutException.class, replay::getPacket);
+        }
+    }
+
+    @Test
+    public void testOtherFilesAreRefused() throws Exception {
+        Files.write(log, "not a capture".getBytes(StandardCharsets.UTF_8));
+        assertThrows(IOException.class, () -> new ReplayPacketSource(log, ReplayPacketSource.Pace.FLAT_OUT));
+    }
+
+    private static byte[] dataDatagram(int packetNumber) {
+        return new byte[] { 0b01, 5, 0, (byte) packetNumber, 1, 2, 3 };
+    }
+
+    private static void record(DatagramCapture capture, long nanos, InetSocketAddress source, byte[] datagram) {
+        capture.recordDatagram(nanos, source.getAddress(), source.getPort(), datagram, 0, datagram.length);
+    }
+}
@@ -0,0 +1,122 @@
+package segmentedfilesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import segmentedfilesystem.model.File;
+import segmentedfilesystem.simulator.OutOfMoneyServerSimulator;
+
+public class SessionMultiplexerTest {
+    private static final int PACKETS_PER_SECOND = 2_000;
+
+    private static final List<File> FILES = List.of(
+        new File("small.txt", "Hello from the simulator\n".getBytes(StandardCharsets.UTF_8)),
+        new File("empty.bin", new byte[0]),
+        new File("random.bin", randomBytes(50 * 1024 + 7, 1))
+    );
+
+    private Path directory;
+
+    @Before
+    public void beforeEach() throws Exception {
+        directory = Files.createTempDirectory("session-multiplexer-test");
+    }
+
+    @After
+    public void afterEach() throws Exception {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test(timeout = 30_000)
+    public void testSilentAndUnknownServersFailWithoutHoldingUpTheOthers() throws Exception {
+        try (var simulator = new OutOfMoneyServerSimulator(FILES).withSeed(1).withShuffleRate(0.5)
+                .withPacketsPerSecond(PACKETS_PER_SECOND);
+             var silentServer = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            int port = simulator.start(0);
+
+            List<SessionResult> results = newMultiplexer().withIdleTimeoutMillis(300).downloadAll(List.of(
+                new DownloadTarget("localhost", port),
+                new DownloadTarget("localhost", silentServer.getLocalPort()),
+                new DownloadTarget("no-such-server.invalid", port)
+            ));
+
+            assertEquals(3, results.size());
+            assertTrue(results.get(0).isSuccessful());
+            verifyFilesWritten(directory.resolve("0-localhost-" + port));
+            assertThat(results.get(1).getError()).isInstanceOf(SocketTimeoutException.class);
+            assertThat(results.get(2).getError()).isInstanceOf(IOException.class);
+        }
+    }
+
+    @Test(timeout = 30_000)
+    public void testAFailingSessionDoesNotStopTheOthers() throws Exception {
+        try (var simulator = new OutOfMoneyServerSimulator(FILES).withSeed(2).withShuffleRate(0.5)
+                .withPacketsPerSecond(PACKETS_PER_SECOND);
+             var badServer = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            int port = simulator.start(0);
+            // A server that sends one file, with a name that can't be a path, so writing it blows up.
+            var badServerThread = Thread.ofVirtual().start(() -> {
+                try {
+                    var request = new DatagramPacket(new byte[1], 1);
+                    badServer.receive(request);
+                    byte[] header = { 0, 0, 'b', 'a', 'd', 0, 'x' };
+                    byte[] data = { 0b11, 0, 0, 0, 'z' };
+                    badServer.send(new DatagramPacket(header, header.length, request.getSocketAddress()));
+                    badServer.send(new DatagramPacket(data, data.length, request.getSocketAddress()));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+
+            List<SessionResult> results = newMultiplexer().withExpectedFiles(1).withIdleTimeoutMillis(5_000)
+                .downloadAll(List.of(
+                    new DownloadTarget("localhost", badServer.getLocalPort()), new DownloadTarget("localhost", port)
+                ));
+            badServerThread.join();
+
+            assertFalse(results.get(0).isSuccessful());
+            assertThat(results.get(0).getError()).isInstanceOf(InvalidPathException.class);
+            // The simulator's session only needed one file, but it's still ours.
+            assertTrue(results.get(1).isSuccessful());
+            assertEquals(1, results.get(1).getFilenames().size());
+        }
+    }
+
+    private SessionMultiplexer newMultiplexer() {
+        return new SessionMultiplexer(directory, new PacketPool(64, DatagramValidator.RECEIVE_BUFFER_SIZE));
+    }
+
+    private static void verifyFilesWritten(Path directory) throws Exception {
+        for (File file : FILES) {
+            assertThat(Files.readAllBytes(directory.resolve(file.getName()))).isEqualTo(file.getData());
+        }
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
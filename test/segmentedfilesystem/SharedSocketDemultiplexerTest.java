@@ -0,0 +1,174 @@
+package segmentedfilesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import segmentedfilesystem.model.File;
+import segmentedfilesystem.simulator.OutOfMoneyServerSimulator;
+
+/**
+ * Runs two simulated servers into one socket, with a third sender we never contacted trying to get in the way.
+ */
+public class SharedSocketDemultiplexerTest {
+    private static final int PACKETS_PER_SECOND = 2_000;
+    private static final int RECEIVE_BUFFER_SIZE = 1 << 20;
+
+    private static final List<File> FILES_A = List.of(
+        new File("a.txt", "From the first server\n".getBytes(StandardCharsets.UTF_8)),
+        new File("empty.bin", new byte[0]),
+        new File("random.bin", randomBytes(100 * 1024 + 3, 1))
+    );
+    private static final List<File> FILES_B = List.of(
+        new File("b.txt", "From the second server\n".getBytes(StandardCharsets.UTF_8)),
+        new File("empty.bin", new byte[0]),
+        new File("random.bin", randomBytes(120 * 1024 + 9, 2))
+    );
+
+    private Path directory;
+
+    @Before
+    public void beforeEach() throws Exception {
+        directory = Files.createTempDirectory("shared-socket-test");
+    }
+
+    @After
+    public void afterEach() throws Exception {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test(timeout = 30_000)
+    public void testEachServersFilesEndUpInItsOwnDirectory() throws Exception {
+        try (var simulatorA = new OutOfMoneyServerSimulator(FILES_A).withSeed(1).withShuffleRate(0.5)
+                .withPacketsPerSecond(PACKETS_PER_SECOND);
+             var simulatorB = new OutOfMoneyServerSimulator(FILES_B).withSeed(2).withShuffleRate(0.5)
+                .withPacketsPerSecond(PACKETS_PER_SECOND)) {
+            int portA = simulatorA.start(0);
+            int portB = simulatorB.start(0);
+            int localPort = freePort();
+            var demultiplexer = newDemultiplexer().withLocalPort(localPort);
+
+            // Someone else keeps sending us something that looks like a header, for file ID 0, until we're done.
+            var strangerDone = new AtomicBoolean();
+            var stranger = Thread.ofVirtual().start(() -> {
+                byte[] header = { 0, 0, 'e', 'v', 'i', 'l' };
+                try (var socket = new DatagramSocket()) {
+                    var datagram = new DatagramPacket(
+                        header, header.length, InetAddress.getLoopbackAddress(), localPort
+                    );
+                    while (!strangerDone.get()) {
+                        socket.send(datagram);
+                        Thread.sleep(5);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+
+            List<SessionResult> results;
+            try {
+                results = demultiplexer.downloadAll(List.of(
+                    new DownloadTarget("localhost", portA), new DownloadTarget("localhost", portB)
+                ));
+            } finally {
+                strangerDone.set(true);
+                stranger.join();
+            }
+
+            assertEquals(2, results.size());
+            assertTrue(results.get(0).isSuccessful());
+            assertTrue(results.get(1).isSuccessful());
+            verifyFilesWritten(directory.resolve("0-localhost-" + portA), FILES_A);
+            verifyFilesWritten(directory.resolve("1-localhost-" + portB), FILES_B);
+            assertFalse(Files.exists(directory.resolve("0-localhost-" + portA).resolve("evil")));
+            assertTrue(demultiplexer.getStrayDatagramsDropped() > 0);
+        }
+    }
+
+    @Test(timeout = 30_000)
+    public void testTheSameServerTwiceIsRejected() throws Exception {
+        try (var simulator = new OutOfMoneyServerSimulator(FILES_A).withPacketsPerSecond(PACKETS_PER_SECOND)) {
+            int port = simulator.start(0);
+
+            List<SessionResult> results = newDemultiplexer().downloadAll(List.of(
+                new DownloadTarget("localhost", port), new DownloadTarget("localhost", port)
+            ));
+
+            assertTrue(results.get(0).isSuccessful());
+            assertThat(results.get(1).getError()).isInstanceOf(IllegalArgumentException.class);
+            verifyFilesWritten(directory.resolve("0-localhost-" + port), FILES_A);
+        }
+    }
+
+    @Test(timeout = 30_000)
+    public void testASessionThatTimesOutLeavesNoPartialFilesBehind() throws Exception {
+        try (var server = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            // A server that sends the start of a file, and then nothing else.
+            var serverThread = Thread.ofVirtual().start(() -> {
+                try {
+                    var request = new DatagramPacket(new byte[1], 1);
+                    server.receive(request);
+                    byte[] header = { 0, 0, 'p', 'a', 'r', 't' };
+                    byte[] data = { 1, 0, 0, 0, 'z' };
+                    server.send(new DatagramPacket(header, header.length, request.getSocketAddress()));
+                    server.send(new DatagramPacket(data, data.length, request.getSocketAddress()));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+
+            List<SessionResult> results = newDemultiplexer().withIdleTimeoutMillis(300).withWriteThrough(true)
+                .downloadAll(List.of(new DownloadTarget("localhost", server.getLocalPort())));
+            serverThread.join();
+
+            assertThat(results.get(0).getError()).isInstanceOf(SocketTimeoutException.class);
+            try (Stream<Path> paths = Files.list(directory.resolve("0-localhost-" + server.getLocalPort()))) {
+                assertThat(paths.toList()).isEmpty();
+            }
+        }
+    }
+
+    private SharedSocketDemultiplexer newDemultiplexer() {
+        return new SharedSocketDemultiplexer(directory, new PacketPool(64, 1028))
+            .withReceiveBufferSize(RECEIVE_BUFFER_SIZE)
+            .withIdleTimeoutMillis(5_000);
+    }
+
+    private static void verifyFilesWritten(Path directory, List<File> files) throws Exception {
+        for (File file : files) {
+            assertThat(Files.readAllBytes(directory.resolve(file.getName()))).isEqualTo(file.getData());
+        }
+    }
+
+    private static int freePort() throws Exception {
+        try (var socket = new DatagramSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
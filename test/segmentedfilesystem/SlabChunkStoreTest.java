@@ -0,0 +1,70 @@
+package segmentedfilesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class SlabChunkStoreTest {
+    @Test
+    public void testChunksComeBackInPacketNumberOrder() {
+        // Two slots per slab, so three chunks need two slabs.
+        var allocator = new SlabAllocator(2);
+        var store = new SlabChunkStore(allocator);
+        store.put(2, new byte[] { 7, 8, 9 });
+        store.put(0, fullChunk((byte) 1));
+        store.put(1, fullChunk((byte) 2));
+        assertEquals(2, allocator.getSlabsInUse());
+
+        assertThat(store.get(2)).containsExactly(7, 8, 9);
+        byte[] data = store.toByteArray(3);
+        assertThat(data).hasSize(2 * DiskChunkStore.CHUNK_SIZE + 3);
+        assertThat(data[0]).isEqualTo((byte) 1);
+        assertThat(data[DiskChunkStore.CHUNK_SIZE]).isEqualTo((byte) 2);
+        assertThat(data[2 * DiskChunkStore.CHUNK_SIZE + 2]).isEqualTo((byte) 9);
+
+        store.release();
+        assertEquals(0, allocator.getSlabsInUse());
+    }
+
+    @Test
+    public void testReleasedSlabsAreReused() {
+        var allocator = new SlabAllocator(2);
+        long bytesReservedForOneStore = 0;
+        for (int i = 0; i < 1000; i++) {
+            var store = new SlabChunkStore(allocator);
+            store.put(0, fullChunk((byte) i));
+            assertThat(store.get(0)[0]).isEqualTo((byte) i);
+            store.release();
+            if (i == 0) {
+                bytesReservedForOneStore = allocator.getBytesReserved();
+            }
+        }
+        assertEquals(0, allocator.getSlabsInUse());
+        assertEquals(bytesReservedForOneStore, allocator.getBytesReserved());
+    }
+
+    @Test
+    public void testSpillingGivesBackEverySlab() {
+        var allocator = new SlabAllocator(2);
+        try (var spillFile = new SpillFile()) {
+            PartialFile partialFile = new PartialFile(new SlabChunkStore(allocator))
+                .withFilename("spilled.bin")
+                .addChunk(1, new byte[] { 4, 5 })
+                .addChunk(0, new byte[] { 1, 2, 3 });
+            assertEquals(5, partialFile.spill(spillFile));
+            assertEquals(0, allocator.getSlabsInUse());
+
+            partialFile.withNumberOfChunks(3).addChunk(2, new byte[] { 6 });
+            assertThat(partialFile.toFile().getData()).containsExactly(1, 2, 3, 4, 5, 6);
+            partialFile.release();
+        }
+        assertEquals(0, allocator.getSlabsInUse());
+    }
+
+    private static byte[] fullChunk(byte value) {
+        byte[] chunk = new byte[DiskChunkStore.CHUNK_SIZE];
+        chunk[0] = value;
+        return chunk;
+    }
+}
@@ -0,0 +1,73 @@
+package segmentedfilesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SpscRingBufferTest {
+    @Test
+    public void testCapacityMustBeAPowerOfTwo() {
+        assertThrows(IllegalArgumentException.class, () -> new SpscRingBuffer<String>(3));
+        assertThrows(IllegalArgumentException.class, () -> new SpscRingBuffer<String>(0));
+    }
+
+    @Test
+    public void testElementsComeOutInOrder() {
+        var ring = new SpscRingBuffer<String>(4);
+        assertThat(ring.poll()).isNull();
+
+        assertTrue(ring.offer("a"));
+        assertTrue(ring.offer("b"));
+        assertThat(ring.size()).isEqualTo(2);
+        assertThat(ring.poll()).isEqualTo("a");
+        assertThat(ring.poll()).isEqualTo("b");
+        assertThat(ring.poll()).isNull();
+        assertThat(ring.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void testOfferFailsWhenFull() {
+        var ring = new SpscRingBuffer<Integer>(2);
+        assertTrue(ring.offer(1));
+        assertTrue(ring.offer(2));
+        assertFalse(ring.offer(3));
+
+        assertThat(ring.poll()).isEqualTo(1);
+        assertTrue(ring.offer(3));
+        assertThat(ring.poll()).isEqualTo(2);
+        assertThat(ring.poll()).isEqualTo(3);
+    }
+
+    @Test
+    public void testProducerAndConsumerOnDifferentThreads() throws Exception {
+        int count = 100_000;
+        var ring = new SpscRingBuffer<Integer>(16);
+        var producer = new Thread(() -> {
+            for (int i = 0; i < count; i++) {
+                while (!ring.offer(i)) {
+                    Thread.onSpinWait();
+                }
+            }
+        });
+        producer.start();
+
+        List<Integer> received = new ArrayList<>();
+        while (received.size() < count) {
+            Integer element = ring.poll();
+            if (element != null) {
+                received.add(element);
+            }
+        }
+        producer.join();
+
+        for (int i = 0; i < count; i++) {
+            assertThat(received.get(i)).isEqualTo(i);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package segmentedfilesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StreamingChunkStoreTest {
+    private Path directory;
+
+    @Before
+    public void beforeEach() throws Exception {
+        directory = Files.createTempDirectory("streaming-chunk-store-test");
+    }
+
+    @After
+    public void afterEach() throws Exception {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testChunksInOrderAreWrittenStraightAway() throws Exception {
+        var store = new StreamingChunkStore(directory, 4, StreamingChunkStore.OverflowPolicy.BUFFER);
+        store.put(0, fullChunk(1));
+        store.put(1, fullChunk(2));
+
+        assertEquals(2, store.getContiguousChunks());
+        assertEquals(2 * DiskChunkStore.CHUNK_SIZE, store.getContiguousLength());
+        assertEquals(0, store.getBufferedBytes());
+        store.release();
+    }
+
+    @Test
+    public void testOnlyChunksAheadOfAGapAreHeldBack() throws Exception {
+        var store = new StreamingChunkStore(directory, 4, StreamingChunkStore.OverflowPolicy.BUFFER);
+        store.put(0, fullChunk(1));
+        store.put(2, fullChunk(3));
+        store.put(3, new byte[] { 4 });
+
+        assertEquals(1, store.getContiguousChunks());
+        assertEquals(DiskChunkStore.CHUNK_SIZE + 1, store.getBufferedBytes());
+        assertThat(store.get(2)[0]).isEqualTo((byte) 3);
+
+        store.put(1, fullChunk(2));
+        assertEquals(4, store.getContiguousChunks());
+        assertEquals(3 * DiskChunkStore.CHUNK_SIZE + 1, store.getContiguousLength());
+        assertEquals(0, store.getBufferedBytes());
+        assertThat(store.toByteArray(4)).hasSize(3 * DiskChunkStore.CHUNK_SIZE + 1);
+        assertThat(store.get(3)).containsExactly(4);
+        store.release();
+    }
+
+    @Test
+    public void testBufferingPastTheWindowKeepsChunksUntilTheGapFills() throws Exception {
+        var store = new StreamingChunkStore(directory, 2, StreamingChunkStore.OverflowPolicy.BUFFER);
+        for (int packetNumber = 5; packetNumber >= 1; packetNumber--) {
+            store.put(packetNumber, fullChunk(packetNumber));
+        }
+        assertEquals(5 * DiskChunkStore.CHUNK_SIZE, store.getBufferedBytes());
+        assertEquals(0, store.getChunksWrittenOutOfOrder());
+
+        store.put(0, fullChunk(0));
+        assertEquals(6, store.getContiguousChunks());
+        assertEquals(0, store.getBufferedBytes());
+        verifyContents(store.toByteArray(6), 6);
+        store.release();
+    }
+
+    @Test
+    public void testSpillingPastTheWindowWritesChunksInPlace() throws Exception {
+        var store = new StreamingChunkStore(directory, 2, StreamingChunkStore.OverflowPolicy.SPILL);
+        for (int packetNumber = 5; packetNumber >= 1; packetNumber--) {
+            store.put(packetNumber, fullChunk(packetNumber));
+        }
+        // The window is the gap at chunk 0 and chunk 1 after it; the rest go straight to the file.
+        assertEquals(DiskChunkStore.CHUNK_SIZE, store.getBufferedBytes());
+        assertEquals(4, store.getChunksWrittenOutOfOrder());
+        assertThat(store.get(4)[0]).isEqualTo((byte) 4);
+
+        store.put(0, fullChunk(0));
+        assertEquals(6, store.getContiguousChunks());
+        assertEquals(6 * DiskChunkStore.CHUNK_SIZE, store.getContiguousLength());
+        verifyContents(store.toByteArray(6), 6);
+        store.release();
+    }
+
+    @Test
+    public void testSpilledPartialFileStillFinishesInPlace() throws Exception {
+        var partialFile = new PartialFile(
+            new StreamingChunkStore(directory, 8, StreamingChunkStore.OverflowPolicy.BUFFER)
+        ).withFilename("streamed.bin").withNumberOfChunks(3);
+        partialFile.addChunk(2, new byte[] { 2 });
+        partialFile.addChunk(1, fullChunk(1));
+        assertEquals(DiskChunkStore.CHUNK_SIZE + 1, partialFile.getBufferedBytes());
+
+        try (var spillFile = new SpillFile()) {
+            assertEquals(DiskChunkStore.CHUNK_SIZE + 1, partialFile.spill(spillFile));
+        }
+        assertEquals(0, partialFile.getBufferedBytes());
+
+        partialFile.addChunk(0, fullChunk(0));
+        assertTrue(partialFile.isComplete());
+        partialFile.moveTo(directory);
+        byte[] data = Files.readAllBytes(directory.resolve("streamed.bin"));
+        assertThat(data).hasSize(2 * DiskChunkStore.CHUNK_SIZE + 1);
+        assertThat(data[2 * DiskChunkStore.CHUNK_SIZE]).isEqualTo((byte) 2);
+    }
+
+    @Test
+    public void testStrayChunksPastTheEndAreLeftOutOfTheFile() throws Exception {
+        for (var overflowPolicy : StreamingChunkStore.OverflowPolicy.values()) {
+            var store = new StreamingChunkStore(directory, 2, overflowPolicy);
+            // One stray waits in the window, right after where the file will end, and one lands beyond the window.
+            store.put(2, fullChunk(9));
+            store.put(6, fullChunk(9));
+            store.put(0, fullChunk(0));
+
+            store.setLength(DiskChunkStore.CHUNK_SIZE + 1);
+            assertEquals(0, store.getBufferedBytes());
+            store.put(1, new byte[] { 1 });
+            store.put(4, fullChunk(9));
+
+            assertEquals(DiskChunkStore.CHUNK_SIZE + 1, store.getContiguousLength());
+            byte[] data = store.toByteArray(2);
+            assertThat(data).hasSize(DiskChunkStore.CHUNK_SIZE + 1);
+            assertThat(data[DiskChunkStore.CHUNK_SIZE]).isEqualTo((byte) 1);
+            store.release();
+        }
+    }
+
+    @Test
+    public void testShuffledChunksAlwaysComeOutWhole() throws Exception {
+        var random = new Random(1);
+        for (StreamingChunkStore.OverflowPolicy policy : StreamingChunkStore.OverflowPolicy.values()) {
+            for (int windowSize : new int[] { 1, 3, 16 }) {
+                int numberOfChunks = 200;
+                List<Integer> order = new ArrayList<>();
+                for (int packetNumber = 0; packetNumber < numberOfChunks; packetNumber++) {
+                    order.add(packetNumber);
+                }
+                // Mostly in order, with some chunks a long way out of place, and some sent twice.
+                for (int i = 0; i < numberOfChunks; i++) {
+                    int j = Math.min(numberOfChunks - 1, i + random.nextInt(random.nextInt(10) == 0 ? 50 : 4));
+                    Collections.swap(order, i, j);
+                }
+                order.addAll(order.subList(0, 20));
+
+                var store = new StreamingChunkStore(directory, windowSize, policy);
+                for (int packetNumber : order) {
+                    store.put(packetNumber, fullChunk(packetNumber));
+                }
+                assertEquals(numberOfChunks, store.getContiguousChunks());
+                assertEquals(0, store.getBufferedBytes());
+                verifyContents(store.toByteArray(numberOfChunks), numberOfChunks);
+                store.release();
+            }
+        }
+    }
+
+    private static void verifyContents(byte[] data, int numberOfChunks) {
+        assertThat(data).hasSize(numberOfChunks * DiskChunkStore.CHUNK_SIZE);
+        for (int packetNumber = 0; packetNumber < numberOfChunks; packetNumber++) {
+            assertThat(data[packetNumber * DiskChunkStore.CHUNK_SIZE]).isEqualTo((byte) packetNumber);
+            assertThat(data[(packetNumber + 1) * DiskChunkStore.CHUNK_SIZE - 1]).isEqualTo((byte) packetNumber);
+        }
+    }
+
+    private static byte[] fullChunk(int value) {
+        byte[] chunk = new byte[DiskChunkStore.CHUNK_SIZE];
+        Arrays.fill(chunk, (byte) value);
+        return chunk;
+    }
+}
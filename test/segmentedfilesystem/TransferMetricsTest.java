@@ -0,0 +1,109 @@
+package segmentedfilesystem;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import segmentedfilesystem.model.OutOfMoneyDataPacket;
+import segmentedfilesystem.model.OutOfMoneyHeaderPacket;
+
+public class TransferMetricsTest {
+    private Path directory;
+    private TransferMetrics metrics;
+    private Reassembler reassembler;
+
+    @Before
+    public void beforeEach() throws Exception {
+        directory = Files.createTempDirectory("transfer-metrics-test");
+        metrics = new TransferMetrics();
+        reassembler = new Reassembler(new FileWriterService(directory), null);
+        reassembler.setMetrics(metrics);
+    }
+
+    @After
+    public void afterEach() throws Exception {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testCountsDuplicatesAndReordering() {
+        reassembler.accept(data(3, true));
+        reassembler.accept(data(0, false));
+        reassembler.accept(data(0, false));
+        reassembler.accept(data(2, false));
+
+        assertEquals(4, metrics.getPacketsReceived());
+        assertEquals(1, metrics.getDuplicatePackets());
+        assertEquals(3, metrics.getBytesReceived());
+        // Packets 0 and 2 both arrived after packet 3.
+        assertEquals(2, metrics.getReorderedPackets());
+        assertEquals(3, metrics.getMaxReorderDistance());
+        assertEquals(3, metrics.getBufferedBytes());
+    }
+
+    @Test
+    public void testBufferedBytesAreGivenBackWhenTheFileIsWritten() {
+        reassembler.accept(header());
+        reassembler.accept(data(0, false));
+        reassembler.accept(data(1, true));
+        assertEquals(1, metrics.getFilesCompleted());
+        assertEquals(0, metrics.getBufferedBytes());
+
+        // A late duplicate for the finished file still counts as a packet.
+        reassembler.accept(data(0, false));
+        assertEquals(4, metrics.getPacketsReceived());
+        assertEquals(1, metrics.getDuplicatePackets());
+    }
+
+    @Test
+    public void testLatencyIsOnlyRecordedForTimestampedPackets() {
+        var packet = data(0, false);
+        reassembler.accept(packet);
+        assertEquals(0, metrics.getAssembleLatencyMicrosMax());
+
+        var timestamped = data(1, false);
+        timestamped.setReceivedNanos(System.nanoTime() - 5_000_000);
+        reassembler.accept(timestamped);
+        assertTrue(metrics.getAssembleLatencyMicrosMax() >= 5_000);
+    }
+
+    @Test
+    public void testRecordingDoesNotAllocate() {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        var duplicate = data(0, false);
+        duplicate.setReceivedNanos(System.nanoTime());
+        reassembler.accept(duplicate);
+        for (int i = 0; i < 10_000; i++) {
+            reassembler.accept(duplicate);
+        }
+
+        long threadId = Thread.currentThread().threadId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 100_000; i++) {
+            reassembler.accept(duplicate);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        // Allow for a little noise from the measurement itself, but nowhere near a byte per packet.
+        assertTrue("allocated " + allocated + " bytes", allocated < 10_000);
+    }
+
+    private static OutOfMoneyHeaderPacket header() {
+        return new OutOfMoneyHeaderPacket((byte) 1, "file.txt".getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static OutOfMoneyDataPacket data(int packetNumber, boolean isFinal) {
+        return new OutOfMoneyDataPacket((byte) 1, new byte[] { (byte) packetNumber }, packetNumber, isFinal);
+    }
+}
@@ -49,4 +49,16 @@ public class UtilsTest {
         Set<byte[]> input = Collections.emptySet();
         assertThat(Utils.flatten(input)).isEmpty();
     }
+
+    @Test
+    public void testFlattenArrayOnlyUsesTheFirstRows() {
+        byte[][] input = new byte[][] {
+            new byte[] { 1, 2, 3 },
+            new byte[0],
+            new byte[] { 6, 7 },
+            null
+        };
+        assertThat(Utils.flatten(input, 3)).containsExactly(1, 2, 3, 6, 7);
+        assertThat(Utils.flatten(input, 0)).isEmpty();
+    }
 }
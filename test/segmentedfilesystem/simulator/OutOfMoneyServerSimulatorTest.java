@@ -0,0 +1,194 @@
+package segmentedfilesystem.simulator;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import segmentedfilesystem.DatagramCapture;
+import segmentedfilesystem.DatagramValidator;
+import segmentedfilesystem.DownloadIncompleteException;
+import segmentedfilesystem.FileRetriever;
+import segmentedfilesystem.FileWriterService;
+import segmentedfilesystem.OutOfMoneyApiService;
+import segmentedfilesystem.PacketPool;
+import segmentedfilesystem.ReplayPacketSource;
+import segmentedfilesystem.model.File;
+
+/**
+ * Runs the real client against the simulator over loopback UDP.
+ */
+public class OutOfMoneyServerSimulatorTest {
+    // Slow enough, with a big enough receive buffer, that loopback itself doesn't lose anything while the client's
+    // JIT is still warming up.
+    private static final int PACKETS_PER_SECOND = 5_000;
+    private static final int RECEIVE_BUFFER_SIZE = 1 << 20;
+
+    private static final List<File> FILES = List.of(
+        new File("small.txt", "Just a few words\n".getBytes(StandardCharsets.UTF_8)),
+        new File("empty.bin", new byte[0]),
+        new File("random.bin", randomBytes(200 * 1024 + 17))
+    );
+
+    private Path directory;
+
+    @Before
+    public void beforeEach() throws Exception {
+        directory = Files.createTempDirectory("simulator-test");
+    }
+
+    @After
+    public void afterEach() throws Exception {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test(timeout = 30_000)
+    public void testClientCopesWithShuffledAndDuplicatedPackets() throws Exception {
+        try (var simulator = new OutOfMoneyServerSimulator(FILES)
+                .withSeed(1)
+                .withShuffleRate(0.5)
+                .withDuplicateRate(0.2)
+                .withPacketsPerSecond(PACKETS_PER_SECOND)) {
+            int port = simulator.start(0);
+            var apiService = new OutOfMoneyApiService(new PacketPool(64, 1028))
+                .withReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+            new FileRetriever(apiService, new FileWriterService(directory)).retrieveFiles("localhost", port);
+
+            assertTrue(simulator.getPacketsDuplicated() > 0);
+            verifyAllFilesWritten();
+        }
+    }
+
+    @Test(timeout = 30_000)
+    public void testClientRestartsUntilItHasEverythingDespiteLoss() throws Exception {
+        try (var simulator = new OutOfMoneyServerSimulator(FILES)
+                .withSeed(2)
+                .withDropRate(0.1)
+                .withPacketsPerSecond(PACKETS_PER_SECOND)) {
+            int port = simulator.start(0);
+            var apiService = new OutOfMoneyApiService()
+                .withReceiveBufferSize(RECEIVE_BUFFER_SIZE)
+                .withReceiveTimeout(100);
+            new FileRetriever(apiService, new FileWriterService(directory))
+                .withStallTimeoutMillis(100)
+                .withMaxRestarts(20)
+                .retrieveFiles("localhost", port);
+
+            assertTrue(simulator.getSessionsStarted() > 1);
+            verifyAllFilesWritten();
+        }
+    }
+
+    @Test(timeout = 30_000)
+    public void testMoreFilesThanVersion1CanSendComeThroughInVersion2() throws Exception {
+        var files = new ArrayList<File>();
+        for (int i = 0; i < 300; i++) {
+            files.add(new File("file" + i + ".txt", ("File number " + i + "\n").getBytes(StandardCharsets.UTF_8)));
+        }
+        try (var simulator = new OutOfMoneyServerSimulator(files)
+                .withSeed(5)
+                .withShuffleRate(0.5)
+                .withPacketsPerSecond(PACKETS_PER_SECOND)) {
+            int port = simulator.start(0);
+            var apiService = new OutOfMoneyApiService(new PacketPool(64, DatagramValidator.RECEIVE_BUFFER_SIZE))
+                .withReceiveBufferSize(RECEIVE_BUFFER_SIZE)
+                .withProtocolVersion(2);
+            new FileRetriever(apiService, new FileWriterService(directory))
+                .withExpectedFiles(files.size())
+                .retrieveFiles("localhost", port);
+
+            assertEquals(2, apiService.getValidator().getProtocolVersion());
+            for (File file : files) {
+                assertThat(Files.readAllBytes(directory.resolve(file.getName()))).isEqualTo(file.getData());
+            }
+        }
+    }
+
+    @Test(timeout = 30_000)
+    public void testACapturedRunReplaysToTheSameFiles() throws Exception {
+        Path log = directory.resolve("run.cap");
+        Path replayDirectory = directory.resolve("replayed");
+        try (var simulator = new OutOfMoneyServerSimulator(FILES)
+                .withSeed(4)
+                .withShuffleRate(0.3)
+                .withDropRate(0.1)
+                .withPacketsPerSecond(PACKETS_PER_SECOND);
+             var capture = new DatagramCapture(log)) {
+            int port = simulator.start(0);
+            var apiService = new OutOfMoneyApiService(new PacketPool(64, DatagramValidator.RECEIVE_BUFFER_SIZE))
+                .withReceiveBufferSize(RECEIVE_BUFFER_SIZE)
+                .withReceiveTimeout(100)
+                .withCapture(capture);
+            new FileRetriever(apiService, new FileWriterService(directory))
+                .withStallTimeoutMillis(100)
+                .withMaxRestarts(20)
+                .retrieveFiles("localhost", port);
+            assertTrue(simulator.getSessionsStarted() > 1);
+        }
+
+        Files.createDirectories(replayDirectory);
+        try (var replay = new ReplayPacketSource(log, ReplayPacketSource.Pace.FLAT_OUT).withReceiveTimeout(100)) {
+            new FileRetriever(replay, new FileWriterService(replayDirectory))
+                .withStallTimeoutMillis(100)
+                .withMaxRestarts(20)
+                .retrieveFiles("nowhere", 0);
+            assertTrue(replay.getSessionsReplayed() > 1);
+        }
+        for (File file : FILES) {
+            assertThat(Files.readAllBytes(replayDirectory.resolve(file.getName()))).isEqualTo(file.getData());
+        }
+    }
+
+    @Test(timeout = 30_000)
+    public void testSameSeedLosesTheSamePackets() throws Exception {
+        assertEquals(missingChunksWithSeed(3), missingChunksWithSeed(3));
+    }
+
+    private String missingChunksWithSeed(long seed) throws Exception {
+        try (var simulator = new OutOfMoneyServerSimulator(FILES)
+                .withSeed(seed)
+                .withDropRate(0.05)
+                .withPacketsPerSecond(PACKETS_PER_SECOND)) {
+            int port = simulator.start(0);
+            var apiService = new OutOfMoneyApiService()
+                .withReceiveBufferSize(RECEIVE_BUFFER_SIZE)
+                .withReceiveTimeout(100);
+            var fileRetriever = new FileRetriever(apiService, new FileWriterService(directory))
+                .withStallTimeoutMillis(100)
+                .withMaxRestarts(0);
+
+            var e = assertThrows(DownloadIncompleteException.class, () ->
+                fileRetriever.retrieveFiles("localhost", port)
+            );
+            assertTrue(e.getLossReport().countMissingChunks() > 0);
+            return e.getLossReport().getFiles().toString();
+        }
+    }
+
+    private void verifyAllFilesWritten() throws Exception {
+        for (File file : FILES) {
+            assertThat(Files.readAllBytes(directory.resolve(file.getName()))).isEqualTo(file.getData());
+        }
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+}